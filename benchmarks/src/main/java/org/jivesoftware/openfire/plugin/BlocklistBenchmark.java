@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the lookups in the blocklist of email domains and usernames, for lists of different sizes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BlocklistBenchmark {
+
+    @Param({ "1000", "500000" })
+    public int entries;
+
+    private RegistrationBlocklist blocklist;
+
+    @Setup
+    public void setUp() throws IOException {
+        final File file = new File(RegistrationFixture.createDataDirectory(), "blocklist.txt");
+        try (PrintWriter writer = new PrintWriter(file, StandardCharsets.UTF_8.name())) {
+            writer.println("admin");
+            writer.println("support*");
+            writer.println("*badword*");
+            for (int i = 0; i < entries; i++) {
+                writer.println("@disposable" + i + ".example.com");
+            }
+        }
+        blocklist = new RegistrationBlocklist(file);
+        blocklist.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        blocklist.stop();
+    }
+
+    @Benchmark
+    public boolean blockedEmail() {
+        return blocklist.isBlockedEmail("new.user@mail.disposable42.example.com");
+    }
+
+    @Benchmark
+    public boolean allowedEmail() {
+        return blocklist.isBlockedEmail("new.user@mail.example.org");
+    }
+
+    @Benchmark
+    public boolean allowedUsername() {
+        return blocklist.isReservedUsername("new.user");
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the validation of addresses and the handling of the notification contacts.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ContactsBenchmark {
+
+    private RegistrationPlugin plugin;
+    private RegistrationContactRegistry registry;
+    private Collection<String> usernames;
+
+    @Setup
+    public void setUp() {
+        plugin = RegistrationFixture.createPlugin(new StubRegistrationServices());
+        registry = new RegistrationContactRegistry(RegistrationFixture.SERVER_NAME, plugin::isValidAddress);
+        registry.load(RegistrationFixture.IM_CONTACTS, RegistrationFixture.EMAIL_CONTACTS);
+        usernames = plugin.getIMContacts();
+    }
+
+    @TearDown
+    public void tearDown() {
+        plugin.stop();
+    }
+
+    @Benchmark
+    public boolean isValidAddress() {
+        return plugin.isValidAddress("new.user@mail.example.org");
+    }
+
+    @Benchmark
+    public boolean isInvalidAddress() {
+        return plugin.isValidAddress("new.user-at-example");
+    }
+
+    @Benchmark
+    public Collection<String> getIMContacts() {
+        return plugin.getIMContacts();
+    }
+
+    @Benchmark
+    public String propPrep() {
+        return RegistrationPlugin.propPrep(usernames);
+    }
+
+    @Benchmark
+    public RegistrationContactRegistry loadContacts() {
+        registry.load(RegistrationFixture.IM_CONTACTS, RegistrationFixture.EMAIL_CONTACTS);
+        return registry;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.dom4j.Element;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+
+/**
+ * Registration services that keep groups, privacy lists and lockouts in memory, record routed messages and
+ * swallow emails like an SMTP sink. The latency of the email relay and of the group and privacy list stores
+ * can be simulated, to see how slow back ends affect the registration pipeline.
+ */
+class InMemoryRegistrationServices implements RegistrationServices {
+
+    private final long smtpLatencyMillis;
+    private final long storeLatencyMillis;
+
+    private final Map<String, Set<String>> groups = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Element>> privacyLists = new ConcurrentHashMap<>();
+    private final Map<String, String> defaultPrivacyLists = new ConcurrentHashMap<>();
+    private final Map<String, Date> lockouts = new ConcurrentHashMap<>();
+    private final LongAdder routedMessages = new LongAdder();
+    private final LongAdder routedBytes = new LongAdder();
+    private final LongAdder emails = new LongAdder();
+
+    /**
+     * @param smtpLatencyMillis the time it takes to hand over a batch of emails.
+     * @param storeLatencyMillis the time it takes to write group members or privacy lists.
+     */
+    InMemoryRegistrationServices(long smtpLatencyMillis, long storeLatencyMillis) {
+        this.smtpLatencyMillis = smtpLatencyMillis;
+        this.storeLatencyMillis = storeLatencyMillis;
+    }
+
+    public void route(Message message) {
+        routedMessages.increment();
+        routedBytes.add(message.toXML().length());
+    }
+
+    public void discoverFeature(JID from, JID entity, String feature, Consumer<Boolean> callback) {
+        callback.accept(true);
+    }
+
+    public void sendEmails(List<RegistrationEmailOutbox.Email> batch, RegistrationEmailOutbox.Delivery delivery) {
+        // One SMTP session per batch.
+        sleep(smtpLatencyMillis);
+        emails.add(batch.size());
+    }
+
+    public void addGroupMember(String groupName, JID member) {
+        sleep(storeLatencyMillis);
+        groups.computeIfAbsent(groupName, name -> ConcurrentHashMap.newKeySet()).add(member.getNode());
+    }
+
+    public boolean isGroupMember(String groupName, String username) {
+        final Set<String> members = groups.get(groupName);
+        return members != null && members.contains(username);
+    }
+
+    public void addPrivacyLists(String username, List<PrivacyListTemplate.ListTemplate> lists) {
+        sleep(storeLatencyMillis);
+        final Map<String, Element> userLists = privacyLists.computeIfAbsent(username, name -> new ConcurrentHashMap<>());
+        for (PrivacyListTemplate.ListTemplate list : lists) {
+            userLists.put(list.getName(), list.createElement());
+            if (list.isDefault()) {
+                defaultPrivacyLists.put(username, list.getName());
+            }
+        }
+    }
+
+    public void disableAccount(String username, Date start) {
+        lockouts.put(username, start);
+    }
+
+    public boolean hasLockout(String username) {
+        return lockouts.containsKey(username);
+    }
+
+    public void start() {
+    }
+
+    public void stop() {
+    }
+
+    long getRoutedMessages() {
+        return routedMessages.sum();
+    }
+
+    long getRoutedBytes() {
+        return routedBytes.sum();
+    }
+
+    long getEmails() {
+        return emails.sum();
+    }
+
+    int getGroupMembers() {
+        int count = 0;
+        for (Set<String> members : groups.values()) {
+            count += members.size();
+        }
+        return count;
+    }
+
+    int getPrivacyListUsers() {
+        return privacyLists.size();
+    }
+
+    int getLockouts() {
+        return lockouts.size();
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jivesoftware.openfire.event.UserEventDispatcher;
+import org.jivesoftware.openfire.user.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the registration of a new user with every registration action enabled.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RegistrationActionsBenchmark {
+
+    private static final int USERS = 1024;
+
+    private RegistrationPlugin plugin;
+    private User[] users;
+    private final AtomicInteger next = new AtomicInteger();
+
+    @Setup
+    public void setUp() {
+        plugin = RegistrationFixture.createPlugin(new StubRegistrationServices());
+        users = RegistrationFixture.createUsers(USERS);
+    }
+
+    @TearDown
+    public void tearDown() {
+        plugin.stop();
+    }
+
+    /**
+     * The user created event, as dispatched by Openfire. The event queues the registration actions on the
+     * pipeline, which blocks when it is full, so under sustained load this measures the throughput of the
+     * pipeline.
+     */
+    @Benchmark
+    public void userCreated() {
+        UserEventDispatcher.dispatchEvent(nextUser(), UserEventDispatcher.EventType.user_created,
+                Collections.emptyMap());
+    }
+
+    /**
+     * The registration actions of one user, executed on the calling thread: notifications, welcome
+     * messages, group, privacy lists and lockout.
+     */
+    @Benchmark
+    public void applyRegistrationActions() {
+        plugin.applyRegistrationActions(nextUser(), true);
+    }
+
+    private User nextUser() {
+        return users[next.getAndIncrement() & (USERS - 1)];
+    }
+}
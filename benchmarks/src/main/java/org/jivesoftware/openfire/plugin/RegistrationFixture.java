@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jivesoftware.openfire.user.User;
+
+/**
+ * The configuration shared by the benchmarks: every registration action is enabled, with a raw welcome
+ * message, two privacy lists of which one is restricted to a group, and a few notification contacts.
+ */
+final class RegistrationFixture {
+
+    static final String SERVER_NAME = "example.org";
+
+    static final String WELCOME_RAW_MSG = "<messages>"
+            + "<message type=\"chat\"><subject>Welcome</subject>"
+            + "<body>Welcome to ${domain}, ${name}! Your address is ${username}@${domain}.</body></message>"
+            + "<message type=\"headline\"><body>Read the rules at https://${domain}/rules</body>"
+            + "<x xmlns=\"jabber:x:oob\"><url>https://${domain}/rules?user=${username}</url></x></message>"
+            + "</messages>";
+
+    static final String PRIVACY_LIST = "<lists>"
+            + "<list name=\"default\">"
+            + "<item action=\"deny\" order=\"100\" type=\"subscription\" value=\"none\"><message/><presence-in/></item>"
+            + "<item action=\"allow\" order=\"200\"/>"
+            + "</list>"
+            + "<list name=\"staff\" group=\"Staff\"><item action=\"allow\" order=\"1\"/></list>"
+            + "</lists>";
+
+    static final String IM_CONTACTS = "admin,operator,support@example.org,helpdesk";
+
+    static final String EMAIL_CONTACTS = "admin@example.org,operator@example.org";
+
+    private RegistrationFixture() {
+    }
+
+    static Map<String, String> properties() {
+        final Map<String, String> properties = new HashMap<>();
+        properties.put(RegistrationPlugin.IM_NOTIFICATION_ENABLED, "true");
+        properties.put(RegistrationPlugin.EMAIL_NOTIFICATION_ENABLED, "true");
+        properties.put(RegistrationPlugin.IM_CONTACTS, IM_CONTACTS);
+        properties.put(RegistrationPlugin.EMAIL_CONTACTS, EMAIL_CONTACTS);
+        properties.put(RegistrationPlugin.WELCOME_ENABLED, "true");
+        properties.put(RegistrationPlugin.WELCOME_RAW_MSG, WELCOME_RAW_MSG);
+        properties.put(RegistrationPlugin.GROUP_ENABLED, "true");
+        properties.put(RegistrationPlugin.REGISTRAION_GROUP, "Users");
+        properties.put(RegistrationPlugin.PRIVACYLIST_ENABLED, "true");
+        properties.put(RegistrationPlugin.REGISTRAION_PRIVACYLIST, PRIVACY_LIST);
+        properties.put(RegistrationPlugin.REGISTRAION_PRIVACYLIST_NAME, "default");
+        properties.put(RegistrationPlugin.REGISTRATION_AUTO_LOCKOUT, "86400");
+        return properties;
+    }
+
+    static RegistrationPlugin createPlugin(RegistrationServices services) {
+        final RegistrationPlugin plugin = new RegistrationPlugin(SERVER_NAME, services, properties()::get,
+                createDataDirectory());
+        plugin.start();
+        return plugin;
+    }
+
+    /**
+     * Creates an empty directory for the files of the plugin, such as the email outbox.
+     */
+    static File createDataDirectory() {
+        try {
+            final File directory = Files.createTempDirectory("registration-benchmark").toFile();
+            directory.deleteOnExit();
+            return directory;
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Creates users up front, so that their construction is not measured.
+     */
+    static User[] createUsers(int count) {
+        final Date now = new Date();
+        final User[] users = new User[count];
+        for (int i = 0; i < count; i++) {
+            users[i] = new User("user" + i, "User " + i, "user" + i + "@example.org", now, now);
+        }
+        return users;
+    }
+}
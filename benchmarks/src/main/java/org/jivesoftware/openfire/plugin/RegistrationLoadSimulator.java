@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.openfire.event.UserEventDispatcher;
+import org.jivesoftware.openfire.user.User;
+
+/**
+ * Fires user created events at the registration plugin at a configured rate and concurrency, against
+ * in-memory stand-ins for the message router, the email relay and the group and privacy list stores.
+ *
+ * The simulator reports every second how many registrations were submitted and completed, the depth of
+ * the pipeline queue and of the email outbox, and at the end the sustained
+ * registration rate and the latency seen by the callers of <tt>createUser</tt>, which dispatch the event.
+ * Options are given as <tt>--name=value</tt>:
+ * <ul>
+ *     <li><tt>rate</tt> - registrations per second, 0 for as fast as possible. The default is 100.</li>
+ *     <li><tt>threads</tt> - the number of threads that register users. The default is 4.</li>
+ *     <li><tt>duration</tt> - the duration of the run in seconds. The default is 60.</li>
+ *     <li><tt>smtp-latency</tt> - the milliseconds it takes to hand over a batch of emails. The default is 50.</li>
+ *     <li><tt>store-latency</tt> - the milliseconds it takes to write group members or privacy lists.
+ *         The default is 5.</li>
+ * </ul>
+ * Plugin properties, such as <tt>registration.pipeline.threads</tt>, can be overridden with system properties.
+ */
+public class RegistrationLoadSimulator {
+
+    public static void main(String[] args) throws InterruptedException {
+        final Map<String, String> options = parseOptions(args);
+        final int rate = Integer.parseInt(options.getOrDefault("rate", "100"));
+        final int threads = Math.max(1, Integer.parseInt(options.getOrDefault("threads", "4")));
+        final long duration = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("duration", "60")));
+        final long smtpLatency = Long.parseLong(options.getOrDefault("smtp-latency", "50"));
+        final long storeLatency = Long.parseLong(options.getOrDefault("store-latency", "5"));
+
+        final Map<String, String> properties = RegistrationFixture.properties();
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("registration.")) {
+                properties.put(name, System.getProperty(name));
+            }
+        }
+        final InMemoryRegistrationServices services = new InMemoryRegistrationServices(smtpLatency, storeLatency);
+        final RegistrationPlugin plugin = new RegistrationPlugin(RegistrationFixture.SERVER_NAME, services, properties::get,
+                RegistrationFixture.createDataDirectory());
+        plugin.start();
+        final RegistrationMetrics.StageMetrics callerLatency = new RegistrationMetrics.StageMetrics();
+        final AtomicLong submitted = new AtomicLong();
+
+        System.out.printf("Registering users at %s per second with %d thread(s) for %d s.%n",
+                rate > 0 ? Integer.toString(rate) : "max", threads, TimeUnit.NANOSECONDS.toSeconds(duration));
+
+        final long start = System.nanoTime();
+        final long end = start + duration;
+        final List<Thread> callers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            final int caller = i;
+            final Thread thread = new Thread(() -> {
+                // Every caller registers its share of the rate, with the same pacing as the backfill.
+                final long interval = rate > 0 ? TimeUnit.SECONDS.toNanos(1) * threads / rate : 0;
+                long next = System.nanoTime();
+                long sequence = 0;
+                while (System.nanoTime() < end) {
+                    if (interval > 0) {
+                        final long wait = next - System.nanoTime();
+                        if (wait > 0) {
+                            try {
+                                TimeUnit.NANOSECONDS.sleep(wait);
+                            }
+                            catch (InterruptedException e) {
+                                return;
+                            }
+                        }
+                        next = Math.max(next, System.nanoTime() - interval) + interval;
+                    }
+                    final Date now = new Date();
+                    final String username = "load" + caller + "x" + sequence++;
+                    final User user = new User(username, "Load " + username, username + "@example.org", now, now);
+                    final long dispatched = System.nanoTime();
+                    UserEventDispatcher.dispatchEvent(user, UserEventDispatcher.EventType.user_created,
+                            Collections.emptyMap());
+                    callerLatency.record(System.nanoTime() - dispatched, false);
+                    submitted.incrementAndGet();
+                }
+            }, "registration-load-" + i);
+            thread.setDaemon(true);
+            callers.add(thread);
+            thread.start();
+        }
+
+        System.out.println("second  submitted  completed  queue  outbox  dropped");
+        long previousCompleted = 0;
+        int second = 0;
+        while (System.nanoTime() < end) {
+            TimeUnit.SECONDS.sleep(1);
+            final long completed = completed(plugin);
+            System.out.printf("%6d %10d %10d %6d %7d %8d%n", ++second, submitted.get(), completed - previousCompleted,
+                    plugin.getPipelineQueueSize(), plugin.getEmailOutboxSize(), plugin.getPipelineDroppedCount());
+            previousCompleted = completed;
+        }
+        for (Thread thread : callers) {
+            thread.join();
+        }
+        final long completedInRun = completed(plugin);
+        final double elapsed = (System.nanoTime() - start) / 1e9;
+
+        // Drains the queue and flushes the pending group memberships.
+        plugin.stop();
+        final double drained = (System.nanoTime() - start) / 1e9;
+
+        System.out.println();
+        System.out.printf("Submitted          : %d (%.1f per second)%n", submitted.get(), submitted.get() / elapsed);
+        System.out.printf("Completed          : %d in %.1f s (%.1f per second), %d after draining in %.1f s%n",
+                completedInRun, elapsed, completedInRun / elapsed, completed(plugin), drained);
+        System.out.printf("Dropped            : %d, unsent emails: %d%n", plugin.getPipelineDroppedCount(),
+                plugin.getEmailOutboxSize());
+        System.out.printf("createUser latency : mean %.3f ms, median %.3f ms, 99th percentile %.3f ms, max %.3f ms%n",
+                callerLatency.getMeanMillis(), callerLatency.getMedianMillis(),
+                callerLatency.get99thPercentileMillis(), callerLatency.getMaxMillis());
+        for (RegistrationMetrics.Stage stage : RegistrationMetrics.Stage.values()) {
+            final RegistrationMetrics.StageMetrics metrics = plugin.getMetrics().getStage(stage);
+            System.out.printf("%-18s : %d, %d failed, mean %.3f ms, 99th percentile %.3f ms%n",
+                    stage.name().toLowerCase(), metrics.getCount(), metrics.getFailures(),
+                    metrics.getMeanMillis(), metrics.get99thPercentileMillis());
+        }
+        System.out.printf("Messages routed    : %d (%d bytes), emails sent: %d%n",
+                services.getRoutedMessages(), services.getRoutedBytes(), services.getEmails());
+        System.out.printf("Stored             : %d group members, privacy lists for %d users, %d lockouts%n",
+                services.getGroupMembers(), services.getPrivacyListUsers(), services.getLockouts());
+    }
+
+    /**
+     * @return the number of registrations whose actions have all been executed. The actions run concurrently, so
+     *         no single stage marks the end of a registration.
+     */
+    private static long completed(RegistrationPlugin plugin) {
+        return plugin.getProcessedRegistrationCount();
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        final Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got '" + arg + "'.");
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        return options;
+    }
+}
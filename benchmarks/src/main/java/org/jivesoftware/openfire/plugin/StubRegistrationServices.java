@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+
+/**
+ * Registration services that only count what they are asked to do, so that the registration actions can be
+ * measured without a running server.
+ */
+class StubRegistrationServices implements RegistrationServices {
+
+    final LongAdder routed = new LongAdder();
+    final LongAdder emails = new LongAdder();
+    final LongAdder groupMembers = new LongAdder();
+    final LongAdder privacyLists = new LongAdder();
+    final LongAdder privacyListItems = new LongAdder();
+    final LongAdder lockouts = new LongAdder();
+
+    public void route(Message message) {
+        routed.increment();
+    }
+
+    public void discoverFeature(JID from, JID entity, String feature, Consumer<Boolean> callback) {
+        callback.accept(true);
+    }
+
+    public void sendEmails(List<RegistrationEmailOutbox.Email> batch, RegistrationEmailOutbox.Delivery delivery) {
+        emails.add(batch.size());
+    }
+
+    public void addGroupMember(String groupName, JID member) {
+        groupMembers.increment();
+    }
+
+    public boolean isGroupMember(String groupName, String username) {
+        return username.hashCode() % 2 == 0;
+    }
+
+    public void addPrivacyLists(String username, List<PrivacyListTemplate.ListTemplate> lists) {
+        for (PrivacyListTemplate.ListTemplate list : lists) {
+            // The privacy list manager is given a copy of the list element.
+            privacyListItems.add(list.createElement().nodeCount());
+            privacyLists.increment();
+        }
+    }
+
+    public void disableAccount(String username, Date start) {
+        lockouts.increment();
+    }
+
+    public boolean hasLockout(String username) {
+        return false;
+    }
+
+    public void start() {
+    }
+
+    public void stop() {
+    }
+}
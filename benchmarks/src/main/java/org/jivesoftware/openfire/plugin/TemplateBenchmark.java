@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.dom4j.DocumentException;
+import org.dom4j.Element;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+
+/**
+ * Measures the compilation of the raw welcome message and the privacy lists, which happens when they are
+ * changed, and the creation of the stanzas for a new user, which happens for every registration.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TemplateBenchmark {
+
+    private final JID from = new JID(RegistrationFixture.SERVER_NAME);
+    private final JID to = new JID("user", RegistrationFixture.SERVER_NAME, null);
+    private WelcomeMessageTemplate welcomeTemplate;
+    private PrivacyListTemplate privacyListTemplate;
+
+    @Setup
+    public void setUp() throws DocumentException {
+        welcomeTemplate = WelcomeMessageTemplate.compile(RegistrationFixture.WELCOME_RAW_MSG, from);
+        privacyListTemplate = PrivacyListTemplate.compile(RegistrationFixture.PRIVACY_LIST, "default");
+    }
+
+    @Benchmark
+    public WelcomeMessageTemplate compileWelcomeMessage() throws DocumentException {
+        return WelcomeMessageTemplate.compile(RegistrationFixture.WELCOME_RAW_MSG, from);
+    }
+
+    @Benchmark
+    public List<Message> createWelcomeMessages() {
+        return welcomeTemplate.createMessages(to, "User");
+    }
+
+    @Benchmark
+    public WelcomeMessageTemplate createPlainWelcomeMessage() {
+        return WelcomeMessageTemplate.forText("Welcome", "Welcome to Openfire!", from);
+    }
+
+    @Benchmark
+    public PrivacyListTemplate compilePrivacyList() throws DocumentException {
+        return PrivacyListTemplate.compile(RegistrationFixture.PRIVACY_LIST, "default");
+    }
+
+    @Benchmark
+    public void createPrivacyListElements(Blackhole blackhole) {
+        for (PrivacyListTemplate.ListTemplate list : privacyListTemplate.getLists()) {
+            final Element element = list.createElement();
+            blackhole.consume(element);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+/**
+ * Verifies the captcha answers of web sign-ups.
+ *
+ * Implementations are shared by all sign-up requests, so they must be thread safe.
+ */
+public interface CaptchaVerifier {
+
+    /**
+     * The outcome of a verification.
+     */
+    enum Result {
+        /** The answer is correct. */
+        VALID,
+        /** The answer is wrong. */
+        INVALID,
+        /** The answer could not be verified, for example because the verification service did not respond in time. */
+        ERROR
+    }
+
+    /**
+     * Verifies an answer.
+     *
+     * @param remoteAddress the address of the client.
+     * @param challenge the challenge that was presented to the client.
+     * @param response the answer of the client.
+     * @return the outcome of the verification.
+     */
+    Result verify(String remoteAddress, String challenge, String response);
+
+    /**
+     * @return the HTML that presents the challenge in the sign-up form.
+     */
+    String createHtml();
+}
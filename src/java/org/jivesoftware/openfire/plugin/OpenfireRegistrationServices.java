@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.function.Consumer;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import com.sun.mail.smtp.SMTPSendFailedException;
+import org.dom4j.Element;
+import org.jivesoftware.openfire.IQResultListener;
+import org.jivesoftware.openfire.IQRouter;
+import org.jivesoftware.openfire.MessageRouter;
+import org.jivesoftware.openfire.group.GroupManager;
+import org.jivesoftware.openfire.group.GroupNotFoundException;
+import org.jivesoftware.openfire.lockout.LockOutManager;
+import org.jivesoftware.openfire.privacy.PrivacyList;
+import org.jivesoftware.openfire.privacy.PrivacyListManager;
+import org.jivesoftware.util.EmailService;
+import org.jivesoftware.util.JiveGlobals;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+
+/**
+ * The registration services of a running Openfire server.
+ *
+ * Groups are resolved through the {@link GroupManager} on every call. Its group cache is shared by the cluster and
+ * kept up to date when members are added or removed anywhere, so a copy kept by the plugin could only go stale.
+ *
+ * Emails are composed by the {@link EmailService}, but sent over an SMTP connection of our own that is configured
+ * with the same <tt>mail.*</tt> properties: the email service logs delivery failures instead of reporting them, and
+ * the outbox has to know about them to retry. Failures that a retry cannot fix, a malformed address or a permanent
+ * (5xx) refusal of the server, are reported per email, so that the outbox drops only that email.
+ */
+class OpenfireRegistrationServices implements RegistrationServices {
+
+    private static final Logger Log = LoggerFactory.getLogger(OpenfireRegistrationServices.class);
+
+    private static final long DISCOVERY_TIMEOUT_MILLIS = 30000;
+
+    private final MessageRouter router;
+    private final IQRouter iqRouter;
+
+    OpenfireRegistrationServices(MessageRouter router, IQRouter iqRouter) {
+        this.router = router;
+        this.iqRouter = iqRouter;
+    }
+
+    public void start() {
+    }
+
+    public void stop() {
+    }
+
+    public void route(Message message) {
+        router.route(message);
+    }
+
+    public void discoverFeature(JID from, JID entity, String feature, Consumer<Boolean> callback) {
+        final IQ query = new IQ(IQ.Type.get);
+        query.setFrom(from);
+        query.setTo(entity);
+        query.setChildElement("query", "http://jabber.org/protocol/disco#info");
+        iqRouter.addIQResultListener(query.getID(), new IQResultListener() {
+            public void receivedAnswer(IQ answer) {
+                callback.accept(answer.getType() == IQ.Type.result && hasFeature(answer, feature));
+            }
+
+            public void answerTimeout(String id) {
+                callback.accept(false);
+            }
+        }, DISCOVERY_TIMEOUT_MILLIS);
+        iqRouter.route(query);
+    }
+
+    private static boolean hasFeature(IQ answer, String feature) {
+        final Element query = answer.getChildElement();
+        if (query == null) {
+            return false;
+        }
+        for (Object element : query.elements("feature")) {
+            if (feature.equals(((Element) element).attributeValue("var"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void sendEmails(List<RegistrationEmailOutbox.Email> emails, RegistrationEmailOutbox.Delivery delivery)
+            throws MessagingException {
+        final EmailService emailService = EmailService.getInstance();
+        final List<RegistrationEmailOutbox.Email> composed = new ArrayList<>(emails.size());
+        final List<MimeMessage> messages = new ArrayList<>(emails.size());
+        for (RegistrationEmailOutbox.Email email : emails) {
+            try {
+                final MimeMessage message = emailService.createMimeMessage(null, email.getRecipients().get(0),
+                        email.getFromName(), email.getFromAddress(), email.getSubject(), email.getBody(), null);
+                if (message == null) {
+                    // The email service returns null for addresses it cannot parse.
+                    throw new AddressException("Unable to create the email.", email.getRecipients().toString());
+                }
+                final InternetAddress[] recipients = new InternetAddress[email.getRecipients().size()];
+                for (int i = 0; i < recipients.length; i++) {
+                    recipients[i] = new InternetAddress(email.getRecipients().get(i), true);
+                }
+                message.setRecipients(javax.mail.Message.RecipientType.TO, recipients);
+                composed.add(email);
+                messages.add(message);
+            }
+            catch (AddressException e) {
+                delivery.rejected(email, e);
+            }
+        }
+        if (messages.isEmpty()) {
+            return;
+        }
+        // Sends all messages over one SMTP session.
+        final String host = JiveGlobals.getProperty("mail.smtp.host", "localhost");
+        final int port = JiveGlobals.getIntProperty("mail.smtp.port", 25);
+        final String username = JiveGlobals.getProperty("mail.smtp.username");
+        final String password = JiveGlobals.getProperty("mail.smtp.password");
+        final boolean ssl = JiveGlobals.getBooleanProperty("mail.smtp.ssl");
+        final Transport transport = createSession(host, port, username, ssl).getTransport(ssl ? "smtps" : "smtp");
+        transport.connect(host, port, username, password);
+        try {
+            for (int i = 0; i < messages.size(); i++) {
+                final RegistrationEmailOutbox.Email email = composed.get(i);
+                final MimeMessage message = messages.get(i);
+                message.saveChanges();
+                try {
+                    transport.sendMessage(message, message.getAllRecipients());
+                    delivery.sent(email);
+                }
+                catch (SMTPSendFailedException e) {
+                    // The server refused the message itself, for example as too large.
+                    if (e.getReturnCode() / 100 != 5) {
+                        throw e;
+                    }
+                    delivery.rejected(email, e);
+                }
+                catch (SendFailedException e) {
+                    final Address[] unsent = e.getValidUnsentAddresses();
+                    if (unsent != null && unsent.length > 0) {
+                        throw e;
+                    }
+                    // Recipients that the server refuses will be refused again, so they are not retried.
+                    final Address[] sent = e.getValidSentAddresses();
+                    if (sent != null && sent.length > 0) {
+                        Log.warn("Registration plugin : the mail server refused the notification email to {}.",
+                                Arrays.toString(e.getInvalidAddresses()), e);
+                        delivery.sent(email);
+                    }
+                    else {
+                        delivery.rejected(email, e);
+                    }
+                }
+            }
+        }
+        finally {
+            try {
+                transport.close();
+            }
+            catch (MessagingException e) {
+                Log.debug("Registration plugin : unable to close the connection to the mail server.", e);
+            }
+        }
+    }
+
+    /**
+     * Creates a mail session with the settings that the {@link EmailService} uses.
+     */
+    private static Session createSession(String host, int port, String username, boolean ssl) {
+        final Properties properties = new Properties();
+        properties.setProperty("mail.smtp.host", host);
+        properties.setProperty("mail.smtp.port", String.valueOf(port));
+        // Allow messages with a mix of valid and invalid recipients to still be sent.
+        properties.setProperty("mail.smtp.sendpartial", "true");
+        properties.setProperty("mail.debug", String.valueOf(JiveGlobals.getBooleanProperty("mail.debug")));
+        if (ssl) {
+            properties.setProperty("mail.smtp.socketFactory.class", "org.jivesoftware.util.SimpleSSLSocketFactory");
+            properties.setProperty("mail.smtp.socketFactory.fallback", "true");
+        }
+        if (username != null) {
+            properties.setProperty("mail.smtp.auth", "true");
+        }
+        return Session.getInstance(properties, null);
+    }
+
+    public void addGroupMember(String groupName, JID member) {
+        try {
+            // The member collection of a group persists the addition, and notifies the rest of the cluster.
+            GroupManager.getInstance().getGroup(groupName).getMembers().add(member);
+        }
+        catch (GroupNotFoundException e) {
+            throw new IllegalArgumentException("Group '" + groupName + "' does not exist.", e);
+        }
+    }
+
+    public boolean isGroupMember(String groupName, String username) {
+        try {
+            return GroupManager.getInstance().getGroup(groupName).isUser(username);
+        }
+        catch (GroupNotFoundException e) {
+            Log.warn("Registration plugin : privacy list targets unknown group '{}'.", groupName);
+            return false;
+        }
+    }
+
+    public void addPrivacyLists(String username, List<PrivacyListTemplate.ListTemplate> lists) {
+        final PrivacyListManager privacyListManager = PrivacyListManager.getInstance();
+        PrivacyList defaultList = null;
+        for (PrivacyListTemplate.ListTemplate list : lists) {
+            final PrivacyList privacyList = privacyListManager.createPrivacyList(username, list.getName(), list.createElement());
+            if (list.isDefault()) {
+                defaultList = privacyList;
+            }
+        }
+        if (defaultList != null) {
+            privacyListManager.changeDefaultList(username, defaultList, null);
+        }
+    }
+
+    public void disableAccount(String username, Date start) {
+        LockOutManager.getInstance().disableAccount(username, start, null);
+    }
+
+    public boolean hasLockout(String username) {
+        return LockOutManager.getInstance().getDisabledStatus(username) != null;
+    }
+}
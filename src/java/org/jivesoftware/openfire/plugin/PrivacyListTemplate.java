@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+
+/**
+ * The precompiled, validated privacy lists that are created for newly registered users.
+ *
+ * The XML is either a single <tt>list</tt> element, which is created with the configured default name and
+ * becomes the default list of the user, or a <tt>lists</tt> element that contains several <tt>list</tt>
+ * elements. In the latter form, every list can have these attributes:
+ * <ul>
+ *     <li><tt>name</tt> - the name of the list. Defaults to the configured name for the first list.</li>
+ *     <li><tt>default</tt> - if <tt>true</tt>, the list becomes the default list of the user. If no list
+ *     has this attribute, the first list is the default list. At most one list can have it.</li>
+ *     <li><tt>group</tt> - if present, the list is only created for users that are a member of this group.</li>
+ * </ul>
+ *
+ * Instances are immutable. The parsed elements are never handed out: every user gets a copy.
+ */
+final class PrivacyListTemplate {
+
+    /**
+     * One privacy list of the template.
+     */
+    static final class ListTemplate {
+
+        private final String name;
+        private final String group;
+        private final boolean isDefault;
+        private final Element element;
+
+        private ListTemplate(String name, String group, boolean isDefault, Element element) {
+            this.name = name;
+            this.group = group;
+            this.isDefault = isDefault;
+            this.element = element;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        /**
+         * @return the group a user must be a member of for this list to be created, or null.
+         */
+        String getGroup() {
+            return group;
+        }
+
+        boolean isDefault() {
+            return isDefault;
+        }
+
+        /**
+         * @return a new copy of the list element, which the caller is free to modify.
+         */
+        Element createElement() {
+            return element.createCopy();
+        }
+    }
+
+    private final List<ListTemplate> lists;
+
+    private PrivacyListTemplate(List<ListTemplate> lists) {
+        this.lists = Collections.unmodifiableList(lists);
+    }
+
+    /**
+     * Parses and validates privacy list XML.
+     *
+     * @param xml the XML to parse.
+     * @param defaultName the name of the list if the XML contains a single list, or of the first list if
+     *        that does not have a name attribute.
+     * @return the compiled template.
+     * @throws DocumentException if the XML is malformed or does not describe valid privacy lists.
+     */
+    static PrivacyListTemplate compile(String xml, String defaultName) throws DocumentException {
+        if (xml == null || xml.trim().isEmpty()) {
+            throw new DocumentException("No privacy list defined.");
+        }
+        final Document document = DocumentHelper.parseText(xml);
+        final Element root = document.getRootElement();
+        final List<ListTemplate> lists = new ArrayList<>();
+        if (root.getName().equals("lists")) {
+            final List<Element> elements = new ArrayList<>();
+            for (Iterator i = root.elementIterator(); i.hasNext();) {
+                elements.add((Element) i.next());
+            }
+            if (elements.isEmpty()) {
+                throw new DocumentException("The 'lists' element does not contain any list.");
+            }
+            int defaults = 0;
+            for (Element element : elements) {
+                if (Boolean.parseBoolean(element.attributeValue("default"))) {
+                    defaults++;
+                }
+            }
+            if (defaults > 1) {
+                throw new DocumentException("Only one privacy list can be the default, but " + defaults
+                        + " lists have default=\"true\".");
+            }
+            final boolean hasDefault = defaults == 1;
+            final Set<String> names = new HashSet<>();
+            for (int index = 0; index < elements.size(); index++) {
+                final Element element = checkList(elements.get(index));
+                String name = element.attributeValue("name");
+                if (name == null && index == 0) {
+                    name = defaultName;
+                }
+                if (name == null || name.trim().isEmpty()) {
+                    throw new DocumentException("Privacy list " + (index + 1) + " does not have a name.");
+                }
+                if (!names.add(name)) {
+                    throw new DocumentException("Duplicate privacy list name '" + name + "'.");
+                }
+                final boolean isDefault = hasDefault ? Boolean.parseBoolean(element.attributeValue("default")) : index == 0;
+                lists.add(new ListTemplate(name, element.attributeValue("group"), isDefault, element.createCopy()));
+            }
+        }
+        else {
+            if (defaultName == null || defaultName.trim().isEmpty()) {
+                throw new DocumentException("No privacy list name defined.");
+            }
+            lists.add(new ListTemplate(defaultName, null, true, checkList(root).createCopy()));
+        }
+        return new PrivacyListTemplate(lists);
+    }
+
+    List<ListTemplate> getLists() {
+        return lists;
+    }
+
+    private static Element checkList(Element element) throws DocumentException {
+        if (!element.getName().equals("list")) {
+            throw new DocumentException("Unexpected element '" + element.getName() + "', expected 'list'.");
+        }
+        for (Iterator i = element.elementIterator(); i.hasNext();) {
+            final Element item = (Element) i.next();
+            if (!item.getName().equals("item")) {
+                throw new DocumentException("Unexpected element '" + item.getName() + "' in privacy list, expected 'item'.");
+            }
+            final String action = item.attributeValue("action");
+            if (!"allow".equals(action) && !"deny".equals(action)) {
+                throw new DocumentException("Privacy list item has an invalid action: " + action);
+            }
+            try {
+                Integer.parseInt(item.attributeValue("order"));
+            }
+            catch (NumberFormatException e) {
+                throw new DocumentException("Privacy list item has an invalid order: " + item.attributeValue("order"));
+            }
+        }
+        return element;
+    }
+}
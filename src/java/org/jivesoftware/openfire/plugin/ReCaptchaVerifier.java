@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import net.tanesha.recaptcha.ReCaptchaException;
+import net.tanesha.recaptcha.ReCaptchaImpl;
+import net.tanesha.recaptcha.ReCaptchaResponse;
+import net.tanesha.recaptcha.http.HttpLoader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Verifies captcha answers with the reCAPTCHA service.
+ *
+ * One client is shared by all sign-up requests. Its HTTP requests have a connect and read timeout, and read the
+ * complete response, so that the JDK can reuse the (keep-alive) connection for the next verification.
+ */
+class ReCaptchaVerifier implements CaptchaVerifier {
+
+    private static final Logger Log = LoggerFactory.getLogger(ReCaptchaVerifier.class);
+
+    /**
+     * The error that the reCAPTCHA client reports when the service cannot be reached.
+     */
+    private static final String NOT_REACHABLE = "recaptcha-not-reachable";
+
+    private final ReCaptchaImpl reCaptcha;
+
+    ReCaptchaVerifier(String publicKey, String privateKey, boolean includeNoScript, int timeoutMillis) {
+        reCaptcha = new ReCaptchaImpl();
+        reCaptcha.setPublicKey(publicKey);
+        reCaptcha.setPrivateKey(privateKey);
+        reCaptcha.setIncludeNoscript(includeNoScript);
+        reCaptcha.setRecaptchaServer(ReCaptchaImpl.HTTPS_SERVER);
+        reCaptcha.setHttpLoader(new TimeoutHttpLoader(timeoutMillis));
+    }
+
+    @Override
+    public Result verify(String remoteAddress, String challenge, String response) {
+        final ReCaptchaResponse answer = reCaptcha.checkAnswer(remoteAddress, challenge, response);
+        if (answer.isValid()) {
+            return Result.VALID;
+        }
+        if (NOT_REACHABLE.equals(answer.getErrorMessage())) {
+            return Result.ERROR;
+        }
+        return Result.INVALID;
+    }
+
+    @Override
+    public String createHtml() {
+        return reCaptcha.createRecaptchaHtml(null, null, 0);
+    }
+
+    /**
+     * Loads URLs with a connect and read timeout.
+     */
+    private static class TimeoutHttpLoader implements HttpLoader {
+
+        private final int timeoutMillis;
+
+        TimeoutHttpLoader(int timeoutMillis) {
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        public String httpGet(String url) {
+            return load(url, null);
+        }
+
+        public String httpPost(String url, String postdata) {
+            return load(url, postdata);
+        }
+
+        private String load(String url, String postdata) {
+            try {
+                final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+                connection.setConnectTimeout(timeoutMillis);
+                connection.setReadTimeout(timeoutMillis);
+                connection.setUseCaches(false);
+                if (postdata != null) {
+                    connection.setRequestMethod("POST");
+                    connection.setDoOutput(true);
+                    connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+                    try (OutputStream out = connection.getOutputStream()) {
+                        out.write(postdata.getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+                try (InputStream in = connection.getInputStream()) {
+                    final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                    final byte[] bytes = new byte[1024];
+                    int read;
+                    while ((read = in.read(bytes)) != -1) {
+                        buf.write(bytes, 0, read);
+                    }
+                    return new String(buf.toByteArray(), StandardCharsets.UTF_8);
+                }
+            }
+            catch (IOException e) {
+                Log.warn("Registration plugin : unable to reach the reCAPTCHA service: " + e.getMessage());
+                throw new ReCaptchaException("Cannot load URL: " + url, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.util.Collection;
+import java.util.Collections;
+
+import org.jivesoftware.openfire.user.User;
+
+/**
+ * An action that is executed for every new user, next to the actions of the plugin itself. Actions are added with
+ * {@link RegistrationPlugin#addRegistrationAction(RegistrationAction)}.
+ *
+ * Actions run concurrently, so implementations must be thread safe. An action only runs after the actions it
+ * depends on have succeeded; if one of them fails or times out, the action is skipped. An action that fails or
+ * times out does not affect the actions that do not depend on it.
+ */
+public interface RegistrationAction {
+
+    /**
+     * The name of the action that sends the welcome message.
+     */
+    String WELCOME = "welcome";
+
+    /**
+     * The name of the action that adds the user to the default group.
+     */
+    String GROUP = "group";
+
+    /**
+     * The name of the action that gives the user the default privacy list(s).
+     */
+    String PRIVACY_LIST = "privacy_list";
+
+    /**
+     * The name of the action that schedules the automatic lockout of the user.
+     */
+    String LOCKOUT = "lockout";
+
+    /**
+     * @return the name of the action, which must be unique.
+     */
+    String getName();
+
+    /**
+     * Returns the names of the actions that have to succeed before this action runs: the names of actions that were
+     * added earlier, or of the actions of the plugin. A dependency on an action of the plugin that is disabled is
+     * ignored.
+     *
+     * @return the names of the actions this action depends on.
+     */
+    default Collection<String> getDependencies() {
+        return Collections.emptySet();
+    }
+
+    /**
+     * Returns how long the action may take. An action that takes longer counts as failed, and is interrupted if it
+     * is {@link #isInterruptible() interruptible}.
+     *
+     * @return the timeout in milliseconds, or 0 to use the timeout defined by the plugin.
+     */
+    default long getTimeoutMillis() {
+        return 0;
+    }
+
+    /**
+     * Returns whether the thread of the action is interrupted when the action times out. Actions that are not
+     * interruptible are left to finish after their timeout, which suits actions that write to the database.
+     *
+     * @return true to be interrupted on timeout.
+     */
+    default boolean isInterruptible() {
+        return false;
+    }
+
+    /**
+     * Executes the action for a new user.
+     *
+     * @param user the new user.
+     * @throws Exception if the action failed.
+     */
+    void execute(User user) throws Exception;
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executes the registration actions of a new user concurrently, in the order given by their dependencies.
+ *
+ * An action starts as soon as the actions it depends on have succeeded, on a pool of action threads. Every action
+ * has a timeout, which starts when the action starts: an action that takes longer counts as timed out. Its thread
+ * is only interrupted if the action is interruptible; the actions of the plugin are not, as an interrupt in the
+ * middle of a database operation can leave it half done, so they are left to finish. Actions that depend on an
+ * action that failed or timed out are skipped; the others are not affected. Waiting for dependencies does not
+ * occupy a thread, so the pool cannot deadlock.
+ */
+class RegistrationActionExecutor {
+
+    private static final Logger Log = LoggerFactory.getLogger(RegistrationActionExecutor.class);
+
+    /**
+     * The outcome of an action.
+     */
+    enum Outcome {
+        SUCCEEDED, FAILED, TIMED_OUT, SKIPPED
+    }
+
+    /**
+     * An action to execute for one registration.
+     */
+    static final class Task {
+
+        private final String name;
+        private final Collection<String> dependencies;
+        private final long timeoutMillis;
+        private final boolean interruptible;
+        private final RegistrationMetrics.Stage stage;
+        private final Callable<?> body;
+
+        /**
+         * @param name the name of the action.
+         * @param dependencies the names of the actions that have to succeed first.
+         * @param timeoutMillis the timeout of the action, or 0 for the default timeout.
+         * @param interruptible true to interrupt the thread of the action when it times out.
+         * @param stage the stage for which the metrics are recorded, or null.
+         * @param body the action.
+         */
+        Task(String name, Collection<String> dependencies, long timeoutMillis, boolean interruptible,
+                RegistrationMetrics.Stage stage, Callable<?> body) {
+            this.name = name;
+            this.dependencies = dependencies;
+            this.timeoutMillis = timeoutMillis;
+            this.interruptible = interruptible;
+            this.stage = stage;
+            this.body = body;
+        }
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final ScheduledThreadPoolExecutor timer;
+    private final RegistrationMetrics metrics;
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+
+    RegistrationActionExecutor(int threads, RegistrationMetrics metrics) {
+        this.metrics = metrics;
+        // The queue is bounded by the registration pipeline, which waits for the actions of a registration.
+        executor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new ActionThreadFactory("registration-action-"));
+        executor.allowCoreThreadTimeOut(true);
+        timer = new ScheduledThreadPoolExecutor(1, new ActionThreadFactory("registration-action-timer-"));
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Executes the actions of a registration, and waits until all of them have completed, timed out or have been
+     * skipped.
+     *
+     * @param tasks the actions, in an order in which every action comes after the actions it depends on.
+     *        Dependencies on actions that are not in the list are ignored.
+     * @param defaultTimeoutMillis the timeout of actions that do not define one.
+     * @return the outcome of every action, by name.
+     */
+    Map<String, Outcome> execute(List<Task> tasks, long defaultTimeoutMillis) {
+        final Map<String, CompletableFuture<Outcome>> outcomes = new LinkedHashMap<>();
+        for (Task task : tasks) {
+            final List<CompletableFuture<Outcome>> dependencies = new ArrayList<>();
+            for (String dependency : task.dependencies) {
+                final CompletableFuture<Outcome> outcome = outcomes.get(dependency);
+                if (outcome != null) {
+                    dependencies.add(outcome);
+                }
+            }
+            final CompletableFuture<Outcome> outcome = new CompletableFuture<>();
+            outcomes.put(task.name, outcome);
+            final long timeout = task.timeoutMillis > 0 ? task.timeoutMillis : defaultTimeoutMillis;
+            if (dependencies.isEmpty()) {
+                start(task, timeout, outcome);
+            }
+            else {
+                CompletableFuture.allOf(dependencies.toArray(new CompletableFuture<?>[0])).thenRun(() -> {
+                    for (CompletableFuture<Outcome> dependency : dependencies) {
+                        if (dependency.join() != Outcome.SUCCEEDED) {
+                            skipped.increment();
+                            outcome.complete(Outcome.SKIPPED);
+                            return;
+                        }
+                    }
+                    start(task, timeout, outcome);
+                });
+            }
+        }
+
+        final Map<String, Outcome> results = new LinkedHashMap<>();
+        boolean interrupted = false;
+        for (Map.Entry<String, CompletableFuture<Outcome>> entry : outcomes.entrySet()) {
+            Outcome outcome = Outcome.SKIPPED;
+            if (!interrupted) {
+                try {
+                    outcome = entry.getValue().get();
+                }
+                catch (InterruptedException e) {
+                    // Shutting down: report the actions that have not completed yet as skipped.
+                    interrupted = true;
+                    Thread.currentThread().interrupt();
+                }
+                catch (ExecutionException e) {
+                    outcome = Outcome.FAILED;
+                }
+            }
+            results.put(entry.getKey(), interrupted ? entry.getValue().getNow(Outcome.SKIPPED) : outcome);
+        }
+        return results;
+    }
+
+    private void start(Task task, long timeoutMillis, CompletableFuture<Outcome> outcome) {
+        try {
+            executor.execute(() -> {
+                final long start = System.nanoTime();
+                final Thread thread = Thread.currentThread();
+                // Guards the interrupt of a timed out action, so it cannot hit the next action of the thread.
+                final Object lock = new Object();
+                final ScheduledFuture<?> timeout = timer.schedule(() -> {
+                    synchronized (lock) {
+                        if (complete(task, outcome, Outcome.TIMED_OUT, start)) {
+                            Log.warn("Registration plugin : the {} action did not complete within {} ms{}.",
+                                    task.name, timeoutMillis, task.interruptible ? "" : ", it is left to finish");
+                            if (task.interruptible) {
+                                thread.interrupt();
+                            }
+                        }
+                    }
+                }, timeoutMillis, TimeUnit.MILLISECONDS);
+                Outcome result = Outcome.SUCCEEDED;
+                try {
+                    task.body.call();
+                }
+                catch (Throwable t) {
+                    result = Outcome.FAILED;
+                    if (!outcome.isDone()) {
+                        Log.error("Registration plugin : the {} action failed.", task.name, t);
+                    }
+                }
+                finally {
+                    timeout.cancel(false);
+                    synchronized (lock) {
+                        complete(task, outcome, result, start);
+                        Thread.interrupted();
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            Log.warn("Registration plugin : the {} action was not executed, the plugin is stopping.", task.name);
+            skipped.increment();
+            outcome.complete(Outcome.SKIPPED);
+        }
+    }
+
+    /**
+     * Sets the outcome of an action, unless it is already set, and records its metrics.
+     *
+     * @return true if the outcome was set.
+     */
+    private boolean complete(Task task, CompletableFuture<Outcome> outcome, Outcome result, long startNanos) {
+        if (!outcome.complete(result)) {
+            return false;
+        }
+        if (result == Outcome.TIMED_OUT) {
+            timedOut.increment();
+        }
+        if (task.stage != null) {
+            metrics.record(task.stage, startNanos, result != Outcome.SUCCEEDED);
+        }
+        return true;
+    }
+
+    /**
+     * Stops the action threads. Actions that are running get a few seconds to finish before they are interrupted.
+     */
+    void shutdown() {
+        timer.shutdownNow();
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        }
+        catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    long getTimedOutCount() {
+        return timedOut.sum();
+    }
+
+    long getSkippedCount() {
+        return skipped.sum();
+    }
+
+    private static class ActionThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        ActionThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, prefix + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
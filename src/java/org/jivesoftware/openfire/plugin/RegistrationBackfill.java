@@ -0,0 +1,403 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.openfire.admin.AdminManager;
+import org.jivesoftware.openfire.group.Group;
+import org.jivesoftware.openfire.group.GroupManager;
+import org.jivesoftware.openfire.group.GroupNotFoundException;
+import org.jivesoftware.openfire.privacy.PrivacyList;
+import org.jivesoftware.openfire.privacy.PrivacyListManager;
+import org.jivesoftware.openfire.user.User;
+import org.jivesoftware.openfire.user.UserManager;
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.TaskEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+
+/**
+ * Applies the registration policies (default group, default privacy list and account lockout) to existing users.
+ *
+ * The user base is read page by page, so only one page of users is held in memory. Users that already comply
+ * with a policy are skipped, which makes it safe to run a backfill more than once. The position of the backfill
+ * and the policies it applies are saved in system properties after every page, and a backfill that was
+ * interrupted by a restart of the plugin resumes from that position on the senior cluster member.
+ *
+ * The user provider returns the users ordered by username, and the backfill continues after the last username
+ * it processed. The index of the next user is only used to find that username quickly, so users that are
+ * created or deleted during the backfill do not make it skip or repeat other users.
+ *
+ * The lockout never applies to administrators and to the users in the exclusion list. Accounts that are older
+ * than the lockout period are locked out after a full period from now, unless the administrator asked to lock
+ * them out now.
+ */
+public class RegistrationBackfill {
+
+    private static final Logger Log = LoggerFactory.getLogger(RegistrationBackfill.class);
+
+    public enum State {
+        RUNNING, PAUSED, COMPLETED, FAILED
+    }
+
+    private final RegistrationPlugin plugin;
+    private final boolean applyGroup;
+    private final boolean applyPrivacyList;
+    private final boolean applyLockout;
+    private final boolean lockoutExisting;
+    private final int pageSize;
+    private final int usersPerSecond;
+
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong groupsAdded = new AtomicLong();
+    private final AtomicLong privacyListsAdded = new AtomicLong();
+    private final AtomicLong lockoutsAdded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile int position;
+    private volatile String lastUsername;
+    private volatile int total;
+    private volatile State state = State.RUNNING;
+    private volatile boolean stopRequested;
+    private volatile boolean cancelled;
+    private final long startTime = System.currentTimeMillis();
+    private volatile long endTime;
+
+    RegistrationBackfill(RegistrationPlugin plugin, boolean applyGroup, boolean applyPrivacyList, boolean applyLockout,
+            boolean lockoutExisting, String lastUsername, int position, int pageSize, int usersPerSecond) {
+        this.plugin = plugin;
+        this.applyGroup = applyGroup;
+        this.applyPrivacyList = applyPrivacyList;
+        this.applyLockout = applyLockout;
+        this.lockoutExisting = lockoutExisting;
+        this.lastUsername = lastUsername;
+        this.position = Math.max(0, position);
+        this.pageSize = Math.max(1, pageSize);
+        this.usersPerSecond = usersPerSecond;
+    }
+
+    /**
+     * Creates a backfill from the saved checkpoint.
+     *
+     * @return the interrupted backfill, or null if there is no checkpoint.
+     */
+    static RegistrationBackfill fromCheckpoint(RegistrationPlugin plugin, int pageSize, int usersPerSecond) {
+        final String policies = plugin.getProperty(RegistrationPlugin.BACKFILL_POLICIES);
+        if (policies == null) {
+            return null;
+        }
+        int position = 0;
+        try {
+            final String value = plugin.getProperty(RegistrationPlugin.BACKFILL_POSITION);
+            position = value != null ? Integer.parseInt(value.trim()) : 0;
+        }
+        catch (NumberFormatException e) {
+            Log.warn("Registration plugin : ignoring invalid backfill position, starting from the first user.");
+        }
+        final List<String> applied = Arrays.asList(policies.split(","));
+        return new RegistrationBackfill(plugin, applied.contains("group"), applied.contains("privacylist"),
+                applied.contains("lockout"), applied.contains("lockoutnow"),
+                plugin.getProperty(RegistrationPlugin.BACKFILL_USER), position, pageSize, usersPerSecond);
+    }
+
+    void start() {
+        saveCheckpoint();
+        TaskEngine.getInstance().submit(this::run);
+    }
+
+    /**
+     * Asks the backfill to stop after the user it is processing. The checkpoint is kept, so the backfill can
+     * be resumed later.
+     */
+    void pause() {
+        stopRequested = true;
+    }
+
+    /**
+     * Stops the backfill and removes its checkpoint.
+     */
+    void cancel() {
+        cancelled = true;
+        stopRequested = true;
+        clearCheckpoint();
+    }
+
+    private void run() {
+        Log.info("Registration plugin : backfill of registration policies started at position {}.", position);
+        try {
+            final UserManager userManager = UserManager.getInstance();
+            total = userManager.getUserCount();
+            final long interval = usersPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / usersPerSecond : 0;
+            long next = System.nanoTime();
+            while (!stopRequested) {
+                final List<User> page = nextPage(userManager);
+                if (page.isEmpty()) {
+                    break;
+                }
+                final RegistrationSettings settings = plugin.getSettings();
+                final Group group = applyGroup && settings.isGroupEnabled() ? resolveGroup(settings.getGroup()) : null;
+                for (User user : page) {
+                    if (stopRequested) {
+                        break;
+                    }
+                    if (interval > 0) {
+                        final long wait = next - System.nanoTime();
+                        if (wait > 0) {
+                            TimeUnit.NANOSECONDS.sleep(wait);
+                        }
+                        next = Math.max(next, System.nanoTime() - interval) + interval;
+                    }
+                    try {
+                        final JID address = new JID(user.getUsername(), plugin.getServerName(), null);
+                        if (group != null && !group.isUser(address)) {
+                            // Openfire writes, caches and announces every member on its own, so adding the
+                            // members one by one here paces the writes at the rate of the backfill.
+                            group.getMembers().add(address);
+                            groupsAdded.incrementAndGet();
+                        }
+                        if (applyPrivacyList && settings.isPrivacyListEnabled()) {
+                            addDefaultPrivacyList(user, group != null ? group.getName() : null);
+                        }
+                        if (applyLockout && settings.getAutomaticAccountLockoutAfter() > 0) {
+                            addAutomaticAccountLockout(user, settings);
+                        }
+                    }
+                    catch (Exception e) {
+                        failed.incrementAndGet();
+                        Log.warn("Registration plugin : unable to apply the registration policies to user '{}'.",
+                                user.getUsername(), e);
+                    }
+                    processed.incrementAndGet();
+                    position++;
+                    lastUsername = user.getUsername();
+                }
+                if (!stopRequested) {
+                    saveCheckpoint();
+                }
+            }
+            state = stopRequested ? State.PAUSED : State.COMPLETED;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            state = State.PAUSED;
+        }
+        catch (RuntimeException e) {
+            Log.error("Registration plugin : backfill of registration policies aborted at position {}.", position, e);
+            state = State.FAILED;
+        }
+        finally {
+            if (state == State.COMPLETED || cancelled) {
+                clearCheckpoint();
+            }
+            else {
+                saveCheckpoint();
+            }
+            endTime = System.currentTimeMillis();
+            Log.info("Registration plugin : backfill of registration policies {} at position {}.",
+                    state.name().toLowerCase(), position);
+        }
+    }
+
+    /**
+     * Reads the users that follow the last processed user. The index of the next user is where they are expected:
+     * if users were deleted, the page is read from further back until it starts at or before the last processed
+     * user; if users were created, the users up to and including the last processed user are skipped.
+     */
+    private List<User> nextPage(UserManager userManager) {
+        int offset = position;
+        boolean advanced = false;
+        while (true) {
+            final List<User> users = new ArrayList<>(userManager.getUsers(offset, pageSize));
+            if (lastUsername == null) {
+                return users;
+            }
+            if (!advanced && offset > 0
+                    && (users.isEmpty() || users.get(0).getUsername().compareTo(lastUsername) > 0)) {
+                offset = Math.max(0, offset - pageSize);
+                continue;
+            }
+            int skip = 0;
+            while (skip < users.size() && users.get(skip).getUsername().compareTo(lastUsername) <= 0) {
+                skip++;
+            }
+            if (skip == users.size() && users.size() == pageSize) {
+                offset += skip;
+                advanced = true;
+                continue;
+            }
+            position = offset + skip;
+            return users.subList(skip, users.size());
+        }
+    }
+
+    private Group resolveGroup(String groupName) {
+        try {
+            return GroupManager.getInstance().getGroup(groupName);
+        }
+        catch (GroupNotFoundException e) {
+            Log.warn("Registration plugin : backfill cannot add users to unknown group '{}'.", groupName);
+            return null;
+        }
+    }
+
+    private void addDefaultPrivacyList(User user, String registrationGroup) {
+        final PrivacyListTemplate template = plugin.getPrivacyListTemplate();
+        final PrivacyListManager privacyListManager = PrivacyListManager.getInstance();
+        if (template == null || privacyListManager.getDefaultPrivacyList(user.getUsername()) != null) {
+            return;
+        }
+        PrivacyList defaultList = null;
+        for (PrivacyListTemplate.ListTemplate list : template.getLists()) {
+            if (list.getGroup() != null && !list.getGroup().equals(registrationGroup) && !isMember(user, list.getGroup())) {
+                continue;
+            }
+            PrivacyList privacyList = privacyListManager.getPrivacyList(user.getUsername(), list.getName());
+            if (privacyList == null) {
+                privacyList = privacyListManager.createPrivacyList(user.getUsername(), list.getName(), list.createElement());
+            }
+            if (list.isDefault()) {
+                defaultList = privacyList;
+            }
+        }
+        if (defaultList != null) {
+            privacyListManager.changeDefaultList(user.getUsername(), defaultList, null);
+            privacyListsAdded.incrementAndGet();
+        }
+    }
+
+    private static boolean isMember(User user, String groupName) {
+        try {
+            return GroupManager.getInstance().getGroup(groupName).isUser(user.getUsername());
+        }
+        catch (GroupNotFoundException e) {
+            return false;
+        }
+    }
+
+    private void addAutomaticAccountLockout(User user, RegistrationSettings settings) {
+        final String username = user.getUsername();
+        final RegistrationServices services = plugin.getServices();
+        if (settings.getBackfillLockoutExcluded().contains(username)
+                || AdminManager.getInstance().isUserAdmin(username, false) || services.hasLockout(username)) {
+            return;
+        }
+        // The lockout is relative to the creation of the account. Accounts that are older than the
+        // configured period get a full period from now, unless the administrator confirmed otherwise.
+        final long now = System.currentTimeMillis();
+        final long period = settings.getAutomaticAccountLockoutAfter() * 1000;
+        long start = user.getCreationDate().getTime() + period;
+        if (start < now) {
+            start = lockoutExisting ? now : now + period;
+        }
+        services.disableAccount(username, new Date(start));
+        lockoutsAdded.incrementAndGet();
+    }
+
+    private void saveCheckpoint() {
+        final StringBuilder policies = new StringBuilder();
+        if (applyGroup) {
+            policies.append("group,");
+        }
+        if (applyPrivacyList) {
+            policies.append("privacylist,");
+        }
+        if (applyLockout) {
+            policies.append("lockout,");
+        }
+        if (lockoutExisting) {
+            policies.append("lockoutnow,");
+        }
+        JiveGlobals.setProperty(RegistrationPlugin.BACKFILL_POLICIES, policies.toString());
+        JiveGlobals.setProperty(RegistrationPlugin.BACKFILL_POSITION, Integer.toString(position));
+        if (lastUsername != null) {
+            JiveGlobals.setProperty(RegistrationPlugin.BACKFILL_USER, lastUsername);
+        }
+    }
+
+    private static void clearCheckpoint() {
+        JiveGlobals.deleteProperty(RegistrationPlugin.BACKFILL_POLICIES);
+        JiveGlobals.deleteProperty(RegistrationPlugin.BACKFILL_POSITION);
+        JiveGlobals.deleteProperty(RegistrationPlugin.BACKFILL_USER);
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public boolean isApplyGroup() {
+        return applyGroup;
+    }
+
+    public boolean isApplyPrivacyList() {
+        return applyPrivacyList;
+    }
+
+    public boolean isApplyLockout() {
+        return applyLockout;
+    }
+
+    public boolean isLockoutExisting() {
+        return lockoutExisting;
+    }
+
+    /**
+     * @return the index of the next user to process.
+     */
+    public int getPosition() {
+        return position;
+    }
+
+    /**
+     * @return the number of users when the backfill (or its last resumption) started.
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    /**
+     * @return the number of users processed since the backfill (or its last resumption) started.
+     */
+    public long getProcessed() {
+        return processed.get();
+    }
+
+    public long getGroupsAdded() {
+        return groupsAdded.get();
+    }
+
+    public long getPrivacyListsAdded() {
+        return privacyListsAdded.get();
+    }
+
+    public long getLockoutsAdded() {
+        return lockoutsAdded.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getElapsedMillis() {
+        return (endTime > 0 ? endTime : System.currentTimeMillis()) - startTime;
+    }
+}
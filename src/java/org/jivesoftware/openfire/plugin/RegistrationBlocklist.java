@@ -0,0 +1,478 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimerTask;
+import java.util.TreeSet;
+
+import org.jivesoftware.util.TaskEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A list of blocked email domains and reserved usernames, read from a text file with one entry per line:
+ * <ul>
+ * <li><tt>@example.com</tt> blocks email addresses in the domain and its subdomains,</li>
+ * <li><tt>admin</tt> reserves the username,</li>
+ * <li><tt>admin*</tt> reserves the usernames that start with the text,</li>
+ * <li><tt>*word*</tt> reserves the usernames that contain the text.</li>
+ * </ul>
+ * Empty lines and lines that start with '#' are ignored, and entries are not case sensitive.
+ *
+ * The entries are compiled into a sorted index file next to the text file, which is memory-mapped, so a large list
+ * does not occupy the heap. Domains, usernames and prefixes are looked up with binary searches that compare
+ * characters in place, without allocating. The index is only compiled again when the text file has changed, which
+ * is checked every few seconds.
+ *
+ * Every compilation writes a new index file with a higher version number, as <tt>blocklist.txt.3.idx</tt>, because a
+ * file that is memory-mapped cannot be replaced or deleted on Windows. The older files are deleted once the new
+ * index is in use; a file that is still mapped is deleted on a later check, after its mapping was released.
+ */
+class RegistrationBlocklist {
+
+    private static final Logger Log = LoggerFactory.getLogger(RegistrationBlocklist.class);
+
+    private static final int MAGIC = 0x52424c31;
+    private static final long CHECK_INTERVAL = 10000;
+
+    /**
+     * One sorted section of the index: the start of every entry, followed by the characters of all entries.
+     */
+    private static final class Section {
+
+        private final ByteBuffer buffer;
+        private final int count;
+        private final int offsets;
+        private final int chars;
+
+        Section(ByteBuffer buffer, int position) {
+            this.buffer = buffer;
+            count = buffer.getInt(position);
+            offsets = position + 4;
+            chars = offsets + (count + 1) * 4;
+        }
+
+        int end() {
+            return chars + buffer.getInt(offsets + count * 4) * 2;
+        }
+
+        /**
+         * @return true if the section contains the characters from..to of a value, in lower case.
+         */
+        boolean contains(String value, int from, int to) {
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                final int mid = (low + high) >>> 1;
+                final int cmp = compare(mid, value, from, to);
+                if (cmp < 0) {
+                    low = mid + 1;
+                }
+                else if (cmp > 0) {
+                    high = mid - 1;
+                }
+                else {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return true if a value contains any of the entries of the section, which is scanned.
+         */
+        boolean containedIn(String value) {
+            for (int i = 0; i < count; i++) {
+                final int start = buffer.getInt(offsets + i * 4);
+                final int length = buffer.getInt(offsets + (i + 1) * 4) - start;
+                for (int at = 0; at + length <= value.length(); at++) {
+                    int j = 0;
+                    while (j < length && buffer.getChar(chars + (start + j) * 2) == lower(value.charAt(at + j))) {
+                        j++;
+                    }
+                    if (j == length) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private int compare(int entry, String value, int from, int to) {
+            final int start = buffer.getInt(offsets + entry * 4);
+            final int length = buffer.getInt(offsets + (entry + 1) * 4) - start;
+            final int n = Math.min(length, to - from);
+            for (int i = 0; i < n; i++) {
+                final int cmp = Character.compare(buffer.getChar(chars + (start + i) * 2), lower(value.charAt(from + i)));
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return length - (to - from);
+        }
+    }
+
+    /**
+     * A loaded index.
+     */
+    private static final class Index {
+
+        private final long sourceModified;
+        private final long sourceLength;
+        private final Section domains;
+        private final Section names;
+        private final Section prefixes;
+        private final Section substrings;
+
+        Index(ByteBuffer buffer) throws IOException {
+            if (buffer.limit() < 24 || buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a blocklist index.");
+            }
+            sourceModified = buffer.getLong(4);
+            sourceLength = buffer.getLong(12);
+            domains = new Section(buffer, 20);
+            names = new Section(buffer, domains.end());
+            prefixes = new Section(buffer, names.end());
+            substrings = new Section(buffer, prefixes.end());
+        }
+
+        int size() {
+            return domains.count + names.count + prefixes.count + substrings.count;
+        }
+    }
+
+    private final File source;
+    private final File directory;
+    private volatile Index index;
+    private File indexFile;
+    private boolean staleIndexFiles = true;
+    private TimerTask reloadTask;
+
+    /**
+     * @param source the text file with the entries. The file does not need to exist.
+     */
+    RegistrationBlocklist(File source) {
+        this.source = source;
+        this.directory = source.getAbsoluteFile().getParentFile();
+    }
+
+    /**
+     * Loads the list, and starts checking the text file for changes.
+     */
+    synchronized void start() {
+        reload();
+        reloadTask = new TimerTask() {
+            @Override
+            public void run() {
+                reload();
+            }
+        };
+        TaskEngine.getInstance().scheduleAtFixedRate(reloadTask, CHECK_INTERVAL, CHECK_INTERVAL);
+    }
+
+    synchronized void stop() {
+        if (reloadTask != null) {
+            TaskEngine.getInstance().cancelScheduledTask(reloadTask);
+            reloadTask = null;
+        }
+    }
+
+    /**
+     * @param email an email address.
+     * @return true if the domain of the address, or a domain it is a subdomain of, is blocked.
+     */
+    boolean isBlockedEmail(String email) {
+        final Index current = index;
+        if (current == null || email == null) {
+            return false;
+        }
+        final int at = email.lastIndexOf('@');
+        if (at < 0) {
+            return false;
+        }
+        // Look up the domain, and every parent domain.
+        int from = at + 1;
+        while (from < email.length()) {
+            if (current.domains.contains(email, from, email.length())) {
+                return true;
+            }
+            final int dot = email.indexOf('.', from);
+            if (dot < 0) {
+                break;
+            }
+            from = dot + 1;
+        }
+        return false;
+    }
+
+    /**
+     * @param username a username.
+     * @return true if the username is reserved.
+     */
+    boolean isReservedUsername(String username) {
+        final Index current = index;
+        if (current == null || username == null) {
+            return false;
+        }
+        if (current.names.contains(username, 0, username.length())) {
+            return true;
+        }
+        if (current.prefixes.count > 0) {
+            for (int length = 1; length <= username.length(); length++) {
+                if (current.prefixes.contains(username, 0, length)) {
+                    return true;
+                }
+            }
+        }
+        return current.substrings.count > 0 && current.substrings.containedIn(username);
+    }
+
+    /**
+     * @return the number of entries in the list.
+     */
+    int size() {
+        final Index current = index;
+        return current != null ? current.size() : 0;
+    }
+
+    /**
+     * Loads the index if the text file changed since it was compiled, compiling it again first if needed.
+     */
+    synchronized void reload() {
+        final Index current = index;
+        if (!source.isFile()) {
+            if (current != null) {
+                Log.info("Registration plugin : {} was removed, the blocklist is empty.", source);
+                index = null;
+                indexFile = null;
+                staleIndexFiles = true;
+            }
+            deleteStaleIndexFiles();
+            return;
+        }
+        final long modified = source.lastModified();
+        final long length = source.length();
+        if (current != null && current.sourceModified == modified && current.sourceLength == length) {
+            deleteStaleIndexFiles();
+            return;
+        }
+        try {
+            final File latest = latestIndexFile();
+            Index loaded = null;
+            File loadedFile = latest;
+            if (latest != null) {
+                try {
+                    loaded = map(latest);
+                }
+                catch (IOException e) {
+                    Log.warn("Registration plugin : the blocklist index {} is damaged, compiling it again.", latest);
+                }
+            }
+            if (loaded == null || loaded.sourceModified != modified || loaded.sourceLength != length) {
+                loadedFile = new File(directory, source.getName() + "." + (version(latest) + 1) + ".idx");
+                compile(loadedFile, modified, length);
+                loaded = map(loadedFile);
+            }
+            index = loaded;
+            if (!loadedFile.equals(indexFile)) {
+                indexFile = loadedFile;
+                staleIndexFiles = true;
+            }
+            Log.info("Registration plugin : loaded {} blocklist entries from {}.", loaded.size(), source);
+        }
+        catch (IOException e) {
+            Log.error("Registration plugin : unable to load the blocklist from {}.", source, e);
+        }
+        deleteStaleIndexFiles();
+    }
+
+    /**
+     * @return the index file in use, or null if none is loaded.
+     */
+    synchronized File getIndexFile() {
+        return indexFile;
+    }
+
+    private static Index map(File indexFile) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(indexFile, "r"); FileChannel channel = file.getChannel()) {
+            return new Index(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * @return the index files of the text file, including the one in use.
+     */
+    private File[] indexFiles() {
+        final String prefix = source.getName() + ".";
+        final File[] files = directory.listFiles((dir, name) -> name.length() > prefix.length() + 4
+                && name.startsWith(prefix) && name.endsWith(".idx")
+                && version(name.substring(prefix.length(), name.length() - 4)) >= 0);
+        return files != null ? files : new File[0];
+    }
+
+    /**
+     * @return the index file with the highest version, or null if there is none.
+     */
+    private File latestIndexFile() {
+        File latest = null;
+        for (File file : indexFiles()) {
+            if (version(file) > version(latest)) {
+                latest = file;
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * @return the version of an index file, or 0 if the file is null.
+     */
+    private long version(File file) {
+        if (file == null) {
+            return 0;
+        }
+        final String name = file.getName();
+        return version(name.substring(source.getName().length() + 1, name.length() - 4));
+    }
+
+    /**
+     * @return the version number, or -1 if the text is not a version number.
+     */
+    private static long version(String text) {
+        if (text.isEmpty() || text.length() > 18) {
+            return -1;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) < '0' || text.charAt(i) > '9') {
+                return -1;
+            }
+        }
+        return Long.parseLong(text);
+    }
+
+    /**
+     * Deletes the index files that are not in use, and the index file of earlier versions of the plugin. A file that
+     * cannot be deleted yet, as it may still be mapped, is tried again on the next check.
+     */
+    private void deleteStaleIndexFiles() {
+        if (!staleIndexFiles) {
+            return;
+        }
+        boolean remaining = false;
+        for (File file : indexFiles()) {
+            if (!file.equals(indexFile) && !file.delete() && file.exists()) {
+                remaining = true;
+            }
+        }
+        final File legacy = new File(directory, source.getName() + ".idx");
+        if (legacy.exists() && !legacy.delete()) {
+            remaining = true;
+        }
+        staleIndexFiles = remaining;
+    }
+
+    /**
+     * Compiles the text file into a new index file. The entries are sorted on the heap while the index is written,
+     * and are released afterwards.
+     */
+    private void compile(File indexFile, long modified, long length) throws IOException {
+        final TreeSet<String> domains = new TreeSet<>();
+        final TreeSet<String> names = new TreeSet<>();
+        final TreeSet<String> prefixes = new TreeSet<>();
+        final TreeSet<String> substrings = new TreeSet<>();
+        try (BufferedReader reader = Files.newBufferedReader(source.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String entry = line.trim().toLowerCase(Locale.ROOT);
+                if (entry.isEmpty() || entry.startsWith("#")) {
+                    continue;
+                }
+                if (entry.startsWith("@")) {
+                    add(domains, entry.substring(1));
+                }
+                else if (entry.length() > 2 && entry.startsWith("*") && entry.endsWith("*")) {
+                    add(substrings, entry.substring(1, entry.length() - 1));
+                }
+                else if (entry.endsWith("*")) {
+                    add(prefixes, entry.substring(0, entry.length() - 1));
+                }
+                else {
+                    add(names, entry);
+                }
+            }
+        }
+
+        final File tmp = new File(indexFile.getPath() + ".tmp");
+        try (RandomAccessFile file = new RandomAccessFile(tmp, "rw"); FileChannel channel = file.getChannel()) {
+            file.setLength(0);
+            final ByteBuffer header = ByteBuffer.allocate(20);
+            header.putInt(MAGIC).putLong(modified).putLong(length).flip();
+            channel.write(header);
+            for (TreeSet<String> section : Arrays.asList(domains, names, prefixes, substrings)) {
+                write(channel, new ArrayList<>(section));
+            }
+            channel.force(false);
+        }
+        // The file is new, so nothing has it mapped.
+        Files.move(tmp.toPath(), indexFile.toPath());
+    }
+
+    private static void add(TreeSet<String> section, String entry) {
+        if (!entry.isEmpty()) {
+            section.add(entry);
+        }
+    }
+
+    private static void write(FileChannel channel, List<String> entries) throws IOException {
+        int chars = 0;
+        for (String entry : entries) {
+            chars += entry.length();
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(4 + (entries.size() + 1) * 4 + chars * 2);
+        buffer.putInt(entries.size());
+        int offset = 0;
+        for (String entry : entries) {
+            buffer.putInt(offset);
+            offset += entry.length();
+        }
+        buffer.putInt(offset);
+        for (String entry : entries) {
+            for (int i = 0; i < entry.length(); i++) {
+                buffer.putChar(entry.charAt(i));
+            }
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static char lower(char c) {
+        return Character.toLowerCase(c);
+    }
+}
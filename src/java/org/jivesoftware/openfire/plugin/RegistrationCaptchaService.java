@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Verifies captcha answers through a {@link CaptchaVerifier}, and remembers recent wrong answers.
+ *
+ * A wrong answer that is submitted again (for example by a script that repeats a request) is refused from the
+ * cache, without asking the verifier. Correct answers are not cached, so that one solved captcha cannot be
+ * replayed for further sign-ups, and errors are not cached either. The service counts cache hits and misses,
+ * verification errors and the time spent in the verifier.
+ */
+class RegistrationCaptchaService {
+
+    private static final Logger Log = LoggerFactory.getLogger(RegistrationCaptchaService.class);
+
+    private static final int MAX_CACHED_RESULTS = 1024;
+
+    private final CaptchaVerifier verifier;
+    private final long cacheNanos;
+    /**
+     * The wrong answers, with the moment (in nanoseconds) they expire.
+     */
+    private final Map<String, Long> cache = new LinkedHashMap<String, Long>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_CACHED_RESULTS || eldest.getValue() - System.nanoTime() < 0;
+        }
+    };
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder verificationNanos = new LongAdder();
+
+    RegistrationCaptchaService(CaptchaVerifier verifier, long cacheSeconds) {
+        this.verifier = verifier;
+        this.cacheNanos = TimeUnit.SECONDS.toNanos(Math.max(0, cacheSeconds));
+    }
+
+    /**
+     * Verifies an answer.
+     *
+     * @return true if the answer is correct.
+     */
+    boolean verify(String remoteAddress, String challenge, String response) {
+        if (response == null || response.trim().isEmpty()) {
+            return false;
+        }
+        final String key = remoteAddress + '\n' + challenge + '\n' + response;
+        if (cacheNanos > 0) {
+            synchronized (cache) {
+                final Long expires = cache.get(key);
+                if (expires != null && expires - System.nanoTime() > 0) {
+                    hits.increment();
+                    return false;
+                }
+            }
+        }
+        misses.increment();
+
+        final long start = System.nanoTime();
+        CaptchaVerifier.Result result;
+        try {
+            result = verifier.verify(remoteAddress, challenge, response);
+        }
+        catch (RuntimeException e) {
+            Log.warn("Registration plugin : unable to verify a captcha answer.", e);
+            result = CaptchaVerifier.Result.ERROR;
+        }
+        final long end = System.nanoTime();
+        verificationNanos.add(end - start);
+
+        if (result == CaptchaVerifier.Result.ERROR) {
+            errors.increment();
+        }
+        else if (result == CaptchaVerifier.Result.INVALID && cacheNanos > 0) {
+            synchronized (cache) {
+                cache.put(key, end + cacheNanos);
+            }
+        }
+        return result == CaptchaVerifier.Result.VALID;
+    }
+
+    String createHtml() {
+        return verifier.createHtml();
+    }
+
+    CaptchaVerifier getVerifier() {
+        return verifier;
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    long getErrors() {
+        return errors.sum();
+    }
+
+    /**
+     * @return the average time, in milliseconds, that the verifier took to verify an answer.
+     */
+    double getAverageLatencyMillis() {
+        final long count = misses.sum();
+        return count > 0 ? verificationNanos.sum() / 1000000.0 / count : 0;
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.cluster.ClusterEventListener;
+import org.jivesoftware.openfire.cluster.ClusterManager;
+import org.jivesoftware.openfire.cluster.ClusterNodeInfo;
+import org.jivesoftware.util.cache.CacheFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides which cluster node executes the registration actions of a new user, and hands them over.
+ *
+ * Notifications are always sent by the senior cluster member, so that every registration is notified once and
+ * digests cover the whole cluster. The other actions are either executed by the senior member too, or spread
+ * over the nodes by rendezvous hashing of the username, which moves as few users as possible to another node when
+ * nodes join or leave. Without clustering, or when a node cannot be reached or does not confirm that it accepted
+ * the actions, everything is executed locally. The list of nodes is cached, and refreshed by cluster events.
+ */
+class RegistrationCluster implements ClusterEventListener {
+
+    private static final Logger Log = LoggerFactory.getLogger(RegistrationCluster.class);
+
+    /**
+     * How the registration actions other than notifications are assigned to nodes.
+     */
+    enum Distribution {
+        LOCAL, SENIOR, HASH;
+
+        static Distribution parse(String value) {
+            if (value != null) {
+                for (Distribution distribution : values()) {
+                    if (distribution.name().equalsIgnoreCase(value.trim())) {
+                        return distribution;
+                    }
+                }
+            }
+            return HASH;
+        }
+    }
+
+    /**
+     * The nodes of the cluster, at one moment.
+     */
+    private static final class Members {
+
+        private final List<byte[]> nodes;
+        private final byte[] local;
+        private final byte[] senior;
+
+        Members(List<byte[]> nodes, byte[] local, byte[] senior) {
+            this.nodes = nodes;
+            this.local = local;
+            this.senior = senior;
+        }
+    }
+
+    private static final Members NOT_CLUSTERED = new Members(Collections.emptyList(), null, null);
+
+    private final Runnable seniorListener;
+    private volatile Members members = NOT_CLUSTERED;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder processedActions = new LongAdder();
+    private final LongAdder processedNotifications = new LongAdder();
+
+    /**
+     * @param seniorListener called when this node joins a cluster as its senior member, or becomes its senior
+     *        member.
+     */
+    RegistrationCluster(Runnable seniorListener) {
+        this.seniorListener = seniorListener;
+    }
+
+    void start() {
+        ClusterManager.addListener(this);
+        refresh();
+    }
+
+    void stop() {
+        ClusterManager.removeListener(this);
+        members = NOT_CLUSTERED;
+    }
+
+    /**
+     * @return the node that sends the notification of a registration, or null if that is this node.
+     */
+    byte[] getNotificationNode(Distribution distribution) {
+        final Members current = members;
+        if (distribution == Distribution.LOCAL || current.senior == null || Arrays.equals(current.senior, current.local)) {
+            return null;
+        }
+        return current.senior;
+    }
+
+    /**
+     * @return the node that executes the other actions of a registration, or null if that is this node.
+     */
+    byte[] getActionNode(String username, Distribution distribution) {
+        final Members current = members;
+        if (distribution == Distribution.LOCAL || current.nodes.size() < 2) {
+            return null;
+        }
+        final byte[] node = distribution == Distribution.SENIOR ? current.senior : assign(username, current.nodes);
+        return node == null || Arrays.equals(node, current.local) ? null : node;
+    }
+
+    /**
+     * Hands the registration actions of a user over to another node, and waits until the node has queued them.
+     *
+     * @param address the address of the client that signed up, or null.
+     * @return false if the node could not be reached or did not accept the actions (for example because the
+     *         plugin is not running there), in which case the actions have to be executed locally.
+     */
+    boolean send(byte[] node, String username, boolean actions, boolean notify, String address) {
+        try {
+            final Object accepted = CacheFactory.doSynchronousClusterTask(
+                    new RegistrationClusterTask(username, actions, notify, address), node);
+            if (!Boolean.TRUE.equals(accepted)) {
+                failed.increment();
+                Log.warn("Registration plugin : another cluster node did not accept the registration of '{}'.",
+                        username);
+                return false;
+            }
+            sent.increment();
+            return true;
+        }
+        catch (RuntimeException e) {
+            failed.increment();
+            Log.warn("Registration plugin : unable to hand the registration of '{}' over to another cluster node.",
+                    username, e);
+            return false;
+        }
+    }
+
+    /**
+     * Tells the other nodes about a user that was created on this node, so they can add it to their username
+     * filter.
+     */
+    void publishUsername(String username) {
+        if (!isClustered()) {
+            return;
+        }
+        try {
+            CacheFactory.doClusterTask(new RegistrationUsernameTask(username));
+        }
+        catch (RuntimeException e) {
+            Log.warn("Registration plugin : unable to tell the other cluster nodes about user '{}'.", username, e);
+        }
+    }
+
+    void received() {
+        received.increment();
+    }
+
+    void processed(boolean actions, boolean notify) {
+        if (actions) {
+            processedActions.increment();
+        }
+        if (notify) {
+            processedNotifications.increment();
+        }
+    }
+
+    boolean isClustered() {
+        return members.local != null;
+    }
+
+    int getNodeCount() {
+        return Math.max(1, members.nodes.size());
+    }
+
+    long getSent() {
+        return sent.sum();
+    }
+
+    long getReceived() {
+        return received.sum();
+    }
+
+    long getFailed() {
+        return failed.sum();
+    }
+
+    long getProcessedActions() {
+        return processedActions.sum();
+    }
+
+    long getProcessedNotifications() {
+        return processedNotifications.sum();
+    }
+
+    /**
+     * Asks every node how many registrations it processed.
+     *
+     * @return per host name, the number of registrations whose actions and whose notifications the node executed.
+     */
+    Map<String, long[]> getStatistics() {
+        final Map<String, long[]> statistics = new LinkedHashMap<>();
+        final Collection<Object> results = isClustered()
+                ? CacheFactory.doSynchronousClusterTask(new RegistrationClusterStatisticsTask(), true)
+                : Collections.singletonList(new RegistrationClusterStatisticsTask().collect());
+        for (Object result : results) {
+            final Object[] values = (Object[]) result;
+            statistics.put((String) values[0], new long[] { (Long) values[1], (Long) values[2] });
+        }
+        return statistics;
+    }
+
+    /**
+     * Returns the node with the highest score for a username. The score of a node only depends on the node and
+     * the username, so a node that joins only takes over the users for which it scores highest.
+     */
+    private static byte[] assign(String username, List<byte[]> nodes) {
+        byte[] best = null;
+        long bestScore = Long.MIN_VALUE;
+        final long userHash = username.hashCode() * 0x9e3779b97f4a7c15L;
+        for (byte[] node : nodes) {
+            final long score = mix(userHash ^ Arrays.hashCode(node));
+            if (best == null || score > bestScore) {
+                best = node;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * The finalizer of SplitMix64, which spreads the bits of a value over the whole word.
+     */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+
+    private void refresh() {
+        if (!ClusterManager.isClusteringStarted()) {
+            members = NOT_CLUSTERED;
+            return;
+        }
+        final byte[] local = XMPPServer.getInstance().getNodeID().toByteArray();
+        final List<byte[]> nodes = new ArrayList<>();
+        byte[] senior = null;
+        for (ClusterNodeInfo info : ClusterManager.getNodesInfo()) {
+            final byte[] node = info.getNodeID().toByteArray();
+            nodes.add(node);
+            if (info.isSeniorMember()) {
+                senior = node;
+            }
+        }
+        members = new Members(nodes, local, senior);
+        if (Log.isDebugEnabled()) {
+            Log.debug("Registration plugin : {} cluster node(s), this node is {}the senior member.", nodes.size(),
+                    Arrays.equals(local, senior) ? "" : "not ");
+        }
+    }
+
+    public void joinedCluster() {
+        refresh();
+        notifySenior();
+    }
+
+    public void joinedCluster(byte[] nodeID) {
+        refresh();
+    }
+
+    public void leftCluster() {
+        refresh();
+    }
+
+    public void leftCluster(byte[] nodeID) {
+        refresh();
+    }
+
+    public void markedAsSeniorClusterMember() {
+        refresh();
+        notifySenior();
+    }
+
+    private void notifySenior() {
+        final Members current = members;
+        if (current.senior != null && Arrays.equals(current.senior, current.local)) {
+            seniorListener.run();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.util.cache.ClusterTask;
+
+/**
+ * Collects the number of registrations a cluster node processed. The result is an array of the host name of the
+ * node, the number of registrations whose actions it executed and the number of registrations it notified.
+ */
+public class RegistrationClusterStatisticsTask implements ClusterTask<Object[]> {
+
+    private Object[] result;
+
+    public Object[] getResult() {
+        return result;
+    }
+
+    public void run() {
+        result = collect();
+    }
+
+    Object[] collect() {
+        final XMPPServer server = XMPPServer.getInstance();
+        final RegistrationPlugin plugin = (RegistrationPlugin) server.getPluginManager().getPlugin("registration");
+        final String host = server.getServerInfo().getHostname();
+        if (plugin == null) {
+            return new Object[] { host, 0L, 0L };
+        }
+        return new Object[] { host, plugin.getClusterProcessedActions(), plugin.getClusterProcessedNotifications() };
+    }
+
+    public void writeExternal(ObjectOutput out) throws IOException {
+    }
+
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+    }
+}
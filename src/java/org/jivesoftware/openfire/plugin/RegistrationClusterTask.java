@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.util.cache.ClusterTask;
+import org.jivesoftware.util.cache.ExternalizableUtil;
+
+/**
+ * Executes the registration actions of a user that was created on another cluster node. The result tells the
+ * sending node whether the actions were queued, so it can execute them itself if they were not.
+ */
+public class RegistrationClusterTask implements ClusterTask<Boolean> {
+
+    private String username;
+    private boolean actions;
+    private boolean notify;
+    private String address;
+    private boolean accepted;
+
+    public RegistrationClusterTask() {
+    }
+
+    RegistrationClusterTask(String username, boolean actions, boolean notify, String address) {
+        this.username = username;
+        this.actions = actions;
+        this.notify = notify;
+        this.address = address;
+    }
+
+    public Boolean getResult() {
+        return accepted;
+    }
+
+    public void run() {
+        final RegistrationPlugin plugin = (RegistrationPlugin) XMPPServer.getInstance().getPluginManager()
+                .getPlugin("registration");
+        if (plugin != null) {
+            accepted = plugin.processClusterRegistration(username, actions, notify, address);
+        }
+    }
+
+    public void writeExternal(ObjectOutput out) throws IOException {
+        ExternalizableUtil.getInstance().writeSafeUTF(out, username);
+        ExternalizableUtil.getInstance().writeBoolean(out, actions);
+        ExternalizableUtil.getInstance().writeBoolean(out, notify);
+        ExternalizableUtil.getInstance().writeBoolean(out, address != null);
+        if (address != null) {
+            ExternalizableUtil.getInstance().writeSafeUTF(out, address);
+        }
+    }
+
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        username = ExternalizableUtil.getInstance().readSafeUTF(in);
+        actions = ExternalizableUtil.getInstance().readBoolean(in);
+        notify = ExternalizableUtil.getInstance().readBoolean(in);
+        if (ExternalizableUtil.getInstance().readBoolean(in)) {
+            address = ExternalizableUtil.getInstance().readSafeUTF(in);
+        }
+    }
+}
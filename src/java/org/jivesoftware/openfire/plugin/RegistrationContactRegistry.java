@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+
+/**
+ * Holds the IM and email contacts that are notified of new registrations.
+ *
+ * The contacts are kept in an immutable, sorted snapshot that is replaced as a whole when contacts are added
+ * or removed (copy-on-write). Readers, such as the threads that send notifications, never lock and never see
+ * a partially updated list. IM contacts are stored together with their pre-built JIDs, and email addresses
+ * are validated when they are loaded.
+ */
+class RegistrationContactRegistry {
+
+    private static final Logger Log = LoggerFactory.getLogger(RegistrationContactRegistry.class);
+
+    private final String serverName;
+    private final Predicate<String> addressValidator;
+
+    private volatile Contacts contacts = new Contacts(Collections.emptySet(), Collections.emptySet(), null);
+
+    /**
+     * @param serverName the XMPP domain of the server, used to build the JIDs of IM contacts.
+     * @param addressValidator decides whether an email address is valid.
+     */
+    RegistrationContactRegistry(String serverName, Predicate<String> addressValidator) {
+        this.serverName = serverName;
+        this.addressValidator = addressValidator;
+    }
+
+    /**
+     * Replaces all contacts with the contacts in the (comma separated) property values.
+     *
+     * @param imContacts the IM contact usernames, or null.
+     * @param emailContacts the email addresses, or null.
+     */
+    synchronized void load(String imContacts, String emailContacts) {
+        final Set<String> im = new TreeSet<>();
+        for (String contact : split(imContacts)) {
+            im.add(contact.toLowerCase());
+        }
+        final Set<String> email = new TreeSet<>();
+        for (String address : split(emailContacts)) {
+            if (addressValidator.test(address)) {
+                email.add(address);
+            }
+            else {
+                Log.warn("Registration plugin : ignoring invalid email contact '{}'.", address);
+            }
+        }
+        contacts = new Contacts(im, email, contacts);
+    }
+
+    /**
+     * Adds an IM contact.
+     *
+     * @param contact the username of the contact.
+     * @return the new comma separated list of IM contacts, or null if the contact already was present.
+     */
+    synchronized String addIMContact(String contact) {
+        final String normalized = contact.trim().toLowerCase();
+        final Contacts current = contacts;
+        if (current.imSet.contains(normalized)) {
+            return null;
+        }
+        final Set<String> im = new TreeSet<>(current.imContacts);
+        im.add(normalized);
+        contacts = new Contacts(im, current.emailContacts, current);
+        return String.join(",", contacts.imContacts);
+    }
+
+    /**
+     * Removes an IM contact.
+     *
+     * @param contact the username of the contact.
+     * @return the new comma separated list of IM contacts (empty if there are none left), or null if the
+     *         contact was not present.
+     */
+    synchronized String removeIMContact(String contact) {
+        final String normalized = contact.trim().toLowerCase();
+        final Contacts current = contacts;
+        if (!current.imSet.contains(normalized)) {
+            return null;
+        }
+        final Set<String> im = new TreeSet<>(current.imContacts);
+        im.remove(normalized);
+        contacts = new Contacts(im, current.emailContacts, current);
+        return String.join(",", contacts.imContacts);
+    }
+
+    /**
+     * Adds an email contact.
+     *
+     * @param address the email address of the contact.
+     * @return the new comma separated list of email contacts, or null if the address already was present.
+     * @throws IllegalArgumentException if the address is not valid.
+     */
+    synchronized String addEmailContact(String address) {
+        final String normalized = address.trim();
+        if (!addressValidator.test(normalized)) {
+            throw new IllegalArgumentException("Invalid email address: " + address);
+        }
+        final Contacts current = contacts;
+        if (current.emailSet.contains(normalized)) {
+            return null;
+        }
+        final Set<String> email = new TreeSet<>(current.emailContacts);
+        email.add(normalized);
+        contacts = new Contacts(current.imContacts, email, current);
+        return String.join(",", contacts.emailContacts);
+    }
+
+    /**
+     * Removes an email contact.
+     *
+     * @param address the email address of the contact.
+     * @return the new comma separated list of email contacts (empty if there are none left), or null if the
+     *         address was not present.
+     */
+    synchronized String removeEmailContact(String address) {
+        final Contacts current = contacts;
+        if (address == null || !current.emailSet.contains(address.trim())) {
+            return null;
+        }
+        final Set<String> email = new TreeSet<>(current.emailContacts);
+        email.remove(address.trim());
+        contacts = new Contacts(current.imContacts, email, current);
+        return String.join(",", contacts.emailContacts);
+    }
+
+    /**
+     * @return the sorted usernames of the IM contacts. The list is immutable.
+     */
+    List<String> getIMContacts() {
+        return contacts.imContacts;
+    }
+
+    /**
+     * @return the addresses of the IM contacts, in the same order as {@link #getIMContacts()}. The list
+     *         is immutable.
+     */
+    List<JID> getIMAddresses() {
+        return contacts.imAddresses;
+    }
+
+    boolean containsIMContact(String contact) {
+        return contact != null && contacts.imSet.contains(contact.trim().toLowerCase());
+    }
+
+    /**
+     * @return the sorted email addresses of the email contacts. The list is immutable.
+     */
+    List<String> getEmailContacts() {
+        return contacts.emailContacts;
+    }
+
+    boolean containsEmailContact(String address) {
+        return address != null && contacts.emailSet.contains(address.trim());
+    }
+
+    private static List<String> split(String value) {
+        final List<String> result = new ArrayList<>();
+        if (value != null) {
+            for (String item : value.split(",")) {
+                if (!item.trim().isEmpty()) {
+                    result.add(item.trim());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * An immutable set of contacts.
+     */
+    private final class Contacts {
+
+        final List<String> imContacts;
+        final List<JID> imAddresses;
+        final Set<String> imSet;
+        final Map<String, JID> imAddressMap;
+        final List<String> emailContacts;
+        final Set<String> emailSet;
+
+        /**
+         * @param im the sorted IM contacts.
+         * @param email the sorted email contacts.
+         * @param previous the contacts that are being replaced, used to reuse JIDs. Can be null.
+         */
+        Contacts(Collection<String> im, Collection<String> email, Contacts previous) {
+            final List<String> imList = new ArrayList<>(im.size());
+            final List<JID> addresses = new ArrayList<>(im.size());
+            for (String contact : im) {
+                JID address = previous != null ? previous.imAddressMap.get(contact) : null;
+                try {
+                    if (address == null) {
+                        address = new JID(contact, serverName, null);
+                    }
+                    imList.add(contact);
+                    addresses.add(address);
+                }
+                catch (IllegalArgumentException e) {
+                    Log.warn("Registration plugin : ignoring invalid IM contact '{}'.", contact);
+                }
+            }
+            this.imContacts = Collections.unmodifiableList(imList);
+            this.imAddresses = Collections.unmodifiableList(addresses);
+            this.imSet = Collections.unmodifiableSet(new HashSet<>(imList));
+            final Map<String, JID> addressMap = new HashMap<>();
+            for (int i = 0; i < imList.size(); i++) {
+                addressMap.put(imList.get(i), addresses.get(i));
+            }
+            this.imAddressMap = Collections.unmodifiableMap(addressMap);
+            this.emailContacts = Collections.unmodifiableList(new ArrayList<>(email));
+            this.emailSet = Collections.unmodifiableSet(new HashSet<>(email));
+        }
+    }
+}
@@ -0,0 +1,429 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A durable queue of notification emails.
+ *
+ * Every email is appended to a local file before it is queued, and an acknowledgement is appended once it
+ * has been handed over to the mail server, so emails that were not sent when the server stopped are sent
+ * after the plugin is loaded again. A single sender thread sends the queued emails in batches, each batch
+ * over one SMTP session, and acknowledges every email as soon as it was handed over. When a batch fails, for
+ * example because the mail server cannot be reached, the sender waits before it retries the emails that were not
+ * acknowledged, doubling the wait after every failure up to a maximum. An email that can never be sent, such as
+ * one to a malformed address or one that the mail server refuses permanently, is dropped, logged and counted, so
+ * it does not hold back the emails behind it. The file is rewritten when the plugin is loaded, and truncated
+ * whenever the queue becomes empty after it has grown beyond a threshold.
+ */
+class RegistrationEmailOutbox {
+
+    private static final Logger Log = LoggerFactory.getLogger(RegistrationEmailOutbox.class);
+
+    private static final long COMPACT_THRESHOLD = 1024 * 1024;
+    private static final long INITIAL_BACKOFF_MILLIS = 1000;
+
+    /**
+     * Receives the outcome of the emails of a batch, as they are sent.
+     */
+    interface Delivery {
+
+        /**
+         * The email was handed over to the mail server.
+         */
+        void sent(Email email);
+
+        /**
+         * The email can never be sent, and is not retried.
+         *
+         * @param cause why the email was rejected.
+         */
+        void rejected(Email email, Exception cause);
+    }
+
+    /**
+     * An email to one or more recipients.
+     */
+    static final class Email {
+
+        private final long id;
+        private final List<String> recipients;
+        private final String fromName;
+        private final String fromAddress;
+        private final String subject;
+        private final String body;
+
+        Email(long id, List<String> recipients, String fromName, String fromAddress, String subject, String body) {
+            this.id = id;
+            this.recipients = Collections.unmodifiableList(new ArrayList<>(recipients));
+            this.fromName = fromName;
+            this.fromAddress = fromAddress;
+            this.subject = subject;
+            this.body = body;
+        }
+
+        long getId() {
+            return id;
+        }
+
+        List<String> getRecipients() {
+            return recipients;
+        }
+
+        String getFromName() {
+            return fromName;
+        }
+
+        String getFromAddress() {
+            return fromAddress;
+        }
+
+        String getSubject() {
+            return subject;
+        }
+
+        String getBody() {
+            return body;
+        }
+    }
+
+    private final File file;
+    private final RegistrationServices services;
+    private final RegistrationMetrics metrics;
+    private final int batchSize;
+    private final long maxBackoffMillis;
+
+    private final Map<Long, Email> pending = new LinkedHashMap<>();
+    private final LongAdder rejectedEmails = new LongAdder();
+    private FileChannel channel;
+    private long nextId = 1;
+    private boolean running;
+    private Thread sender;
+
+    /**
+     * @param file the file that holds the queue.
+     * @param services sends the emails.
+     * @param metrics records the latency and failures of every batch.
+     * @param batchSize the maximum number of emails sent over one SMTP session.
+     * @param maxBackoffMillis the maximum time to wait before a failed batch is retried.
+     */
+    RegistrationEmailOutbox(File file, RegistrationServices services, RegistrationMetrics metrics, int batchSize,
+            long maxBackoffMillis) {
+        this.file = file;
+        this.services = services;
+        this.metrics = metrics;
+        this.batchSize = Math.max(1, batchSize);
+        this.maxBackoffMillis = Math.max(INITIAL_BACKOFF_MILLIS, maxBackoffMillis);
+    }
+
+    /**
+     * Loads the unsent emails from the file, and starts sending them.
+     */
+    synchronized void start() {
+        try {
+            final File parent = file.getAbsoluteFile().getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Unable to create directory " + parent);
+            }
+            load();
+            rewrite();
+            channel = new FileOutputStream(file, true).getChannel();
+        }
+        catch (IOException e) {
+            // Emails are still sent, but do not survive a restart.
+            Log.error("Registration plugin : unable to open the email outbox {}.", file, e);
+        }
+        if (!pending.isEmpty()) {
+            Log.info("Registration plugin : {} unsent notification email(s) found in the outbox.", pending.size());
+        }
+        running = true;
+        sender = new Thread(this::send, "registration-email-outbox");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Stops the sender. Emails that have not been sent stay in the file.
+     *
+     * @param timeout the time to wait for the batch that is being sent.
+     */
+    void stop(long timeout, TimeUnit unit) {
+        final Thread thread;
+        synchronized (this) {
+            running = false;
+            notifyAll();
+            thread = sender;
+        }
+        if (thread != null) {
+            try {
+                thread.join(unit.toMillis(timeout));
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            close();
+        }
+    }
+
+    /**
+     * Queues an email.
+     *
+     * @param recipients the addresses the email is sent to.
+     */
+    void add(List<String> recipients, String fromName, String fromAddress, String subject, String body) {
+        if (recipients.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            final Email email = new Email(nextId++, recipients, fromName, fromAddress, subject, body);
+            append(record(email));
+            pending.put(email.getId(), email);
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return the number of emails that have not been sent yet.
+     */
+    synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * @return the number of emails that were dropped because they can never be sent.
+     */
+    long getRejectedCount() {
+        return rejectedEmails.sum();
+    }
+
+    private void send() {
+        long backoff = 0;
+        while (true) {
+            final List<Email> batch = new ArrayList<>(batchSize);
+            synchronized (this) {
+                try {
+                    while (running && (pending.isEmpty() || backoff > 0)) {
+                        if (backoff > 0) {
+                            final long until = System.currentTimeMillis() + backoff;
+                            for (long wait = backoff; running && wait > 0; wait = until - System.currentTimeMillis()) {
+                                wait(wait);
+                            }
+                            backoff = -backoff;
+                        }
+                        else {
+                            wait();
+                        }
+                    }
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                if (!running) {
+                    return;
+                }
+                for (Email email : pending.values()) {
+                    if (batch.size() == batchSize) {
+                        break;
+                    }
+                    batch.add(email);
+                }
+            }
+
+            final long start = System.nanoTime();
+            try {
+                services.sendEmails(batch, new Delivery() {
+                    public void sent(Email email) {
+                        acknowledge(email);
+                    }
+
+                    public void rejected(Email email, Exception cause) {
+                        if (acknowledge(email)) {
+                            rejectedEmails.increment();
+                            Log.error("Registration plugin : dropping the notification email '{}' to {}, which "
+                                    + "can never be sent.", email.getSubject(), email.getRecipients(), cause);
+                        }
+                    }
+                });
+                metrics.record(RegistrationMetrics.Stage.EMAIL_NOTIFICATION, start, false);
+                // Emails that were not reported were sent along with the batch.
+                batch.forEach(this::acknowledge);
+                backoff = 0;
+            }
+            catch (Exception e) {
+                metrics.record(RegistrationMetrics.Stage.EMAIL_NOTIFICATION, start, true);
+                // A negative backoff is the wait before the previous attempt.
+                backoff = backoff < 0 ? Math.min(maxBackoffMillis, -backoff * 2) : INITIAL_BACKOFF_MILLIS;
+                Log.warn("Registration plugin : unable to send {} notification email(s), retrying in {} ms.",
+                        unacknowledged(batch), backoff, e);
+            }
+        }
+    }
+
+    /**
+     * Removes an email from the queue.
+     *
+     * @return false if the email was already removed.
+     */
+    private synchronized boolean acknowledge(Email email) {
+        if (pending.remove(email.getId()) == null) {
+            return false;
+        }
+        append("A\t" + email.getId());
+        if (pending.isEmpty()) {
+            compact();
+        }
+        return true;
+    }
+
+    private synchronized int unacknowledged(List<Email> batch) {
+        int count = 0;
+        for (Email email : batch) {
+            if (pending.containsKey(email.getId())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void load() throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split("\t", -1);
+                try {
+                    final long id = Long.parseLong(fields[1]);
+                    nextId = Math.max(nextId, id + 1);
+                    if (fields[0].equals("M") && fields.length == 7) {
+                        pending.put(id, new Email(id, Arrays.asList(decode(fields[2]).split(",")), decode(fields[3]),
+                                decode(fields[4]), decode(fields[5]), decode(fields[6])));
+                    }
+                    else if (fields[0].equals("A")) {
+                        pending.remove(id);
+                    }
+                    else {
+                        throw new IllegalArgumentException("Unknown record.");
+                    }
+                }
+                catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                    // Most likely a record that was being written when the server stopped.
+                    Log.warn("Registration plugin : skipping a damaged record in the email outbox {}.", file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the file with one that only contains the unsent emails.
+     */
+    private void rewrite() throws IOException {
+        final File temporary = new File(file.getPath() + ".tmp");
+        final StringBuilder content = new StringBuilder();
+        for (Email email : pending.values()) {
+            content.append(record(email)).append('\n');
+        }
+        try (FileChannel out = new FileOutputStream(temporary).getChannel()) {
+            out.write(ByteBuffer.wrap(content.toString().getBytes(StandardCharsets.UTF_8)));
+            out.force(true);
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void compact() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            if (channel.size() > COMPACT_THRESHOLD) {
+                channel.truncate(0);
+                channel.force(true);
+            }
+        }
+        catch (IOException e) {
+            Log.warn("Registration plugin : unable to compact the email outbox {}.", file, e);
+        }
+    }
+
+    private void append(String record) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.write(ByteBuffer.wrap((record + '\n').getBytes(StandardCharsets.UTF_8)));
+            channel.force(false);
+        }
+        catch (IOException e) {
+            Log.error("Registration plugin : unable to write to the email outbox {}.", file, e);
+        }
+    }
+
+    private void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+                Log.warn("Registration plugin : unable to close the email outbox {}.", file, e);
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Returns the record of an email: its id and its fields, Base64 encoded and separated by tabs.
+     */
+    private static String record(Email email) {
+        return "M\t" + email.getId() + '\t' + encode(String.join(",", email.getRecipients())) + '\t'
+                + encode(email.getFromName()) + '\t' + encode(email.getFromAddress()) + '\t'
+                + encode(email.getSubject()) + '\t' + encode(email.getBody());
+    }
+
+    private static String encode(String value) {
+        return value == null ? "-" : Base64.getEncoder().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decode(String value) {
+        return value.equals("-") ? null : new String(Base64.getDecoder().decode(value), StandardCharsets.UTF_8);
+    }
+}
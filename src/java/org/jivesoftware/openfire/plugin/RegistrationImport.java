@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.openfire.user.User;
+import org.jivesoftware.openfire.user.UserAlreadyExistsException;
+import org.jivesoftware.openfire.user.UserManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Imports user accounts in bulk.
+ *
+ * Records are read as a stream, and users are created in chunks. The actions of the plugin (group, privacy
+ * list, welcome message and lockout) are applied to every chunk, but the individual registration notifications
+ * are replaced by a single report that is sent to the notification contacts when the import completes.
+ *
+ * Two input formats are supported: CSV, with the columns <tt>username,password,name,email</tt> (an optional
+ * header line and lines starting with '#' are ignored), and JSON, as an array of objects with the properties
+ * <tt>username</tt>, <tt>password</tt>, <tt>name</tt> and <tt>email</tt>.
+ */
+public class RegistrationImport {
+
+    private static final Logger Log = LoggerFactory.getLogger(RegistrationImport.class);
+
+    private static final int MAX_ERRORS = 100;
+
+    public enum Format {
+        CSV, JSON
+    }
+
+    public enum State {
+        RUNNING, COMPLETED, FAILED
+    }
+
+    private final RegistrationPlugin plugin;
+    private final int chunkSize;
+
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong existing = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final List<String> errors = Collections.synchronizedList(new ArrayList<>());
+    private final long startTime = System.currentTimeMillis();
+    private volatile long endTime;
+    private volatile State state = State.RUNNING;
+
+    RegistrationImport(RegistrationPlugin plugin, int chunkSize) {
+        this.plugin = plugin;
+        this.chunkSize = Math.max(1, chunkSize);
+    }
+
+    /**
+     * Reads all records from the input, and creates the users that they describe.
+     *
+     * @param input the records.
+     * @param format the format of the records.
+     */
+    void run(Reader input, Format format) {
+        try {
+            final List<String[]> chunk = new ArrayList<>(chunkSize);
+            if (format == Format.JSON) {
+                final RegistrationJsonReader reader = new RegistrationJsonReader(input);
+                Map<String, String> record;
+                while ((record = reader.next()) != null) {
+                    chunk.add(new String[] { record.get("username"), record.get("password"), record.get("name"), record.get("email") });
+                    if (chunk.size() >= chunkSize) {
+                        importChunk(chunk);
+                    }
+                }
+            }
+            else {
+                final BufferedReader reader = new BufferedReader(input);
+                String line;
+                boolean first = true;
+                while ((line = reader.readLine()) != null) {
+                    final String trimmed = line.trim();
+                    if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                        continue;
+                    }
+                    if (first && trimmed.toLowerCase().startsWith("username")) {
+                        first = false;
+                        continue;
+                    }
+                    first = false;
+                    chunk.add(parseCsvLine(line));
+                    if (chunk.size() >= chunkSize) {
+                        importChunk(chunk);
+                    }
+                }
+            }
+            importChunk(chunk);
+            state = State.COMPLETED;
+        }
+        catch (IOException | RuntimeException e) {
+            Log.error("Registration plugin : bulk import aborted.", e);
+            addError("Import aborted: " + e.getMessage());
+            state = State.FAILED;
+        }
+        finally {
+            endTime = System.currentTimeMillis();
+            plugin.sendAdminNotification("User Import", getReport());
+        }
+    }
+
+    private void importChunk(List<String[]> chunk) {
+        if (chunk.isEmpty()) {
+            return;
+        }
+        final UserManager userManager = UserManager.getInstance();
+        final List<User> users = new ArrayList<>(chunk.size());
+        for (String[] record : chunk) {
+            processed.incrementAndGet();
+            final String username = RegistrationPlugin.prepareUsername(record[0]);
+            if (username == null) {
+                fail("Invalid username '" + record[0] + "'.");
+                continue;
+            }
+            if (record[1] == null || record[1].isEmpty()) {
+                fail("No password for user '" + username + "'.");
+                continue;
+            }
+            if (plugin.isReservedUsername(username)) {
+                fail("Reserved username '" + username + "'.");
+                continue;
+            }
+            if (record[3] != null && plugin.isBlockedEmail(record[3].trim())) {
+                fail("Blocked email domain for user '" + username + "'.");
+                continue;
+            }
+            plugin.suppressRegistrationActions(username);
+            try {
+                users.add(userManager.createUser(username, record[1], emptyToNull(record[2]), emptyToNull(record[3])));
+                created.incrementAndGet();
+            }
+            catch (UserAlreadyExistsException e) {
+                existing.incrementAndGet();
+            }
+            catch (Exception e) {
+                fail("Unable to create user '" + username + "': " + e.getMessage());
+            }
+            finally {
+                plugin.releaseRegistrationActions(username);
+            }
+        }
+        chunk.clear();
+
+        for (User user : users) {
+            try {
+                plugin.applyRegistrationActions(user, false);
+            }
+            catch (Exception e) {
+                fail("Unable to apply registration actions to user '" + user.getUsername() + "': " + e.getMessage());
+            }
+        }
+    }
+
+    private void fail(String error) {
+        failed.incrementAndGet();
+        addError(error);
+    }
+
+    private void addError(String error) {
+        if (errors.size() < MAX_ERRORS) {
+            errors.add(error);
+        }
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public long getProcessed() {
+        return processed.get();
+    }
+
+    public long getCreated() {
+        return created.get();
+    }
+
+    public long getExisting() {
+        return existing.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return up to 100 errors that occurred during the import.
+     */
+    public List<String> getErrors() {
+        synchronized (errors) {
+            return new ArrayList<>(errors);
+        }
+    }
+
+    public long getElapsedMillis() {
+        return (endTime > 0 ? endTime : System.currentTimeMillis()) - startTime;
+    }
+
+    /**
+     * @return the number of processed records per second.
+     */
+    public double getThroughput() {
+        final long elapsed = getElapsedMillis();
+        return elapsed > 0 ? processed.get() * 1000.0 / elapsed : 0;
+    }
+
+    String getReport() {
+        return " Bulk user import " + (state == State.FAILED ? "aborted" : "completed") + " after "
+                + (getElapsedMillis() / 1000) + " seconds: " + created.get() + " user(s) created, "
+                + existing.get() + " already existed, " + failed.get() + " failed.";
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.trim().isEmpty() ? null : value.trim();
+    }
+
+    /**
+     * Splits a CSV line in (up to) four fields. Fields can be quoted with double quotes; a double quote in a
+     * quoted field is escaped by doubling it. All fields but the password are trimmed, as whitespace can be part
+     * of a password.
+     */
+    static String[] parseCsvLine(String line) {
+        final String[] fields = new String[4];
+        final StringBuilder field = new StringBuilder();
+        int index = 0;
+        boolean quoted = false;
+        for (int i = 0; i < line.length() && index < fields.length; i++) {
+            final char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        field.append('"');
+                        i++;
+                    }
+                    else {
+                        quoted = false;
+                    }
+                }
+                else {
+                    field.append(c);
+                }
+            }
+            else if (c == '"') {
+                quoted = true;
+            }
+            else if (c == ',') {
+                fields[index] = index == 1 ? field.toString() : field.toString().trim();
+                index++;
+                field.setLength(0);
+            }
+            else {
+                field.append(c);
+            }
+        }
+        if (index < fields.length) {
+            fields[index] = index == 1 ? field.toString() : field.toString().trim();
+        }
+        return fields;
+    }
+}
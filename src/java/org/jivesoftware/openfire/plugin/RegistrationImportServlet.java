@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.io.IOException;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.util.CookieUtils;
+
+/**
+ * Accepts bulk user imports, and reports their progress.
+ *
+ * A POST request streams the records in its body, as CSV (the default) or JSON. The format is taken from the
+ * <tt>format</tt> parameter or, if that is absent, from the content type of the request. The request completes
+ * when the import completes. A GET request returns the progress of the running (or most recent) import. Both
+ * respond with a JSON object. This servlet is only available to administrators. Like the forms of the admin console,
+ * a POST request must carry the value of the <tt>csrf</tt> cookie that the import page sets in its <tt>csrf</tt>
+ * parameter.
+ */
+public class RegistrationImportServlet extends HttpServlet {
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (request.getCharacterEncoding() == null) {
+            request.setCharacterEncoding("UTF-8");
+        }
+        final Cookie csrfCookie = CookieUtils.getCookie(request, "csrf");
+        final String csrfParam = request.getParameter("csrf");
+        if (csrfCookie == null || csrfParam == null || !csrfCookie.getValue().equals(csrfParam)) {
+            writeJson(response, HttpServletResponse.SC_FORBIDDEN,
+                    new RegistrationJsonWriter().put("error", "csrf").toString());
+            return;
+        }
+
+        final RegistrationPlugin plugin = getPlugin();
+        final RegistrationImport registrationImport = plugin.startImport();
+        if (registrationImport == null) {
+            writeJson(response, HttpServletResponse.SC_CONFLICT,
+                    new RegistrationJsonWriter().put("error", "import-running").toString());
+            return;
+        }
+
+        final String format = request.getParameter("format");
+        final String contentType = request.getContentType();
+        final boolean json = format != null
+                ? format.equalsIgnoreCase("json")
+                : contentType != null && contentType.toLowerCase().contains("json");
+
+        registrationImport.run(request.getReader(), json ? RegistrationImport.Format.JSON : RegistrationImport.Format.CSV);
+        writeJson(response, HttpServletResponse.SC_OK, toJson(registrationImport));
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        final RegistrationImport registrationImport = getPlugin().getImport();
+        if (registrationImport == null) {
+            writeJson(response, HttpServletResponse.SC_OK, new RegistrationJsonWriter().put("state", "none").toString());
+        }
+        else {
+            writeJson(response, HttpServletResponse.SC_OK, toJson(registrationImport));
+        }
+    }
+
+    private static String toJson(RegistrationImport registrationImport) {
+        return new RegistrationJsonWriter()
+                .put("state", registrationImport.getState().name().toLowerCase())
+                .put("processed", registrationImport.getProcessed())
+                .put("created", registrationImport.getCreated())
+                .put("existing", registrationImport.getExisting())
+                .put("failed", registrationImport.getFailed())
+                .put("elapsedMillis", registrationImport.getElapsedMillis())
+                .put("throughput", registrationImport.getThroughput())
+                .put("errors", registrationImport.getErrors())
+                .toString();
+    }
+
+    static void writeJson(HttpServletResponse response, int status, String json) throws IOException {
+        response.setStatus(status);
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        response.getWriter().write(json);
+    }
+
+    static RegistrationPlugin getPlugin() {
+        return (RegistrationPlugin) XMPPServer.getInstance().getPluginManager().getPlugin("registration");
+    }
+}
@@ -0,0 +1,466 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.util.TaskEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only journal of registrations: the username, the time, the address of the client that signed up
+ * through the web page, and which registration actions succeeded or failed.
+ *
+ * The journal is stored in segments of a fixed size, which are memory-mapped while they are written. A new
+ * segment is started when the current one is full or was started on an earlier day, and segments that only
+ * contain entries older than the retention period are deleted. Next to the journal, the number of registrations
+ * and of failed actions are aggregated per minute, hour and day, over a window that covers the last day, month and
+ * year. Those buckets answer the queries, so querying does not depend on the size of the journal. When the plugin
+ * is loaded, the buckets are rebuilt by reading the journal in the background.
+ */
+public class RegistrationJournal {
+
+    private static final Logger Log = LoggerFactory.getLogger(RegistrationJournal.class);
+
+    private static final int SEGMENT_SIZE = 8 * 1024 * 1024;
+    private static final int MAGIC = 0x52474a31;
+    private static final String PREFIX = "journal-";
+    private static final String SUFFIX = ".seg";
+    // Length, timestamp, stage masks, username length and address length.
+    private static final int MIN_RECORD_SIZE = 2 + 8 + 2 + 2 + 1;
+
+    /**
+     * The resolutions of the aggregated buckets, and the number of buckets kept for each.
+     */
+    public enum Resolution {
+        MINUTE(TimeUnit.MINUTES.toMillis(1), 24 * 60),
+        HOUR(TimeUnit.HOURS.toMillis(1), 31 * 24),
+        DAY(TimeUnit.DAYS.toMillis(1), 366);
+
+        private final long millis;
+        private final int buckets;
+
+        Resolution(long millis, int buckets) {
+            this.millis = millis;
+            this.buckets = buckets;
+        }
+
+        public int getBuckets() {
+            return buckets;
+        }
+    }
+
+    /**
+     * The registrations in one period.
+     */
+    public static final class Bucket {
+
+        private final long start;
+        private final long registrations;
+        private final long[] failures;
+
+        Bucket(long start, long registrations, long[] failures) {
+            this.start = start;
+            this.registrations = registrations;
+            this.failures = failures;
+        }
+
+        /**
+         * @return the start of the period, in milliseconds since the epoch.
+         */
+        public long getStart() {
+            return start;
+        }
+
+        public long getRegistrations() {
+            return registrations;
+        }
+
+        public long getFailures(RegistrationMetrics.Stage stage) {
+            return failures[stage.ordinal()];
+        }
+
+        /**
+         * @return the number of registrations for which at least one action failed.
+         */
+        public long getFailedRegistrations() {
+            return failures[failures.length - 1];
+        }
+    }
+
+    /**
+     * A ring of buckets of one resolution. A slot holds the bucket of the last period that mapped to it, so old
+     * periods are overwritten as time goes by.
+     */
+    private static final class Series {
+
+        private final Resolution resolution;
+        private final long[] keys;
+        private final long[] registrations;
+        // One row per stage, and one for registrations with any failure.
+        private final long[][] failures;
+
+        Series(Resolution resolution) {
+            this.resolution = resolution;
+            keys = new long[resolution.buckets];
+            Arrays.fill(keys, -1);
+            registrations = new long[resolution.buckets];
+            failures = new long[RegistrationMetrics.Stage.values().length + 1][resolution.buckets];
+        }
+
+        void add(long timestamp, int failed) {
+            final long key = key(timestamp);
+            final int slot = (int) Math.floorMod(key, (long) keys.length);
+            if (keys[slot] != key) {
+                if (keys[slot] > key) {
+                    // Older than the window.
+                    return;
+                }
+                keys[slot] = key;
+                registrations[slot] = 0;
+                for (long[] row : failures) {
+                    row[slot] = 0;
+                }
+            }
+            registrations[slot]++;
+            for (int stage = 0; stage < failures.length - 1; stage++) {
+                if ((failed & (1 << stage)) != 0) {
+                    failures[stage][slot]++;
+                }
+            }
+            if (failed != 0) {
+                failures[failures.length - 1][slot]++;
+            }
+        }
+
+        Bucket get(long key) {
+            final int slot = (int) Math.floorMod(key, (long) keys.length);
+            final long[] counts = new long[failures.length];
+            long count = 0;
+            if (keys[slot] == key) {
+                count = registrations[slot];
+                for (int i = 0; i < failures.length; i++) {
+                    counts[i] = failures[i][slot];
+                }
+            }
+            return new Bucket(start(key), count, counts);
+        }
+
+        /**
+         * Periods start at local midnight, hours and minutes, not at UTC ones.
+         */
+        long key(long timestamp) {
+            return Math.floorDiv(timestamp + TimeZone.getDefault().getOffset(timestamp), resolution.millis);
+        }
+
+        long start(long key) {
+            final long local = key * resolution.millis;
+            return local - TimeZone.getDefault().getOffset(local);
+        }
+    }
+
+    private final File directory;
+    private final long retentionMillis;
+    private final Map<Resolution, Series> series = new EnumMap<>(Resolution.class);
+
+    private MappedByteBuffer segment;
+    private long segmentStart;
+    private long entries;
+    private volatile boolean loaded;
+
+    /**
+     * @param directory the directory that holds the segments.
+     * @param retentionDays the number of days entries are kept.
+     */
+    RegistrationJournal(File directory, int retentionDays) {
+        this.directory = directory;
+        this.retentionMillis = TimeUnit.DAYS.toMillis(Math.max(1, retentionDays));
+        for (Resolution resolution : Resolution.values()) {
+            series.put(resolution, new Series(resolution));
+        }
+    }
+
+    /**
+     * Opens the last segment for writing, and rebuilds the buckets in the background.
+     */
+    synchronized void start() {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.error("Registration plugin : unable to create the journal directory {}.", directory);
+            return;
+        }
+        final List<File> segments = listSegments();
+        int end = 0;
+        try {
+            if (!segments.isEmpty()) {
+                final File last = segments.get(segments.size() - 1);
+                segment = map(last);
+                segmentStart = startOf(last);
+                if (segment.getInt(0) != MAGIC) {
+                    segment.putInt(0, MAGIC);
+                }
+                end = endOf(segment);
+                clear(segment, end);
+                segment.position(end);
+            }
+        }
+        catch (IOException e) {
+            Log.error("Registration plugin : unable to open the registration journal.", e);
+        }
+        // Entries that are appended to the last segment from now on are counted by append().
+        final int lastEnd = end;
+        TaskEngine.getInstance().submit(() -> load(segments, lastEnd));
+    }
+
+    synchronized void stop() {
+        if (segment != null) {
+            segment.force();
+            segment = null;
+        }
+    }
+
+    /**
+     * Appends a registration to the journal.
+     *
+     * @param username the new user.
+     * @param timestamp the time of the registration.
+     * @param address the address of the client that signed up, or null.
+     * @param succeeded the stages that succeeded, one bit per {@link RegistrationMetrics.Stage} ordinal.
+     * @param failed the stages that failed, one bit per {@link RegistrationMetrics.Stage} ordinal.
+     */
+    synchronized void append(String username, long timestamp, String address, int succeeded, int failed) {
+        for (Series s : series.values()) {
+            s.add(timestamp, failed);
+        }
+        entries++;
+
+        final byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        final byte[] client = address != null ? address.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        // Length, timestamp, stage masks, username and address.
+        final int length = 2 + 8 + 2 + 2 + name.length + 1 + Math.min(client.length, 255);
+        try {
+            if (segment == null || segment.remaining() < length + 2 || day(timestamp) > day(segmentStart)) {
+                rollover(timestamp);
+            }
+            final int position = segment.position();
+            segment.position(position + 2);
+            segment.putLong(timestamp);
+            segment.put((byte) succeeded);
+            segment.put((byte) failed);
+            segment.putShort((short) name.length);
+            segment.put(name);
+            segment.put((byte) Math.min(client.length, 255));
+            segment.put(client, 0, Math.min(client.length, 255));
+            // The length is written last, so a record that was cut off by a crash still has a length of zero,
+            // and marks the end of the segment.
+            segment.putShort(position, (short) length);
+        }
+        catch (IOException e) {
+            Log.error("Registration plugin : unable to write the registration of '{}' to the journal.", username, e);
+        }
+    }
+
+    /**
+     * Returns the most recent buckets of a resolution, including the current one.
+     *
+     * @param resolution the resolution.
+     * @param count the number of buckets, at most {@link Resolution#getBuckets()}.
+     * @return the buckets, oldest first. Periods without registrations are included.
+     */
+    public synchronized List<Bucket> getBuckets(Resolution resolution, int count) {
+        final Series s = series.get(resolution);
+        final long current = s.key(System.currentTimeMillis());
+        final int n = Math.max(1, Math.min(count, resolution.buckets));
+        final List<Bucket> buckets = new ArrayList<>(n);
+        for (long key = current - n + 1; key <= current; key++) {
+            buckets.add(s.get(key));
+        }
+        return buckets;
+    }
+
+    /**
+     * Returns the number of failures per action over the most recent buckets of a resolution.
+     */
+    public Map<RegistrationMetrics.Stage, Long> getFailures(Resolution resolution, int count) {
+        final Map<RegistrationMetrics.Stage, Long> failures = new EnumMap<>(RegistrationMetrics.Stage.class);
+        for (RegistrationMetrics.Stage stage : RegistrationMetrics.Stage.values()) {
+            failures.put(stage, 0L);
+        }
+        for (Bucket bucket : getBuckets(resolution, count)) {
+            for (RegistrationMetrics.Stage stage : RegistrationMetrics.Stage.values()) {
+                failures.put(stage, failures.get(stage) + bucket.getFailures(stage));
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * @return the number of entries in the journal. While the journal is being read, only part of them.
+     */
+    public synchronized long getEntryCount() {
+        return entries;
+    }
+
+    /**
+     * @return false while the buckets are rebuilt from the journal.
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Reads the segments that existed when the plugin was loaded into the buckets.
+     *
+     * @param lastEnd the position after the last record of the last segment when the plugin was loaded.
+     */
+    private void load(List<File> segments, int lastEnd) {
+        final long start = System.currentTimeMillis();
+        long count = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            final File file = segments.get(i);
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+                final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.limit() < 4 || buffer.getInt(0) != MAGIC) {
+                    Log.warn("Registration plugin : {} is not a registration journal segment.", file);
+                    continue;
+                }
+                final int end = i == segments.size() - 1 ? lastEnd : endOf(buffer);
+                int position = 4;
+                while (position < end) {
+                    final long timestamp = buffer.getLong(position + 2);
+                    final int failed = buffer.get(position + 11) & 0xff;
+                    synchronized (this) {
+                        for (Series s : series.values()) {
+                            s.add(timestamp, failed);
+                        }
+                        entries++;
+                    }
+                    count++;
+                    position += buffer.getShort(position);
+                }
+            }
+            catch (IOException | IndexOutOfBoundsException e) {
+                Log.warn("Registration plugin : unable to read the registration journal segment {}.", file, e);
+            }
+        }
+        loaded = true;
+        Log.info("Registration plugin : read {} registration(s) from the journal in {} ms.", count,
+                System.currentTimeMillis() - start);
+    }
+
+    private void rollover(long timestamp) throws IOException {
+        if (segment != null) {
+            segment.force();
+        }
+        // Segments are named after the time of their first entry, which is not necessarily unique.
+        long start = Math.max(timestamp, segmentStart + 1);
+        while (new File(directory, PREFIX + start + SUFFIX).exists()) {
+            start++;
+        }
+        segment = map(new File(directory, PREFIX + start + SUFFIX));
+        segment.putInt(MAGIC);
+        segmentStart = start;
+        deleteExpiredSegments(timestamp);
+    }
+
+    /**
+     * Deletes the segments that are followed by a segment that was started before the retention period.
+     */
+    private void deleteExpiredSegments(long now) {
+        final List<File> segments = listSegments();
+        for (int i = 0; i < segments.size() - 1; i++) {
+            if (startOf(segments.get(i + 1)) < now - retentionMillis) {
+                if (!segments.get(i).delete()) {
+                    Log.warn("Registration plugin : unable to delete the expired journal segment {}.", segments.get(i));
+                }
+            }
+        }
+    }
+
+    private List<File> listSegments() {
+        final File[] files = directory.listFiles((dir, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        final List<File> segments = new ArrayList<>(Arrays.asList(files));
+        segments.sort((a, b) -> Long.compare(startOf(a), startOf(b)));
+        return segments;
+    }
+
+    private static long startOf(File segment) {
+        final String name = segment.getName();
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        }
+        catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static MappedByteBuffer map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            // The mapping stays valid after the channel is closed.
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        }
+    }
+
+    /**
+     * @return the position after the last record of a segment. Unwritten space is zero, so the first record with
+     *         a length of zero (or any other length that no complete record has) marks the end.
+     */
+    private static int endOf(MappedByteBuffer buffer) {
+        int position = 4;
+        while (position + 2 <= buffer.limit()) {
+            final int length = buffer.getShort(position);
+            if (length < MIN_RECORD_SIZE || position + length > buffer.limit()) {
+                break;
+            }
+            position += length;
+        }
+        return position;
+    }
+
+    /**
+     * Zeroes the space after the last record of a segment that a record which was cut off may have written to, so
+     * it is not taken for the next record.
+     */
+    private static void clear(MappedByteBuffer buffer, int from) {
+        final int to = Math.min(buffer.limit(), from + Short.MAX_VALUE + 1);
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) != 0) {
+                buffer.put(i, (byte) 0);
+            }
+        }
+    }
+
+    private static long day(long timestamp) {
+        return Math.floorDiv(timestamp + TimeZone.getDefault().getOffset(timestamp), TimeUnit.DAYS.toMillis(1));
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.io.IOException;
+import java.io.PushbackReader;
+import java.io.Reader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A minimal, streaming reader for JSON documents that consist of flat objects: either a single object, or an
+ * array of objects. Values of the objects are returned as strings (numbers and booleans in their textual form,
+ * null as null). Nested objects and arrays are not supported.
+ *
+ * Only one object is held in memory at a time, which allows large arrays to be processed as a stream.
+ */
+class RegistrationJsonReader {
+
+    private final PushbackReader reader;
+    private boolean inArray;
+    private boolean finished;
+
+    RegistrationJsonReader(Reader reader) {
+        this.reader = new PushbackReader(reader, 1);
+    }
+
+    /**
+     * Reads the next object.
+     *
+     * @return the properties of the object, or null if there are no more objects.
+     * @throws IOException if the stream cannot be read or does not contain valid JSON.
+     */
+    Map<String, String> next() throws IOException {
+        if (finished) {
+            return null;
+        }
+        int c = skipWhitespace();
+        if (c == -1) {
+            finished = true;
+            return null;
+        }
+        if (!inArray) {
+            if (c == '[') {
+                inArray = true;
+                c = skipWhitespace();
+                if (c == ']') {
+                    finished = true;
+                    return null;
+                }
+            }
+            else {
+                finished = true;
+                return readObject(c);
+            }
+        }
+        else {
+            if (c == ']') {
+                finished = true;
+                return null;
+            }
+            if (c != ',') {
+                throw new IOException("Expected ',' or ']' but found '" + (char) c + "'.");
+            }
+            c = skipWhitespace();
+        }
+        return readObject(c);
+    }
+
+    private Map<String, String> readObject(int c) throws IOException {
+        if (c != '{') {
+            throw new IOException("Expected '{' but found " + describe(c) + ".");
+        }
+        final Map<String, String> result = new LinkedHashMap<>();
+        c = skipWhitespace();
+        if (c == '}') {
+            return result;
+        }
+        while (true) {
+            if (c != '"') {
+                throw new IOException("Expected a property name but found " + describe(c) + ".");
+            }
+            final String name = readString();
+            c = skipWhitespace();
+            if (c != ':') {
+                throw new IOException("Expected ':' but found " + describe(c) + ".");
+            }
+            result.put(name, readValue(skipWhitespace()));
+            c = skipWhitespace();
+            if (c == '}') {
+                return result;
+            }
+            if (c != ',') {
+                throw new IOException("Expected ',' or '}' but found " + describe(c) + ".");
+            }
+            c = skipWhitespace();
+        }
+    }
+
+    private String readValue(int c) throws IOException {
+        if (c == '"') {
+            return readString();
+        }
+        if (c == '{' || c == '[') {
+            throw new IOException("Nested objects and arrays are not supported.");
+        }
+        final StringBuilder literal = new StringBuilder();
+        while (c != -1 && c != ',' && c != '}' && c != ']' && !Character.isWhitespace(c)) {
+            literal.append((char) c);
+            c = reader.read();
+        }
+        if (c != -1) {
+            reader.unread(c);
+        }
+        final String value = literal.toString();
+        if (value.isEmpty()) {
+            throw new IOException("Expected a value but found " + describe(c) + ".");
+        }
+        return value.equals("null") ? null : value;
+    }
+
+    private String readString() throws IOException {
+        final StringBuilder buf = new StringBuilder();
+        while (true) {
+            int c = reader.read();
+            switch (c) {
+                case -1:
+                    throw new IOException("Unterminated string.");
+                case '"':
+                    return buf.toString();
+                case '\\':
+                    c = reader.read();
+                    switch (c) {
+                        case 'b': buf.append('\b'); break;
+                        case 'f': buf.append('\f'); break;
+                        case 'n': buf.append('\n'); break;
+                        case 'r': buf.append('\r'); break;
+                        case 't': buf.append('\t'); break;
+                        case 'u':
+                            final char[] hex = new char[4];
+                            for (int i = 0; i < 4; i++) {
+                                final int h = reader.read();
+                                if (h == -1) {
+                                    throw new IOException("Unterminated escape sequence.");
+                                }
+                                hex[i] = (char) h;
+                            }
+                            try {
+                                buf.append((char) Integer.parseInt(new String(hex), 16));
+                            }
+                            catch (NumberFormatException e) {
+                                throw new IOException("Invalid escape sequence: \\u" + new String(hex));
+                            }
+                            break;
+                        case -1:
+                            throw new IOException("Unterminated escape sequence.");
+                        default:
+                            buf.append((char) c);
+                    }
+                    break;
+                default:
+                    buf.append((char) c);
+            }
+        }
+    }
+
+    private int skipWhitespace() throws IOException {
+        int c;
+        do {
+            c = reader.read();
+        } while (c != -1 && Character.isWhitespace(c));
+        return c;
+    }
+
+    private static String describe(int c) {
+        return c == -1 ? "the end of the input" : "'" + (char) c + "'";
+    }
+}
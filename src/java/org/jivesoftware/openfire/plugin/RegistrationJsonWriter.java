@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.util.Collection;
+import java.util.Locale;
+
+/**
+ * Builds a single, flat JSON object. Values can be strings, numbers, booleans or collections of strings.
+ */
+class RegistrationJsonWriter {
+
+    private final StringBuilder buf = new StringBuilder("{");
+
+    RegistrationJsonWriter put(String name, String value) {
+        name(name);
+        if (value == null) {
+            buf.append("null");
+        }
+        else {
+            quote(value);
+        }
+        return this;
+    }
+
+    RegistrationJsonWriter put(String name, long value) {
+        name(name);
+        buf.append(value);
+        return this;
+    }
+
+    RegistrationJsonWriter put(String name, double value) {
+        name(name);
+        buf.append(Double.isNaN(value) || Double.isInfinite(value) ? "0" : String.format(Locale.ROOT, "%.2f", value));
+        return this;
+    }
+
+    RegistrationJsonWriter put(String name, boolean value) {
+        name(name);
+        buf.append(value);
+        return this;
+    }
+
+    RegistrationJsonWriter put(String name, Collection<String> values) {
+        name(name);
+        buf.append('[');
+        boolean first = true;
+        for (String value : values) {
+            if (!first) {
+                buf.append(',');
+            }
+            first = false;
+            quote(value);
+        }
+        buf.append(']');
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return buf.toString() + "}";
+    }
+
+    private void name(String name) {
+        if (buf.length() > 1) {
+            buf.append(',');
+        }
+        quote(name);
+        buf.append(':');
+    }
+
+    private void quote(String value) {
+        buf.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"': buf.append("\\\""); break;
+                case '\\': buf.append("\\\\"); break;
+                case '\n': buf.append("\\n"); break;
+                case '\r': buf.append("\\r"); break;
+                case '\t': buf.append("\\t"); break;
+                default:
+                    if (c < 0x20 || c == '<' || c == '>' || c == '&' || c == '\u2028' || c == '\u2029') {
+                        buf.append(String.format("\\u%04x", (int) c));
+                    }
+                    else {
+                        buf.append(c);
+                    }
+            }
+        }
+        buf.append('"');
+    }
+}
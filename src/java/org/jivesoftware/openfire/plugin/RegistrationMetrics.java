@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counters and latency histograms for the stages of the registration pipeline, and counters for the outcomes
+ * of web sign-ups.
+ *
+ * Recording a measurement only increments striped counters and one histogram bucket, so it is cheap enough to
+ * be done for every registration. The histograms have a bucket per power of two microseconds, which makes the
+ * percentiles accurate to within a factor of two. The metrics are published as MBeans in the
+ * <tt>org.igniterealtime.openfire.plugin.registration</tt> domain.
+ */
+public class RegistrationMetrics {
+
+    private static final Logger Log = LoggerFactory.getLogger(RegistrationMetrics.class);
+
+    private static final String DOMAIN = "org.igniterealtime.openfire.plugin.registration";
+
+    /**
+     * The stages of the registration pipeline. Every stage is timed around the work itself, such as the write of
+     * the group membership, so that a failure to write counts as a failure of the stage, and of the registration
+     * in the journal.
+     */
+    public enum Stage {
+        IM_NOTIFICATION, EMAIL_NOTIFICATION, WELCOME, GROUP, PRIVACY_LIST, LOCKOUT
+    }
+
+    /**
+     * The outcomes of a web sign-up.
+     */
+    public enum SignUpOutcome {
+        SUCCESS, EXISTS, CAPTCHA_FAIL, VALIDATION_FAIL, RATE_LIMITED, ERROR
+    }
+
+    /**
+     * The metrics of one stage.
+     */
+    public static class StageMetrics implements RegistrationStageMBean {
+
+        private static final int BUCKETS = 32;
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Long::max, 0);
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        void record(long nanos, boolean failed) {
+            count.increment();
+            if (failed) {
+                failures.increment();
+            }
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+            final long micros = nanos / 1000;
+            histogram.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        public double getMeanMillis() {
+            final long n = count.sum();
+            return n > 0 ? totalNanos.sum() / 1000000.0 / n : 0;
+        }
+
+        public double getMedianMillis() {
+            return percentile(0.5);
+        }
+
+        public double get99thPercentileMillis() {
+            return percentile(0.99);
+        }
+
+        public double getMaxMillis() {
+            return maxNanos.get() / 1000000.0;
+        }
+
+        /**
+         * @return the upper bound, in milliseconds, of the bucket that contains the requested percentile.
+         */
+        private double percentile(double fraction) {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                total += histogram.get(i);
+            }
+            if (total == 0) {
+                return 0;
+            }
+            final long rank = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += histogram.get(i);
+                if (seen >= rank) {
+                    return Math.min((1L << i) / 1000.0, getMaxMillis());
+                }
+            }
+            return getMaxMillis();
+        }
+    }
+
+    /**
+     * The outcome counters of web sign-ups.
+     */
+    private class SignUpMetrics implements RegistrationSignUpMBean {
+
+        public long getSuccess() {
+            return getSignUps(SignUpOutcome.SUCCESS);
+        }
+
+        public long getExists() {
+            return getSignUps(SignUpOutcome.EXISTS);
+        }
+
+        public long getCaptchaFail() {
+            return getSignUps(SignUpOutcome.CAPTCHA_FAIL);
+        }
+
+        public long getValidationFail() {
+            return getSignUps(SignUpOutcome.VALIDATION_FAIL);
+        }
+
+        public long getRateLimited() {
+            return getSignUps(SignUpOutcome.RATE_LIMITED);
+        }
+
+        public long getError() {
+            return getSignUps(SignUpOutcome.ERROR);
+        }
+    }
+
+    private final Map<Stage, StageMetrics> stages = new EnumMap<>(Stage.class);
+    private final Map<SignUpOutcome, LongAdder> signUps = new EnumMap<>(SignUpOutcome.class);
+
+    RegistrationMetrics() {
+        for (Stage stage : Stage.values()) {
+            stages.put(stage, new StageMetrics());
+        }
+        for (SignUpOutcome outcome : SignUpOutcome.values()) {
+            signUps.put(outcome, new LongAdder());
+        }
+    }
+
+    /**
+     * Records the execution of a stage.
+     *
+     * @param stage the stage.
+     * @param startNanos the value of {@link System#nanoTime()} when the stage started.
+     * @param failed true if the stage failed.
+     */
+    void record(Stage stage, long startNanos, boolean failed) {
+        stages.get(stage).record(System.nanoTime() - startNanos, failed);
+    }
+
+    void record(SignUpOutcome outcome) {
+        signUps.get(outcome).increment();
+    }
+
+    public StageMetrics getStage(Stage stage) {
+        return stages.get(stage);
+    }
+
+    public long getSignUps(SignUpOutcome outcome) {
+        return signUps.get(outcome).sum();
+    }
+
+    void register() {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            for (Map.Entry<Stage, StageMetrics> entry : stages.entrySet()) {
+                server.registerMBean(new StandardMBean(entry.getValue(), RegistrationStageMBean.class),
+                        stageName(entry.getKey()));
+            }
+            server.registerMBean(new StandardMBean(new SignUpMetrics(), RegistrationSignUpMBean.class), signUpName());
+        }
+        catch (JMException e) {
+            Log.warn("Registration plugin : unable to register the metrics with JMX.", e);
+        }
+    }
+
+    void unregister() {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            for (Stage stage : stages.keySet()) {
+                if (server.isRegistered(stageName(stage))) {
+                    server.unregisterMBean(stageName(stage));
+                }
+            }
+            if (server.isRegistered(signUpName())) {
+                server.unregisterMBean(signUpName());
+            }
+        }
+        catch (JMException e) {
+            Log.warn("Registration plugin : unable to unregister the metrics from JMX.", e);
+        }
+    }
+
+    private static ObjectName stageName(Stage stage) throws JMException {
+        return new ObjectName(DOMAIN + ":type=Stage,name=" + stage.name().toLowerCase());
+    }
+
+    private static ObjectName signUpName() throws JMException {
+        return new ObjectName(DOMAIN + ":type=SignUp");
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.QName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+
+/**
+ * Sends IM notifications to the contacts, as one stanza through a multicast service (XEP-0033, Extended Stanza
+ * Addressing) if one is configured and supports it, or otherwise as one message per contact.
+ *
+ * Whether the service supports multicast is asked through service discovery when the service is configured, and
+ * again every ten minutes while notifications are sent, also while the service is in use. Until the service has
+ * confirmed it, and as soon as it answers that it does not, answers with an error or does not answer, the
+ * notifications are sent to each contact. The address list of the multicast stanza is built once per set of contacts. The messages that are sent to
+ * each contact are copies of one prebuilt message that only differ in their recipient, as the router can keep a
+ * message after it was routed, for example in offline storage.
+ */
+class RegistrationMulticast {
+
+    private static final Logger Log = LoggerFactory.getLogger(RegistrationMulticast.class);
+
+    static final String NAMESPACE = "http://jabber.org/protocol/address";
+
+    private static final long RETRY_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * The address list of a set of contacts.
+     */
+    private static final class Addresses {
+
+        private final List<JID> recipients;
+        private final Element element;
+
+        Addresses(List<JID> recipients) {
+            this.recipients = recipients;
+            element = DocumentHelper.createElement(QName.get("addresses", NAMESPACE));
+            for (JID recipient : recipients) {
+                // Blind copies, so the contacts do not see each other's addresses.
+                element.addElement("address", NAMESPACE).addAttribute("type", "bcc")
+                        .addAttribute("jid", recipient.toString());
+            }
+        }
+    }
+
+    private final RegistrationServices services;
+    private final JID serverAddress;
+    private volatile JID service;
+    private volatile boolean available;
+    private volatile long nextDiscovery;
+    private final AtomicBoolean discovering = new AtomicBoolean();
+    private volatile Addresses addresses;
+
+    private final LongAdder multicastMessages = new LongAdder();
+    private final LongAdder unicastMessages = new LongAdder();
+
+    RegistrationMulticast(RegistrationServices services, JID serverAddress) {
+        this.services = services;
+        this.serverAddress = serverAddress;
+    }
+
+    /**
+     * Sets the multicast service, and asks it whether it supports multicast.
+     *
+     * @param service the JID of the service, or null or empty to send the notifications to each contact.
+     */
+    void setService(String service) {
+        JID address = null;
+        if (service != null && !service.trim().isEmpty()) {
+            try {
+                address = new JID(service.trim());
+            }
+            catch (IllegalArgumentException e) {
+                Log.warn("Registration plugin : ignoring invalid multicast service '{}'.", service);
+            }
+        }
+        available = false;
+        this.service = address;
+        // A discovery of the previous service must not hold back the discovery of this one.
+        discovering.set(false);
+        if (address != null) {
+            discover(address);
+        }
+    }
+
+    /**
+     * Sends a notification to the contacts.
+     *
+     * @param recipients the addresses of the contacts. The list must not be modified, as the address list of the
+     *        multicast stanza is kept for as long as the same list is passed.
+     * @param subject the subject, or null.
+     * @param body the body.
+     */
+    void send(List<JID> recipients, String subject, String body) {
+        if (recipients.isEmpty()) {
+            return;
+        }
+        final JID service = this.service;
+        if (service != null && recipients.size() > 1) {
+            // The answer is asynchronous, so this notification still goes the way that was last confirmed.
+            if (System.currentTimeMillis() >= nextDiscovery) {
+                discover(service);
+            }
+            if (available) {
+                Addresses current = addresses;
+                if (current == null || current.recipients != recipients) {
+                    current = new Addresses(recipients);
+                    addresses = current;
+                }
+                final Message message = createMessage(subject, body);
+                message.setTo(service);
+                message.getElement().add(current.element.createCopy());
+                services.route(message);
+                multicastMessages.increment();
+                return;
+            }
+        }
+
+        final Message message = createMessage(subject, body);
+        for (JID recipient : recipients) {
+            final Message copy = message.createCopy();
+            copy.setTo(recipient);
+            services.route(copy);
+        }
+        unicastMessages.add(recipients.size());
+    }
+
+    private Message createMessage(String subject, String body) {
+        final Message message = new Message();
+        message.setFrom(serverAddress);
+        if (subject != null) {
+            message.setSubject(subject);
+        }
+        message.setBody(body);
+        return message;
+    }
+
+    private void discover(JID service) {
+        if (!discovering.compareAndSet(false, true)) {
+            return;
+        }
+        nextDiscovery = System.currentTimeMillis() + RETRY_MILLIS;
+        try {
+            services.discoverFeature(serverAddress, service, NAMESPACE, supported -> {
+                discovering.set(false);
+                if (!service.equals(this.service)) {
+                    return;
+                }
+                if (supported && !available) {
+                    Log.info("Registration plugin : sending IM notifications through multicast service {}.", service);
+                }
+                else if (!supported) {
+                    Log.warn("Registration plugin : {} does not support multicast or did not answer, IM "
+                            + "notifications are sent to each contact.", service);
+                }
+                available = supported;
+            });
+        }
+        catch (RuntimeException e) {
+            discovering.set(false);
+            if (service.equals(this.service)) {
+                available = false;
+            }
+            Log.warn("Registration plugin : unable to ask {} whether it supports multicast.", service, e);
+        }
+    }
+
+    /**
+     * @return the JID of the multicast service, or null if none is configured.
+     */
+    JID getService() {
+        return service;
+    }
+
+    /**
+     * @return true if the multicast service confirmed that it supports multicast.
+     */
+    boolean isAvailable() {
+        return available;
+    }
+
+    /**
+     * @return the number of notifications that were sent through the multicast service.
+     */
+    long getMulticastCount() {
+        return multicastMessages.sum();
+    }
+
+    /**
+     * @return the number of messages that were sent to individual contacts.
+     */
+    long getUnicastCount() {
+        return unicastMessages.sum();
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TimerTask;
+
+import org.jivesoftware.util.TaskEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects the usernames of newly registered users, so that admin contacts can be notified of a burst of
+ * registrations with a single message, instead of one message per registration.
+ *
+ * During quiet periods (less than a configurable number of registrations per window) notifications are
+ * passed on immediately. Otherwise, usernames are collected until the window expires or until the maximum
+ * number of users per digest is reached, whichever happens first.
+ */
+class RegistrationNotificationDigest {
+
+    private static final Logger Log = LoggerFactory.getLogger(RegistrationNotificationDigest.class);
+
+    /**
+     * Receives the usernames that are to be included in one notification.
+     */
+    interface Sink {
+        void send(List<String> usernames);
+    }
+
+    private final Sink sink;
+
+    private final List<String> pending = new ArrayList<>();
+    private TimerTask flushTask;
+    private long windowStart;
+    private int windowCount;
+
+    RegistrationNotificationDigest(Sink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Registers a new user for notification.
+     *
+     * @param username the name of the user that registered.
+     * @param windowMillis the maximum time a username is held back before the digest is sent.
+     * @param maxUsers the maximum number of usernames in one digest.
+     * @param immediateThreshold the number of registrations per window that are sent without delay.
+     */
+    void add(String username, long windowMillis, int maxUsers, int immediateThreshold) {
+        List<String> toSend = null;
+        synchronized (this) {
+            final long now = System.currentTimeMillis();
+            if (now - windowStart >= windowMillis) {
+                windowStart = now;
+                windowCount = 0;
+            }
+            windowCount++;
+
+            if (pending.isEmpty() && windowCount <= immediateThreshold) {
+                toSend = Collections.singletonList(username);
+            }
+            else {
+                pending.add(username);
+                if (pending.size() >= maxUsers) {
+                    toSend = drain();
+                }
+                else if (flushTask == null) {
+                    flushTask = new TimerTask() {
+                        @Override
+                        public void run() {
+                            flush();
+                        }
+                    };
+                    TaskEngine.getInstance().schedule(flushTask, windowMillis);
+                }
+            }
+        }
+        if (toSend != null) {
+            deliver(toSend);
+        }
+    }
+
+    /**
+     * Immediately sends all usernames that are pending.
+     */
+    void flush() {
+        final List<String> toSend;
+        synchronized (this) {
+            toSend = drain();
+        }
+        if (!toSend.isEmpty()) {
+            deliver(toSend);
+        }
+    }
+
+    synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    private List<String> drain() {
+        if (flushTask != null) {
+            TaskEngine.getInstance().cancelScheduledTask(flushTask);
+            flushTask = null;
+        }
+        final List<String> drained = new ArrayList<>(pending);
+        pending.clear();
+        return drained;
+    }
+
+    private void deliver(List<String> usernames) {
+        try {
+            sink.send(usernames);
+        }
+        catch (Exception e) {
+            Log.error("Registration plugin : unable to send registration notification for {} user(s).", usernames.size(), e);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executes the post-registration actions of the plugin on a dedicated pool of worker threads that is fed
+ * through a bounded queue. This decouples the latency of user creation from the latency of the (potentially
+ * slow) side effects, such as sending email.
+ *
+ * What happens when the queue is full is determined by the {@link OverflowPolicy}.
+ */
+class RegistrationPipeline {
+
+    private static final Logger Log = LoggerFactory.getLogger(RegistrationPipeline.class);
+
+    /**
+     * Defines what happens to a task that is submitted while the queue of the pipeline is full.
+     */
+    enum OverflowPolicy {
+        /**
+         * The submitting thread waits until the queue has room for the task.
+         */
+        BLOCK,
+
+        /**
+         * The submitting thread executes the task itself.
+         */
+        CALLER_RUNS,
+
+        /**
+         * The task is discarded, and the number of dropped tasks is incremented.
+         */
+        DROP;
+
+        static OverflowPolicy parse(String value, OverflowPolicy defaultPolicy) {
+            if (value == null) {
+                return defaultPolicy;
+            }
+            try {
+                return valueOf(value.trim().toUpperCase().replace('-', '_'));
+            }
+            catch (IllegalArgumentException e) {
+                Log.warn("Unknown registration pipeline overflow policy '{}', using {}.", value, defaultPolicy);
+                return defaultPolicy;
+            }
+        }
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final OverflowPolicy overflowPolicy;
+    private final LongAdder dropped = new LongAdder();
+
+    RegistrationPipeline(int threads, int queueCapacity, OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+        final BlockingQueue<Runnable> queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        executor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 60, TimeUnit.SECONDS,
+                queue, new PipelineThreadFactory(), rejectionHandler(overflowPolicy));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues a task for execution. Depending on the overflow policy, this method blocks, runs the task
+     * in the calling thread or drops the task when the queue is full.
+     *
+     * @param task the task to execute.
+     * @return false if the task was dropped, because the queue was full or the pipeline is shut down.
+     */
+    boolean submit(Runnable task) {
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                }
+                catch (Throwable t) {
+                    Log.error("Registration plugin : unexpected error while executing a registration action.", t);
+                }
+            });
+            return true;
+        }
+        catch (RejectedExecutionException e) {
+            dropped.increment();
+            if (executor.isShutdown()) {
+                Log.warn("Registration plugin : dropping a registration task: {}", e.getMessage());
+            }
+            else if (Log.isDebugEnabled()) {
+                Log.debug("Registration plugin : pipeline queue full, dropped a registration task.");
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Stops accepting new tasks and waits for the tasks that already are queued to complete.
+     *
+     * @param timeout the maximum time to wait for the queue to drain.
+     * @param unit the unit of the timeout.
+     */
+    void shutdown(long timeout, TimeUnit unit) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeout, unit)) {
+                final int abandoned = executor.shutdownNow().size();
+                Log.warn("Registration plugin : pipeline did not drain in time, abandoning {} queued task(s).", abandoned);
+            }
+        }
+        catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    long getCompletedTaskCount() {
+        return executor.getCompletedTaskCount();
+    }
+
+    long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    private RejectedExecutionHandler rejectionHandler(OverflowPolicy policy) {
+        switch (policy) {
+            case CALLER_RUNS:
+                return (task, pool) -> {
+                    if (!pool.isShutdown()) {
+                        task.run();
+                    }
+                    else {
+                        throw new RejectedExecutionException("Registration pipeline is shut down");
+                    }
+                };
+            case DROP:
+                return (task, pool) -> {
+                    if (pool.isShutdown()) {
+                        throw new RejectedExecutionException("Registration pipeline is shut down");
+                    }
+                    // Reported to the caller of submit, which counts the dropped task.
+                    throw new RejectedExecutionException("Registration pipeline queue is full");
+                };
+            case BLOCK:
+            default:
+                return (task, pool) -> {
+                    if (pool.isShutdown()) {
+                        throw new RejectedExecutionException("Registration pipeline is shut down");
+                    }
+                    try {
+                        pool.getQueue().put(task);
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException("Interrupted while waiting for the registration pipeline", e);
+                    }
+                };
+        }
+    }
+
+    private static class PipelineThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "registration-pipeline-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
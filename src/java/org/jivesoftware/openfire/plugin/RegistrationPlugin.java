@@ -18,31 +18,37 @@ package org.jivesoftware.openfire.plugin;
 
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 
-import org.dom4j.Document;
-import org.dom4j.DocumentHelper;
+import gnu.inet.encoding.Stringprep;
+import gnu.inet.encoding.StringprepException;
 import org.dom4j.DocumentException;
-import org.dom4j.Element;
+import org.eclipse.jetty.servlet.DefaultServlet;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
 import org.jivesoftware.admin.AuthCheckFilter;
-import org.jivesoftware.openfire.MessageRouter;
 import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.cluster.ClusterManager;
 import org.jivesoftware.openfire.container.Plugin;
 import org.jivesoftware.openfire.container.PluginManager;
 import org.jivesoftware.openfire.event.UserEventDispatcher;
 import org.jivesoftware.openfire.event.UserEventListener;
-import org.jivesoftware.openfire.group.Group;
-import org.jivesoftware.openfire.group.GroupManager;
-import org.jivesoftware.openfire.group.GroupNotFoundException;
-import org.jivesoftware.openfire.lockout.LockOutManager;
+import org.jivesoftware.openfire.http.HttpBindManager;
 import org.jivesoftware.openfire.user.User;
-import org.jivesoftware.openfire.privacy.PrivacyList;
-import org.jivesoftware.openfire.privacy.PrivacyListManager;
-import org.jivesoftware.util.EmailService;
+import org.jivesoftware.openfire.user.UserAlreadyExistsException;
+import org.jivesoftware.openfire.user.UserManager;
+import org.jivesoftware.openfire.user.UserNotFoundException;
 import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.PropertyEventDispatcher;
+import org.jivesoftware.util.PropertyEventListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmpp.packet.JID;
-import org.xmpp.packet.Message;
 
 
 /**
@@ -55,170 +61,617 @@ public class RegistrationPlugin implements Plugin {
     private static final Logger Log = LoggerFactory.getLogger(RegistrationPlugin.class);
     
     private static final String URL = "registration/sign-up.jsp";
+
+    private static final String CHECK_USERNAME_URL = "registration/check-username";
+
+    private static final String SIGN_UP_SERVLET_URL = "registration/sign-up";
+
+    /**
+     * The context path at which the sign-up page and API are served from the HTTP binding server, as
+     * http://[SERVER_NAME]:7070/registration/sign-up. Unlike the admin console, that server processes the sign-ups
+     * asynchronously, so this is the address of the sign-up page that the plugin advertises.
+     */
+    static final String SIGN_UP_CONTEXT_PATH = "/registration";
    
     /**
      * The expected value is a boolean, if true all contacts specified in the property #IM_CONTACTS
      * will receive a notification when a new user registers. The default value is false.
      */
-    private static final String IM_NOTIFICATION_ENABLED = "registration.imnotification.enabled";
+    static final String IM_NOTIFICATION_ENABLED = "registration.imnotification.enabled";
     
     /**
      * The expected value is a boolean, if true all contacts specified in the property #EMAIL_CONTACTS 
      * will receive a notification when a new user registers. The default value is false.
      */
-    private static final String EMAIL_NOTIFICATION_ENABLED = "registration.emailnotification.enabled";
+    static final String EMAIL_NOTIFICATION_ENABLED = "registration.emailnotification.enabled";
     
     /**
      * The expected value is a boolean, if true any user who registers will receive the welcome 
      * message specified in the property #WELCOME_MSG. The default value is false.
      */
-    private static final String WELCOME_ENABLED = "registration.welcome.enabled";
+    static final String WELCOME_ENABLED = "registration.welcome.enabled";
     
     /**
      * The expected value is a boolean, if true any user who registers will be added to the group 
      * specified in the property #REGISTRAION_GROUP. The default value is false.
      */
-    private static final String GROUP_ENABLED = "registration.group.enabled";
+    static final String GROUP_ENABLED = "registration.group.enabled";
     
     /**
      * The expected value is a boolean, if true any user who registers will have a Default 
      * privacy list specified in the property #REGISTRAION_PRIVACYLIST. The default value is false.
      */
-    private static final String PRIVACYLIST_ENABLED = "registration.privacylist.enabled";
+    static final String PRIVACYLIST_ENABLED = "registration.privacylist.enabled";
     
     /**
      * The expected value is a boolean, if true any users will be able to register at the following
      * url http://[SERVER_NAME}:9090/plugins/registration/sign-up.jsp
      */
-    private static final String WEB_ENABLED = "registration.web.enabled";
+    static final String WEB_ENABLED = "registration.web.enabled";
     
     /**
       * The expected value is a boolean, if true any users will be need to verify its a human at the
      * following url http://[SERVER_NAME}:9090/plugins/registration/sign-up.jsp
      */
-    private static final String RECAPTCHA_ENABLED = "registration.recaptcha.enabled";
+    static final String RECAPTCHA_ENABLED = "registration.recaptcha.enabled";
     
     /**
      * The expected value is a boolean, if true recaptcha uses the noscript tag.
      */
-    private static final String RECAPTCHA_NOSCRIPT = "registration.recaptcha.noscript";
+    static final String RECAPTCHA_NOSCRIPT = "registration.recaptcha.noscript";
     
     /**
      * The expected value is a String that contains the public key for the recaptcha login.
      */
-    private static final String RECAPTCHA_PUBLIC_KEY = "registration.recaptcha.key.public";
+    static final String RECAPTCHA_PUBLIC_KEY = "registration.recaptcha.key.public";
     
     /**
      * The expected value is a String that contains the private key for the recaptcha login.
      */
-    private static final String RECAPTCHA_PRIVATE_KEY = "registration.recaptcha.key.private";
+    static final String RECAPTCHA_PRIVATE_KEY = "registration.recaptcha.key.private";
+
+    /**
+     * The expected value is 'recaptcha' or 'stub'. The latter verifies captcha answers locally, against the
+     * property #RECAPTCHA_STUB_ANSWER, for test environments and servers that cannot reach the reCAPTCHA
+     * service. The default value is 'recaptcha'.
+     */
+    static final String RECAPTCHA_VERIFIER = "registration.recaptcha.verifier";
+
+    /**
+     * The expected value is a positive integer that defines the connect and read timeout, in milliseconds, of
+     * requests to the reCAPTCHA service. The default value is 3000.
+     */
+    static final String RECAPTCHA_TIMEOUT = "registration.recaptcha.timeout.millis";
+
+    /**
+     * The expected value is a non-negative numeric (long) value that defines for how many seconds a wrong captcha
+     * answer is remembered. A value of 0 disables the cache. The default value is 120.
+     */
+    static final String RECAPTCHA_CACHE = "registration.recaptcha.cache.seconds";
+
+    /**
+     * The expected value is a String that contains the answer accepted by the stub verifier. If it is not set,
+     * any answer is accepted.
+     */
+    static final String RECAPTCHA_STUB_ANSWER = "registration.recaptcha.stub.answer";
     
     /**
      * The expected value is a comma separated String of usernames who will receive a instant
      * message when a new user registers if the property #IM_NOTIFICATION_ENABLED is set to true.
      */
-    private static final String IM_CONTACTS = "registration.notification.imContacts";
+    static final String IM_CONTACTS = "registration.notification.imContacts";
     
     /**
      * The expected value is a comma separated String of email addresses who will receive an email
      * when a new user registers, if the property #EMAIL_NOTIFICATION_ENABLED is set to true.
      */
-    private static final String EMAIL_CONTACTS = "registration.notification.emailContacts";
+    static final String EMAIL_CONTACTS = "registration.notification.emailContacts";
+
+    /**
+     * The expected value is the JID of a multicast service (XEP-0033), such as <tt>multicast.example.org</tt>.
+     * If set, and the service supports multicast, an IM notification is sent to all contacts as one stanza.
+     */
+    static final String MULTICAST_SERVICE = "registration.notification.multicast.service";
     
+    /**
+     * The expected value is a boolean, if true the notifications sent to the contacts specified in the
+     * properties #IM_CONTACTS and #EMAIL_CONTACTS are combined in digests during registration bursts.
+     * The default value is false.
+     */
+    static final String NOTIFICATION_DIGEST_ENABLED = "registration.notification.digest.enabled";
+
+    /**
+     * The expected value is a numeric (long) value that defines the maximum number of seconds a
+     * notification is held back to be combined with others, if #NOTIFICATION_DIGEST_ENABLED is set
+     * to true. The default value is 60.
+     */
+    static final String NOTIFICATION_DIGEST_WINDOW = "registration.notification.digest.window.seconds";
+
+    /**
+     * The expected value is a positive integer that defines the maximum number of new users in one digest,
+     * if #NOTIFICATION_DIGEST_ENABLED is set to true. The default value is 100.
+     */
+    static final String NOTIFICATION_DIGEST_MAX_USERS = "registration.notification.digest.max.users";
+
+    /**
+     * The expected value is a non-negative integer that defines how many registrations within one digest
+     * window are notified immediately, before notifications are combined in a digest. The default value is 1.
+     */
+    static final String NOTIFICATION_DIGEST_IMMEDIATE = "registration.notification.digest.immediate.threshold";
+
     /**
      * The expected value is a String that contains the message that will be sent to a new user
      * when they register, if the property #WELCOME_ENABLED is set to true.
      */
-    private static final String WELCOME_MSG = "registration.welcome.message";
+    static final String WELCOME_MSG = "registration.welcome.message";
 
     /**
      * The expected value is a String that contains the raw XMPP message that will be sent to a new user
      * when they register, if the property #WELCOME_ENABLED is set to true.
      */
-    private static final String WELCOME_RAW_MSG = "registration.welcome.message.raw";
+    static final String WELCOME_RAW_MSG = "registration.welcome.message.raw";
 
     /**
      * The expected value is a String that contains the JID of the account sending the
      * welcome message. Defaults to the server itself
      */
-    private static final String WELCOME_MSG_FROM = "registration.welcome.message.from";
+    static final String WELCOME_MSG_FROM = "registration.welcome.message.from";
+
+    /**
+     * The expected value is a boolean, if true the welcome message is not sent when a user registers, but when
+     * the user logs in for the first time. The default value is false.
+     */
+    static final String WELCOME_DEFERRED = "registration.welcome.deferred";
+
+    /**
+     * The expected value is a numeric (long) value that defines the number of seconds a welcome message is held
+     * back for a user who has not logged in yet, see #WELCOME_DEFERRED. The default value is 604800 (7 days).
+     */
+    static final String WELCOME_DEFERRED_TTL = "registration.welcome.deferred.ttl.seconds";
     
     /**
      * The expected value is a String that contains the name of the group that a new user will 
      * be added to when they register, if the property #GROUP_ENABLED is set to true.
      */
-    private static final String REGISTRAION_GROUP = "registration.group";
-    
+    static final String REGISTRAION_GROUP = "registration.group";
+
     /**
      * The expected value is a String that contains the XML contents of the default
      * privacy list, if the property #PRIVACYLIST_ENABLED is set to true.
      */
-    private static final String REGISTRAION_PRIVACYLIST = "registration.privacylist";
+    static final String REGISTRAION_PRIVACYLIST = "registration.privacylist";
     
     /**
      * The expected value is a String that contains the name of the default
      * privacy list, if the property #PRIVACYLIST_ENABLED is set to true.
      */
-    private static final String REGISTRAION_PRIVACYLIST_NAME = "registration.privacylist.name";
+    static final String REGISTRAION_PRIVACYLIST_NAME = "registration.privacylist.name";
 
     /**
      * The expected value is a numeric (long) value that defines the number of seconds after which
      * a newly created User will be automatically locked out. A non-positive value (zero or less) will
      * disable this feature (it is disabled by default).
      */
-    private static final String REGISTRATION_AUTO_LOCKOUT = "registration.automatic.lockout.seconds";
+    static final String REGISTRATION_AUTO_LOCKOUT = "registration.automatic.lockout.seconds";
 
     /**
      * The expected value is a String that contains the text that will be displayed in the header
      * of the sign-up.jsp, if the property #WEB_ENABLED is set to true.
      */
-    private static final String HEADER = "registration.header";
+    static final String HEADER = "registration.header";
+
+    /**
+     * The expected value is a boolean, if true the number of accounts that can be created through
+     * http://[SERVER_NAME}:9090/plugins/registration/sign-up.jsp is limited per address, per subnet and in
+     * total. The default value is false.
+     */
+    static final String RATE_LIMIT_ENABLED = "registration.ratelimit.enabled";
+
+    /**
+     * The expected value is a non-negative integer that defines the number of accounts one address can create
+     * per hour, if #RATE_LIMIT_ENABLED is set to true. A value of 0 disables this limit. The default value is 10.
+     */
+    static final String RATE_LIMIT_ADDRESS = "registration.ratelimit.address.per.hour";
+
+    /**
+     * The expected value is a non-negative integer that defines the number of accounts one subnet (/24 for IPv4,
+     * /64 for IPv6) can create per hour, if #RATE_LIMIT_ENABLED is set to true. A value of 0 disables this
+     * limit. The default value is 100.
+     */
+    static final String RATE_LIMIT_SUBNET = "registration.ratelimit.subnet.per.hour";
+
+    /**
+     * The expected value is a non-negative integer that defines the number of accounts that can be created per
+     * minute in total, if #RATE_LIMIT_ENABLED is set to true. A value of 0 disables this limit. The default
+     * value is 60.
+     */
+    static final String RATE_LIMIT_GLOBAL = "registration.ratelimit.global.per.minute";
+
+    /**
+     * The expected value is a positive integer that defines how many users a bulk import creates before it
+     * applies the registration actions to them. The default value is 500.
+     */
+    static final String IMPORT_CHUNK_SIZE = "registration.import.chunk.size";
+
+    /**
+     * The expected value is a positive integer that defines how many existing users a backfill of the
+     * registration policies reads at a time. The default value is 100.
+     */
+    static final String BACKFILL_PAGE_SIZE = "registration.backfill.page.size";
+
+    /**
+     * The expected value is a non-negative integer that defines the maximum number of existing users a backfill
+     * of the registration policies processes per second. A value of 0 disables the limit. The default value is 50.
+     */
+    static final String BACKFILL_RATE = "registration.backfill.rate";
+
+    /**
+     * The expected value is a comma separated String of usernames that a backfill never locks out, in addition
+     * to the administrators. The default value is empty.
+     */
+    static final String BACKFILL_LOCKOUT_EXCLUDED = "registration.backfill.lockout.excluded";
 
-    private static final Logger LOG = LoggerFactory.getLogger(RegistrationPlugin.class);
+    /**
+     * The prefix of the properties that hold the checkpoint of an unfinished backfill.
+     */
+    static final String BACKFILL_CHECKPOINT = "registration.backfill.checkpoint.";
+
+    /**
+     * The expected value is a comma separated String of the policies (group, privacylist, lockout, lockoutnow)
+     * applied by an unfinished backfill. This property is maintained by the plugin.
+     */
+    static final String BACKFILL_POLICIES = "registration.backfill.checkpoint.policies";
+
+    /**
+     * The expected value is the index of the next user to be processed by an unfinished backfill. This property
+     * is maintained by the plugin.
+     */
+    static final String BACKFILL_POSITION = "registration.backfill.checkpoint.position";
+
+    /**
+     * The expected value is the username of the last user processed by an unfinished backfill. This property is
+     * maintained by the plugin.
+     */
+    static final String BACKFILL_USER = "registration.backfill.checkpoint.user";
+
+    /**
+     * The expected value is a positive integer that defines the number of worker threads that execute the
+     * post-registration actions (notifications, welcome message, group, privacy list and lockout). The
+     * default value is 2. Changes take effect after the plugin is reloaded.
+     */
+    static final String PIPELINE_THREADS = "registration.pipeline.threads";
+
+    /**
+     * The expected value is a positive integer that defines the maximum number of registrations that can be
+     * waiting for their post-registration actions to be executed. The default value is 1000. Changes take
+     * effect after the plugin is reloaded.
+     */
+    static final String PIPELINE_QUEUE_CAPACITY = "registration.pipeline.queue.capacity";
+
+    /**
+     * The expected value is one of 'block', 'caller_runs' or 'drop', which defines what happens when a user
+     * registers while the queue defined by #PIPELINE_QUEUE_CAPACITY is full. The default value is 'block'.
+     * Changes take effect after the plugin is reloaded.
+     */
+    static final String PIPELINE_OVERFLOW_POLICY = "registration.pipeline.overflow";
+
+    /**
+     * The expected value is a numeric (long) value that defines the number of seconds the plugin waits for
+     * queued post-registration actions to complete when it is unloaded. The default value is 30.
+     */
+    static final String PIPELINE_DRAIN_SECONDS = "registration.pipeline.drain.seconds";
+
+    /**
+     * The expected value is a positive integer that defines the maximum number of notification emails that
+     * are sent over one connection to the mail server. The default value is 20. Changes take effect after the
+     * plugin is reloaded.
+     */
+    static final String EMAIL_OUTBOX_BATCH_SIZE = "registration.email.outbox.batch.size";
+
+    /**
+     * The expected value is a numeric (long) value that defines the maximum number of seconds the plugin
+     * waits before it retries to send notification emails after the mail server failed. The wait starts at
+     * one second, and doubles after every failure. The default value is 300. Changes take effect after the
+     * plugin is reloaded.
+     */
+    static final String EMAIL_OUTBOX_MAX_BACKOFF = "registration.email.outbox.backoff.max.seconds";
+
+    /**
+     * The expected value is one of 'hash', 'senior' or 'local', which defines which cluster node executes the
+     * actions for a new user (welcome message, group, privacy list and lockout): the node chosen by hashing the
+     * username, the senior cluster member, or the node on which the user was created. Notifications are sent by
+     * the senior cluster member, unless the value is 'local'. The default value is 'hash'.
+     */
+    static final String CLUSTER_DISTRIBUTION = "registration.cluster.distribution";
+
+    /**
+     * The expected value is a boolean, if true every registration is recorded in the registration journal. The
+     * default value is true.
+     */
+    static final String JOURNAL_ENABLED = "registration.journal.enabled";
+
+    /**
+     * The expected value is a numeric (int) value that defines the number of days registrations are kept in the
+     * journal. Changes take effect when the plugin is reloaded. The default value is 366.
+     */
+    static final String JOURNAL_RETENTION_DAYS = "registration.journal.retention.days";
+
+    /**
+     * The expected value is a numeric (int) value that defines the number of threads that execute registration
+     * actions. Changes take effect when the plugin is reloaded. The default value is 4.
+     */
+    static final String ACTIONS_THREADS = "registration.actions.threads";
+
+    /**
+     * The expected value is a numeric (long) value that defines the number of milliseconds a registration action
+     * may take before it is interrupted, unless the action defines its own timeout. The default value is 10000.
+     */
+    static final String ACTIONS_TIMEOUT = "registration.actions.timeout.millis";
+
+    /**
+     * The expected value is a numeric (int) value that defines the number of threads that process sign-ups posted
+     * to the sign-up servlet. Changes take effect when the plugin is reloaded. The default value is 8.
+     */
+    static final String SIGN_UP_THREADS = "registration.signup.threads";
+
+    /**
+     * The expected value is a numeric (int) value that defines the number of sign-ups that can wait for a sign-up
+     * thread, see #SIGN_UP_THREADS. Further sign-ups are refused. Changes take effect when the plugin is reloaded.
+     * The default value is 200.
+     */
+    static final String SIGN_UP_QUEUE_CAPACITY = "registration.signup.queue.capacity";
+
+    /**
+     * The expected value is the path of a text file with blocked email domains and reserved usernames, see
+     * {@link RegistrationBlocklist}. Changes take effect when the plugin is reloaded. The default value is
+     * registration/blocklist.txt in the Openfire home directory.
+     */
+    static final String BLOCKLIST_FILE = "registration.blocklist.file";
+
+    /**
+     * The expected value is a non-negative numeric (long) value that defines how many minutes pass between two
+     * rebuilds of the username filter, which pick up users that were created outside Openfire. A value of 0 only
+     * rebuilds the filter when it has collected too many deleted users. Changes take effect when the plugin is
+     * reloaded. The default value is 1440.
+     */
+    static final String USERNAME_FILTER_REBUILD = "registration.username.filter.rebuild.minutes";
+
+    /**
+     * The stages of the actions of the plugin, by action name.
+     */
+    private static final Map<String, RegistrationMetrics.Stage> ACTION_STAGES;
+
+    static {
+        final Map<String, RegistrationMetrics.Stage> stages = new HashMap<>();
+        stages.put(RegistrationAction.WELCOME, RegistrationMetrics.Stage.WELCOME);
+        stages.put(RegistrationAction.GROUP, RegistrationMetrics.Stage.GROUP);
+        stages.put(RegistrationAction.PRIVACY_LIST, RegistrationMetrics.Stage.PRIVACY_LIST);
+        stages.put(RegistrationAction.LOCKOUT, RegistrationMetrics.Stage.LOCKOUT);
+        ACTION_STAGES = Collections.unmodifiableMap(stages);
+    }
 
     private RegistrationUserEventListener listener = new RegistrationUserEventListener();
+
+    private RegistrationPropertyListener propertyListener = new RegistrationPropertyListener();
+
+    private volatile RegistrationSettings settings;
+
+    private RegistrationPipeline pipeline;
+
+    private volatile WelcomeMessageTemplate welcomeTemplate;
+
+
+    private final Set<String> suppressedUsernames = ConcurrentHashMap.newKeySet();
+
+    private volatile RegistrationImport currentImport;
+
+    private volatile RegistrationBackfill backfill;
+
+    private RegistrationNotificationDigest digest = new RegistrationNotificationDigest(listener::notifyContacts);
     
     private String serverName;
     private JID serverAddress;
-    private MessageRouter router;
-    private boolean privacyListCacheIsSet = false;
-    private Element privacyListCache = null;
+    private RegistrationServices services;
+    private final Function<String, String> properties;
+    private volatile PrivacyListTemplate privacyListTemplate;
+    private volatile String privacyListError;
     
-    private List<String> imContacts = new ArrayList<String>();
-    private List<String> emailContacts = new ArrayList<String>();
+    private RegistrationContactRegistry contacts;
+
+    private RegistrationEmailOutbox emailOutbox;
+
+    private final RegistrationCluster cluster = new RegistrationCluster(this::resumeBackfillIfSenior);
+
+    private RegistrationJournal journal;
+
+    private RegistrationActionExecutor actionExecutor;
+
+    private RegistrationSignUp signUp;
+    private ServletContextHandler signUpContext;
+
+    private RegistrationBlocklist blocklist;
+
+    private RegistrationSignUpPage signUpPage;
+
+    private RegistrationMulticast multicast;
+
+    /**
+     * The actions that other plugins added, in the order in which they were added.
+     */
+    private final List<RegistrationAction> registrationActions = new CopyOnWriteArrayList<>();
+
+    /**
+     * The address of the client whose sign-up is creating a user on the current thread, see #signUp.
+     */
+    private final ThreadLocal<String> signUpAddress = new ThreadLocal<>();
+
+    private final RegistrationWelcomeDeferral welcomeDeferral = new RegistrationWelcomeDeferral(listener::sendDeferredWelcome);
+
+    private RegistrationRateLimiter rateLimiter = new RegistrationRateLimiter();
+
+    private volatile CaptchaVerifier customCaptchaVerifier;
+
+    private volatile RegistrationCaptchaService captchaService;
+
+    private RegistrationUsernameFilter usernameFilter = new RegistrationUsernameFilter();
+
+    private final RegistrationMetrics metrics = new RegistrationMetrics();
+    private final LongAdder processedRegistrations = new LongAdder();
+
+    /**
+     * Serializes the replacement of the settings snapshot and of the objects that are derived from it, so a
+     * snapshot that was built from older property values cannot replace a newer one.
+     */
+    private final Object settingsLock = new Object();
     
     public RegistrationPlugin() {
-        serverName = XMPPServer.getInstance().getServerInfo().getXMPPDomain();
-        serverAddress = new JID(serverName);
-        router = XMPPServer.getInstance().getMessageRouter();
-       
-        String imcs = JiveGlobals.getProperty(IM_CONTACTS);
-        if (imcs != null) {
-             imContacts.addAll(Arrays.asList(imcs.split(",")));
-        }
-         
-        String ecs = JiveGlobals.getProperty(EMAIL_CONTACTS);
-        if (ecs != null) {
-            emailContacts.addAll(Arrays.asList(ecs.split(",")));
-        }
-                
-        UserEventDispatcher.addListener(listener);
+        this(XMPPServer.getInstance().getServerInfo().getXMPPDomain(),
+                new OpenfireRegistrationServices(XMPPServer.getInstance().getMessageRouter(),
+                        XMPPServer.getInstance().getIQRouter()),
+                JiveGlobals::getProperty, new File(JiveGlobals.getHomeDirectory(), "registration"));
         
         //delete properties from version 1.0
         JiveGlobals.deleteProperty("registration.notification.contact");
         JiveGlobals.deleteProperty("registration.notification.enabled");
     }
 
+    /**
+     * Creates the plugin with the given server services and properties, for example to execute the
+     * registration actions without a running server.
+     *
+     * @param serverName the XMPP domain of the server.
+     * @param services the services that the registration actions use.
+     * @param properties returns the value of a property, or null if the property is not set.
+     * @param dataDirectory the directory in which the plugin keeps its files.
+     */
+    RegistrationPlugin(String serverName, RegistrationServices services, Function<String, String> properties,
+            File dataDirectory) {
+        this.serverName = serverName;
+        this.serverAddress = new JID(serverName);
+        this.services = services;
+        this.properties = properties;
+        settings = new RegistrationSettings(properties);
+        welcomeTemplate = compileWelcomeTemplate(settings);
+        compilePrivacyListTemplate(settings);
+        captchaService = createCaptchaService(settings);
+
+        contacts = new RegistrationContactRegistry(serverName, this::isValidAddress);
+        contacts.load(settings.getImContacts(), settings.getEmailContacts());
+        multicast = new RegistrationMulticast(services, serverAddress);
+
+        pipeline = new RegistrationPipeline(settings.getPipelineThreads(), settings.getPipelineQueueCapacity(),
+                RegistrationPipeline.OverflowPolicy.parse(settings.getPipelineOverflowPolicy(),
+                        RegistrationPipeline.OverflowPolicy.BLOCK));
+
+        emailOutbox = new RegistrationEmailOutbox(new File(dataDirectory, "email-outbox.log"), services, metrics,
+                settings.getEmailOutboxBatchSize(), settings.getEmailOutboxMaxBackoff() * 1000);
+        actionExecutor = new RegistrationActionExecutor(settings.getActionsThreads(), metrics);
+        signUp = new RegistrationSignUp(this, settings.getSignUpThreads(), settings.getSignUpQueueCapacity());
+        blocklist = new RegistrationBlocklist(settings.getBlocklistFile() != null
+                ? new File(settings.getBlocklistFile()) : new File(dataDirectory, "blocklist.txt"));
+        journal = new RegistrationJournal(new File(dataDirectory, "journal"), settings.getJournalRetentionDays());
+    }
+
     public void initializePlugin(PluginManager manager, File pluginDirectory) {
+        signUpPage = new RegistrationSignUpPage(this, new File(pluginDirectory, "web/WEB-INF/templates"));
+        start();
+        PropertyEventDispatcher.addListener(propertyListener);
+        UserEventDispatcher.addListener(listener);
         AuthCheckFilter.addExclude(URL);
+        AuthCheckFilter.addExclude(CHECK_USERNAME_URL);
+        AuthCheckFilter.addExclude(SIGN_UP_SERVLET_URL);
+        addSignUpContext(pluginDirectory);
+        usernameFilter.start(settings.getUsernameFilterRebuildMinutes());
+        metrics.register();
+        cluster.start();
+        welcomeDeferral.start(settings.getWelcomeDeferredTtl());
+        resumeBackfillIfSenior();
     }
 
     public void destroyPlugin() {
         AuthCheckFilter.removeExclude(URL);
+        AuthCheckFilter.removeExclude(CHECK_USERNAME_URL);
+        AuthCheckFilter.removeExclude(SIGN_UP_SERVLET_URL);
+        removeSignUpContext();
         UserEventDispatcher.removeListener(listener);
+        cluster.stop();
+        welcomeDeferral.stop();
+        usernameFilter.stop();
+        PropertyEventDispatcher.removeListener(propertyListener);
+        if (backfill != null) {
+            backfill.pause();
+        }
+        stop();
+        metrics.unregister();
         serverAddress = null;
         listener = null;
-        router = null;
+        propertyListener = null;
+        services = null;
+    }
+
+    /**
+     * Serves the sign-up page and API from the HTTP binding server, which processes the sign-ups asynchronously,
+     * together with the username check and the images of the page. The admin console dispatches plugin servlets
+     * synchronously, so there every sign-up holds a container thread.
+     */
+    private void addSignUpContext(File pluginDirectory) {
+        final ServletHolder holder = new ServletHolder(new RegistrationSignUpServlet());
+        holder.setAsyncSupported(true);
+        final ServletContextHandler context = new ServletContextHandler(null, SIGN_UP_CONTEXT_PATH,
+                ServletContextHandler.NO_SESSIONS);
+        context.setResourceBase(new File(pluginDirectory, "web").getPath());
+        context.addServlet(holder, "/sign-up");
+        context.addServlet(new ServletHolder(new RegistrationUsernameServlet()), "/check-username");
+        context.addServlet(new ServletHolder(new DefaultServlet()), "/images/*");
+        try {
+            HttpBindManager.getInstance().addJettyHandler(context);
+            signUpContext = context;
+        }
+        catch (RuntimeException e) {
+            Log.warn("Registration plugin : unable to serve the sign-up page from the HTTP binding server.", e);
+        }
+    }
+
+    private void removeSignUpContext() {
+        if (signUpContext == null) {
+            return;
+        }
+        HttpBindManager.getInstance().removeJettyHandler(signUpContext);
+        try {
+            signUpContext.stop();
+        }
+        catch (Exception e) {
+            Log.debug("Registration plugin : unable to stop the sign-up context.", e);
+        }
+        signUpContext = null;
+    }
+
+    /**
+     * Starts the server services, the email outbox, the journal and the blocklist, and asks the multicast service
+     * whether it supports multicast. Called by {@link #initializePlugin}, and by benchmarks that execute the
+     * registration actions without a running server.
+     */
+    void start() {
+        services.start();
+        emailOutbox.start();
+        journal.start();
+        blocklist.start();
+        multicast.setService(settings.getMulticastService());
+    }
+
+    /**
+     * Drains the pipeline and stops what {@link #start()} started. Unsent emails stay in the outbox, and are sent
+     * when the plugin is started again.
+     */
+    void stop() {
+        signUp.shutdown();
+        pipeline.shutdown(settings.getPipelineDrainSeconds(), TimeUnit.SECONDS);
+        actionExecutor.shutdown();
+        digest.flush();
+        emailOutbox.stop(5, TimeUnit.SECONDS);
+        journal.stop();
+        blocklist.stop();
+        services.stop();
     }
     
     public void setIMNotificationEnabled(boolean enable) {
@@ -226,7 +679,7 @@ public class RegistrationPlugin implements Plugin {
     }
     
     public boolean imNotificationEnabled() {
-        return JiveGlobals.getBooleanProperty(IM_NOTIFICATION_ENABLED, false);
+        return settings.isImNotificationEnabled();
     }
     
     public void setEmailNotificationEnabled(boolean enable) {
@@ -234,50 +687,82 @@ public class RegistrationPlugin implements Plugin {
     }
     
     public boolean emailNotificationEnabled() {
-        return JiveGlobals.getBooleanProperty(EMAIL_NOTIFICATION_ENABLED, false);
+        return settings.isEmailNotificationEnabled();
     }
     
+    public void setNotificationDigestEnabled(boolean enable) {
+        JiveGlobals.setProperty(NOTIFICATION_DIGEST_ENABLED, enable ? "true" : "false");
+    }
+
+    public boolean notificationDigestEnabled() {
+        return settings.isNotificationDigestEnabled();
+    }
+
+    public void setNotificationDigestWindow(long seconds) {
+        JiveGlobals.setProperty(NOTIFICATION_DIGEST_WINDOW, Long.toString(seconds));
+    }
+
+    public long getNotificationDigestWindow() {
+        return settings.getNotificationDigestWindow();
+    }
+
+    public void setNotificationDigestMaxUsers(int maxUsers) {
+        JiveGlobals.setProperty(NOTIFICATION_DIGEST_MAX_USERS, Integer.toString(maxUsers));
+    }
+
+    public int getNotificationDigestMaxUsers() {
+        return settings.getNotificationDigestMaxUsers();
+    }
+
+    public int getNotificationDigestImmediateThreshold() {
+        return settings.getNotificationDigestImmediateThreshold();
+    }
+
     public Collection<String> getIMContacts() {
-        Collections.sort(imContacts);
-        return imContacts;
+        return contacts.getIMContacts();
     }
    
     public void addIMContact(String contact) {
-        if (!imContacts.contains(contact.trim().toLowerCase())) {
-            imContacts.add(contact.trim().toLowerCase());
-            JiveGlobals.setProperty(IM_CONTACTS, propPrep(imContacts));
+        String imContacts = contacts.addIMContact(contact);
+        if (imContacts != null) {
+            JiveGlobals.setProperty(IM_CONTACTS, imContacts);
         }
     }
 
     public void removeIMContact(String contact) {
-        imContacts.remove(contact.trim().toLowerCase());
-        if (imContacts.size() == 0) {
+        String imContacts = contacts.removeIMContact(contact);
+        if (imContacts == null) {
+            return;
+        }
+        if (imContacts.isEmpty()) {
             JiveGlobals.deleteProperty(IM_CONTACTS);
         }
         else {
-            JiveGlobals.setProperty(IM_CONTACTS, propPrep(imContacts));
+            JiveGlobals.setProperty(IM_CONTACTS, imContacts);
         }
     }
 
     public Collection<String> getEmailContacts() {
-        Collections.sort(emailContacts);
-        return emailContacts;
+        return contacts.getEmailContacts();
     }
 
     public void addEmailContact(String contact) {
-        if (!emailContacts.contains(contact.trim())) {
-            emailContacts.add(contact.trim());
-            JiveGlobals.setProperty(EMAIL_CONTACTS, propPrep(emailContacts));
+        String emailContacts = contacts.addEmailContact(contact);
+        if (emailContacts != null) {
+            JiveGlobals.setProperty(EMAIL_CONTACTS, emailContacts);
         }
     }
 
     public void removeEmailContact(String contact) {
-        emailContacts.remove(contact);
-        if (emailContacts.size() == 0) {
+        String emailContacts = contacts.removeEmailContact(contact);
+        if (emailContacts == null) {
+            return;
+        }
+        if (emailContacts.isEmpty()) {
             JiveGlobals.deleteProperty(EMAIL_CONTACTS);
         }
         else {
-            JiveGlobals.setProperty(EMAIL_CONTACTS, propPrep(emailContacts));
+            JiveGlobals.setProperty(EMAIL_CONTACTS, emailContacts);
         }
     }
     
@@ -286,31 +771,147 @@ public class RegistrationPlugin implements Plugin {
     }
    
     public boolean welcomeEnabled() {
-        return JiveGlobals.getBooleanProperty(WELCOME_ENABLED, false);
+        return settings.isWelcomeEnabled();
     }
 
     public void setWelcomeMessage(String message) {
         JiveGlobals.setProperty(WELCOME_MSG, message);
     }
 
+    /**
+     * Sets the raw XMPP message(s) that are sent to new users. The value is validated before it is saved.
+     *
+     * @param message a single message element, a messages element containing message elements, or
+     *        null/empty to send the plain text welcome message instead.
+     * @throws IllegalArgumentException if the message cannot be parsed.
+     */
     public void setWelcomeRawMessage(String message) {
+        if (message != null && !message.trim().isEmpty()) {
+            try {
+                WelcomeMessageTemplate.compile(message, serverAddress);
+            }
+            catch (DocumentException e) {
+                throw new IllegalArgumentException("Invalid raw welcome message: " + e.getMessage(), e);
+            }
+        }
         JiveGlobals.setProperty(WELCOME_RAW_MSG, message);
     }
 
+    /**
+     * Sets the address that welcome messages are sent from.
+     *
+     * @param from a JID, or null/empty to send welcome messages from the server itself.
+     * @throws IllegalArgumentException if the value is not a valid JID.
+     */
     public void setWelcomeMessageFrom(String from) {
+        if (from != null && !from.trim().isEmpty()) {
+            new JID(from.trim());
+        }
         JiveGlobals.setProperty(WELCOME_MSG_FROM, from);
     }
 
     public String getWelcomeMessage() {
-        return JiveGlobals.getProperty(WELCOME_MSG, "Welcome to Openfire!");
+        return settings.getWelcomeMessage();
     }
 
     public String getWelcomeRawMessage() {
-        return JiveGlobals.getProperty(WELCOME_RAW_MSG);
+        return settings.getWelcomeRawMessage();
     }
 
     public String getWelcomeMessageFrom() {
-        return JiveGlobals.getProperty(WELCOME_MSG_FROM);
+        return settings.getWelcomeMessageFrom();
+    }
+
+    public void setWelcomeDeferred(boolean enable) {
+        JiveGlobals.setProperty(WELCOME_DEFERRED, enable ? "true" : "false");
+    }
+
+    public boolean isWelcomeDeferred() {
+        return settings.isWelcomeDeferred();
+    }
+
+    /**
+     * @return the number of new users whose welcome message is held back until they log in.
+     */
+    public int getPendingWelcomeCount() {
+        return welcomeDeferral.size();
+    }
+
+    /**
+     * Creates a user for a web sign-up. The address of the client is recorded in the registration journal.
+     *
+     * @param remoteAddress the address of the client.
+     * @return the new user.
+     * @throws UserAlreadyExistsException if the username is taken.
+     */
+    User createSignUpUser(String remoteAddress, String username, String password, String name, String email)
+            throws UserAlreadyExistsException {
+        // The user event is dispatched on this thread, which is where the listener picks the address up.
+        signUpAddress.set(remoteAddress);
+        try {
+            return UserManager.getInstance().createUser(username, password, name, email);
+        }
+        finally {
+            signUpAddress.remove();
+        }
+    }
+
+    /**
+     * @return the service that validates web sign-ups and creates the users.
+     */
+    public RegistrationSignUp getSignUp() {
+        return signUp;
+    }
+
+    /**
+     * @return the rendered sign-up page, which is rendered again after a <tt>registration.*</tt> property changed.
+     */
+    RegistrationSignUpPage getSignUpPage() {
+        return signUpPage;
+    }
+
+    /**
+     * Renders the sign-up page with the outcome of a sign-up that was submitted by a browser without scripts to
+     * <tt>sign-up.jsp</tt>.
+     *
+     * @param locale the locale of the request.
+     * @param result the outcome of the sign-up.
+     * @param fields the submitted fields, of which the username, name and email are filled in again.
+     * @return the HTML of the page.
+     */
+    public String renderSignUpPage(Locale locale, RegistrationSignUp.Result result, Map<String, String> fields) {
+        return signUpPage.render(locale, result, fields);
+    }
+
+    public void setJournalEnabled(boolean enable) {
+        JiveGlobals.setProperty(JOURNAL_ENABLED, enable ? "true" : "false");
+    }
+
+    public boolean isJournalEnabled() {
+        return settings.isJournalEnabled();
+    }
+
+    /**
+     * @return the registration journal, which answers queries about the number of registrations and failed
+     *         actions over time.
+     */
+    public RegistrationJournal getJournal() {
+        return journal;
+    }
+
+    private WelcomeMessageTemplate compileWelcomeTemplate(RegistrationSettings settings) {
+        String rawWelcomeMessage = settings.getWelcomeRawMessage();
+        if (rawWelcomeMessage != null && !rawWelcomeMessage.trim().isEmpty()) {
+            try {
+                String from = settings.getWelcomeMessageFrom();
+                JID fromAddress = from != null && !from.trim().isEmpty() ? new JID(from.trim()) : serverAddress;
+                return WelcomeMessageTemplate.compile(rawWelcomeMessage, fromAddress);
+            }
+            catch (DocumentException | IllegalArgumentException e) {
+                Log.error("Unable to convert welcome text into Message, sending the plain welcome message instead.", e);
+            }
+        }
+        return WelcomeMessageTemplate.forText("Welcome", settings.getWelcomeMessage(), serverAddress);
     }
     
     public void setGroupEnabled(boolean enable) {
@@ -318,14 +919,14 @@ public class RegistrationPlugin implements Plugin {
     }
     
     public boolean groupEnabled() {
-        return JiveGlobals.getBooleanProperty(GROUP_ENABLED, false);
+        return settings.isGroupEnabled();
     }
     public void setPrivacyListEnabled(boolean enable) {
         JiveGlobals.setProperty(PRIVACYLIST_ENABLED, enable ? "true" : "false");
     }
     
     public boolean privacyListEnabled() {
-        return JiveGlobals.getBooleanProperty(PRIVACYLIST_ENABLED, false);
+        return settings.isPrivacyListEnabled();
     }
     
     public void setWebEnabled(boolean enable) {
@@ -333,12 +934,21 @@ public class RegistrationPlugin implements Plugin {
     }
    
     public boolean webEnabled() {
-        return JiveGlobals.getBooleanProperty(WEB_ENABLED, false);
+        return settings.isWebEnabled();
     }
     
+    /**
+     * @return the address of the sign-up page on the HTTP binding server, or on the admin console if the HTTP
+     *         binding server does not serve it.
+     */
     public String webRegistrationAddress() {
+        final HttpBindManager httpBind = HttpBindManager.getInstance();
+        if (signUpContext != null && httpBind.isHttpBindActive()) {
+            return "http://" + XMPPServer.getInstance().getServerInfo().getXMPPDomain() + ":"
+                + httpBind.getHttpBindUnsecurePort() + SIGN_UP_CONTEXT_PATH + "/sign-up";
+        }
         return  "http://" + XMPPServer.getInstance().getServerInfo().getXMPPDomain() + ":"
-            + JiveGlobals.getXMLProperty("adminConsole.port") + "/plugins/" + URL;
+            + JiveGlobals.getXMLProperty("adminConsole.port") + "/plugins/" + SIGN_UP_SERVLET_URL;
     }
     
     public void setReCaptchaEnabled(boolean enable) {
@@ -346,7 +956,7 @@ public class RegistrationPlugin implements Plugin {
     }
     
     public boolean reCaptchaEnabled() {
-        return JiveGlobals.getBooleanProperty(RECAPTCHA_ENABLED, false);
+        return settings.isReCaptchaEnabled();
     }
     
     public void setReCaptchaNoScript(boolean enable) {
@@ -354,7 +964,7 @@ public class RegistrationPlugin implements Plugin {
     }
     
     public boolean reCaptchaNoScript() {
-        return JiveGlobals.getBooleanProperty(RECAPTCHA_NOSCRIPT, true);
+        return settings.isReCaptchaNoScript();
     }
     
     public void setReCaptchaPublicKey(String publicKey) {
@@ -362,7 +972,7 @@ public class RegistrationPlugin implements Plugin {
     }
     
     public String getReCaptchaPublicKey() {
-        return JiveGlobals.getProperty(RECAPTCHA_PUBLIC_KEY);
+        return settings.getReCaptchaPublicKey();
     }
     
     public void setReCaptchaPrivateKey(String privateKey) {
@@ -370,7 +980,71 @@ public class RegistrationPlugin implements Plugin {
     }
     
     public String getReCaptchaPrivateKey() {
-        return JiveGlobals.getProperty(RECAPTCHA_PRIVATE_KEY);
+        return settings.getReCaptchaPrivateKey();
+    }
+    
+    /**
+     * Verifies the captcha answer of a web sign-up.
+     *
+     * @param remoteAddress the address of the client.
+     * @param challenge the challenge that was presented to the client.
+     * @param response the answer of the client.
+     * @return true if the answer is correct.
+     */
+    public boolean verifyCaptcha(String remoteAddress, String challenge, String response) {
+        return captchaService.verify(remoteAddress, challenge, response);
+    }
+
+    /**
+     * @return the HTML that presents the captcha in the sign-up form.
+     */
+    public String createCaptchaHtml() {
+        return captchaService.createHtml();
+    }
+
+    /**
+     * Replaces the configured captcha verifier, for example with a stub in tests.
+     *
+     * @param verifier the verifier to use, or null to use the configured verifier again.
+     */
+    public void setCaptchaVerifier(CaptchaVerifier verifier) {
+        synchronized (settingsLock) {
+            customCaptchaVerifier = verifier;
+            captchaService = createCaptchaService(settings);
+        }
+        if (signUpPage != null) {
+            signUpPage.invalidate();
+        }
+    }
+
+    public long getCaptchaCacheHits() {
+        return captchaService.getHits();
+    }
+
+    public long getCaptchaCacheMisses() {
+        return captchaService.getMisses();
+    }
+
+    public long getCaptchaErrors() {
+        return captchaService.getErrors();
+    }
+
+    public double getCaptchaAverageLatencyMillis() {
+        return captchaService.getAverageLatencyMillis();
+    }
+
+    private RegistrationCaptchaService createCaptchaService(RegistrationSettings settings) {
+        CaptchaVerifier verifier = customCaptchaVerifier;
+        if (verifier == null) {
+            if ("stub".equalsIgnoreCase(settings.getCaptchaVerifier())) {
+                verifier = new StubCaptchaVerifier(settings.getCaptchaStubAnswer());
+            }
+            else {
+                verifier = new ReCaptchaVerifier(settings.getReCaptchaPublicKey(), settings.getReCaptchaPrivateKey(),
+                        settings.isReCaptchaNoScript(), settings.getCaptchaTimeout());
+            }
+        }
+        return new RegistrationCaptchaService(verifier, settings.getCaptchaCacheSeconds());
     }
     
     public void setGroup(String group) {
@@ -378,16 +1052,39 @@ public class RegistrationPlugin implements Plugin {
     }
     
     public String getGroup() {
-        return JiveGlobals.getProperty(REGISTRAION_GROUP);
+        return settings.getGroup();
     }
     
+    /**
+     * Sets the XML of the default privacy list(s). The value is validated before it is saved.
+     *
+     * @param privacyList a single list element, or a lists element containing list elements.
+     * @throws IllegalArgumentException if the privacy list(s) cannot be parsed.
+     */
     public void setPrivacyList(String privacyList) {
+        setPrivacyList(getPrivacyListName(), privacyList);
+    }
+
+    /**
+     * Sets the name and the XML of the default privacy list(s). The values are validated before they are saved.
+     *
+     * @param privacyListName the name of the (first) list.
+     * @param privacyList a single list element, or a lists element containing list elements.
+     * @throws IllegalArgumentException if the privacy list(s) cannot be parsed.
+     */
+    public void setPrivacyList(String privacyListName, String privacyList) {
+        try {
+            PrivacyListTemplate.compile(privacyList, privacyListName);
+        }
+        catch (DocumentException e) {
+            throw new IllegalArgumentException("Invalid privacy list: " + e.getMessage(), e);
+        }
+        JiveGlobals.setProperty(REGISTRAION_PRIVACYLIST_NAME, privacyListName);
         JiveGlobals.setProperty(REGISTRAION_PRIVACYLIST, privacyList);
-        privacyListCacheIsSet = false;
     }
     
     public String getPrivacyList() {
-        return JiveGlobals.getProperty(REGISTRAION_PRIVACYLIST);
+        return settings.getPrivacyList();
     }
     
     public void setPrivacyListName(String privacyListName) {
@@ -395,7 +1092,31 @@ public class RegistrationPlugin implements Plugin {
     }
     
     public String getPrivacyListName() {
-        return JiveGlobals.getProperty(REGISTRAION_PRIVACYLIST_NAME);
+        return settings.getPrivacyListName();
+    }
+
+    /**
+     * @return the reason why the configured privacy list(s) cannot be used, or null if they are valid.
+     */
+    public String getPrivacyListError() {
+        return privacyListError;
+    }
+
+    private void compilePrivacyListTemplate(RegistrationSettings settings) {
+        if (settings.getPrivacyList() == null) {
+            privacyListTemplate = null;
+            privacyListError = null;
+            return;
+        }
+        try {
+            privacyListTemplate = PrivacyListTemplate.compile(settings.getPrivacyList(), settings.getPrivacyListName());
+            privacyListError = null;
+        }
+        catch (DocumentException e) {
+            privacyListTemplate = null;
+            privacyListError = e.getMessage();
+            Log.error("registration.privacylist can not be parsed into a valid privacy list: " + e.getMessage());
+        }
     }
 
     public boolean isAutomaticAccountLockoutEnabled()
@@ -409,7 +1130,7 @@ public class RegistrationPlugin implements Plugin {
     }
     public long getAutomaticAccountLockoutAfter()
     {
-        return JiveGlobals.getLongProperty( REGISTRATION_AUTO_LOCKOUT, -1 );
+        return settings.getAutomaticAccountLockoutAfter();
     }
 
     public void setHeader(String message) {
@@ -417,172 +1138,748 @@ public class RegistrationPlugin implements Plugin {
     }
 
     public String getHeader() {
-        return JiveGlobals.getProperty(HEADER, "Web Sign-In");
+        return settings.getHeader();
+    }
+
+    public void setRateLimitEnabled(boolean enable) {
+        JiveGlobals.setProperty(RATE_LIMIT_ENABLED, enable ? "true" : "false");
+    }
+
+    public boolean rateLimitEnabled() {
+        return settings.isRateLimitEnabled();
+    }
+
+    public void setRateLimitPerAddress(int perHour) {
+        JiveGlobals.setProperty(RATE_LIMIT_ADDRESS, Integer.toString(perHour));
+    }
+
+    public int getRateLimitPerAddress() {
+        return settings.getRateLimitPerAddress();
+    }
+
+    public void setRateLimitPerSubnet(int perHour) {
+        JiveGlobals.setProperty(RATE_LIMIT_SUBNET, Integer.toString(perHour));
+    }
+
+    public int getRateLimitPerSubnet() {
+        return settings.getRateLimitPerSubnet();
+    }
+
+    public void setRateLimitGlobal(int perMinute) {
+        JiveGlobals.setProperty(RATE_LIMIT_GLOBAL, Integer.toString(perMinute));
+    }
+
+    public int getRateLimitGlobal() {
+        return settings.getRateLimitGlobal();
+    }
+
+    /**
+     * Checks whether a web sign-up from an address is allowed by the rate limits. This is meant to be called
+     * before any other work is done for the sign-up.
+     *
+     * @param remoteAddress the address of the client.
+     * @return true if the sign-up can proceed.
+     */
+    public boolean tryAcquireSignUp(String remoteAddress) {
+        final RegistrationSettings settings = this.settings;
+        if (!settings.isRateLimitEnabled()) {
+            return true;
+        }
+        final boolean allowed = rateLimiter.tryAcquire(remoteAddress, settings.getRateLimitPerAddress(),
+                settings.getRateLimitPerSubnet(), settings.getRateLimitGlobal());
+        if (!allowed && Log.isDebugEnabled()) {
+            Log.debug("Registration plugin : refused sign-up from {} because of the rate limits.", remoteAddress);
+        }
+        return allowed;
+    }
+
+    /**
+     * Checks whether a username is available. Most available usernames are recognized without a lookup in
+     * the user store, so a user that was created outside Openfire since the last rebuild of the username filter
+     * can be reported as available. The answer is advisory: creating the user still fails if it is taken.
+     *
+     * @param username a username that has been prepared with {@link #prepareUsername(String)}.
+     * @return true if no user with this username is known to exist.
+     */
+    public boolean isUsernameAvailable(String username) {
+        if (!usernameFilter.mightContain(username)) {
+            return true;
+        }
+        try {
+            UserManager.getInstance().getUser(username);
+            return false;
+        }
+        catch (UserNotFoundException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Prepares a username the way the web sign-up does: trimmed, in lower case, escaped and normalized.
+     *
+     * @param username the username as entered.
+     * @return the prepared username, or null if it is not a valid username.
+     */
+    public static String prepareUsername(String username) {
+        if (username == null || username.trim().isEmpty()) {
+            return null;
+        }
+        try {
+            return Stringprep.nodeprep(JID.escapeNode(username.trim().toLowerCase()));
+        }
+        catch (StringprepException e) {
+            return null;
+        }
+    }
+
+    public long getRateLimitRejectedCount() {
+        return rateLimiter.getRejectedCount();
+    }
+
+    /**
+     * @return the per-stage metrics of the registration pipeline and the sign-up outcome counters.
+     */
+    public RegistrationMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the number of new users that were processed on this node, once all their actions have finished.
+     */
+    long getProcessedRegistrationCount() {
+        return processedRegistrations.sum();
+    }
+
+    /**
+     * Records the outcome of a web sign-up.
+     *
+     * @param outcome the outcome.
+     */
+    public void recordSignUp(RegistrationMetrics.SignUpOutcome outcome) {
+        metrics.record(outcome);
+    }
+
+    public int getPipelineQueueSize() {
+        return pipeline.getQueueSize();
+    }
+
+    public long getPipelineDroppedCount() {
+        return pipeline.getDroppedCount();
+    }
+
+    public long getActionTimeoutCount() {
+        return actionExecutor.getTimedOutCount();
+    }
+
+    public long getActionSkippedCount() {
+        return actionExecutor.getSkippedCount();
+    }
+
+    public void setMulticastService(String service) {
+        if (service == null || service.trim().isEmpty()) {
+            JiveGlobals.deleteProperty(MULTICAST_SERVICE);
+        }
+        else {
+            JiveGlobals.setProperty(MULTICAST_SERVICE, service.trim());
+        }
+    }
+
+    /**
+     * @return the JID of the multicast service through which IM notifications are sent, or null if none is set.
+     */
+    public String getMulticastService() {
+        return settings.getMulticastService();
+    }
+
+    /**
+     * @return true if the multicast service confirmed that it supports multicast (XEP-0033).
+     */
+    public boolean isMulticastAvailable() {
+        return multicast.isAvailable();
+    }
+
+    public long getMulticastNotificationCount() {
+        return multicast.getMulticastCount();
+    }
+
+    public long getDirectNotificationCount() {
+        return multicast.getUnicastCount();
+    }
+
+    /**
+     * Adds an action that is executed for every new user, after the actions it depends on.
+     *
+     * @param action the action.
+     * @throws IllegalArgumentException if an action with the same name exists, or if the action depends on an
+     *         action that does not exist.
+     */
+    public synchronized void addRegistrationAction(RegistrationAction action) {
+        if (hasRegistrationAction(action.getName())) {
+            throw new IllegalArgumentException("A registration action named '" + action.getName() + "' already exists.");
+        }
+        for (String dependency : action.getDependencies()) {
+            if (!hasRegistrationAction(dependency)) {
+                throw new IllegalArgumentException("The registration action '" + action.getName()
+                        + "' depends on the unknown action '" + dependency + "'.");
+            }
+        }
+        registrationActions.add(action);
+    }
+
+    /**
+     * Removes an action that was added with {@link #addRegistrationAction(RegistrationAction)}.
+     *
+     * @param action the action.
+     * @throws IllegalStateException if another action depends on the action.
+     */
+    public synchronized void removeRegistrationAction(RegistrationAction action) {
+        for (RegistrationAction other : registrationActions) {
+            if (other != action && other.getDependencies().contains(action.getName())) {
+                throw new IllegalStateException("The registration action '" + other.getName() + "' depends on '"
+                        + action.getName() + "'.");
+            }
+        }
+        registrationActions.remove(action);
+    }
+
+    private boolean hasRegistrationAction(String name) {
+        if (ACTION_STAGES.containsKey(name)) {
+            return true;
+        }
+        for (RegistrationAction action : registrationActions) {
+            if (action.getName().equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if this node is part of a cluster.
+     */
+    public boolean isClustered() {
+        return cluster.isClustered();
+    }
+
+    /**
+     * Asks every cluster node how many registrations it processed.
+     *
+     * @return per host name, the number of registrations whose actions and whose notifications the node executed.
+     */
+    public Map<String, long[]> getClusterStatistics() {
+        return cluster.getStatistics();
+    }
+
+    /**
+     * @return the number of registrations this node handed over to other cluster nodes.
+     */
+    public long getClusterSentCount() {
+        return cluster.getSent();
+    }
+
+    /**
+     * @return the number of registrations this node received from other cluster nodes.
+     */
+    public long getClusterReceivedCount() {
+        return cluster.getReceived();
+    }
+
+    /**
+     * @return the number of registrations that could not be handed over, and were processed locally instead.
+     */
+    public long getClusterFailedCount() {
+        return cluster.getFailed();
+    }
+
+    long getClusterProcessedActions() {
+        return cluster.getProcessedActions();
+    }
+
+    long getClusterProcessedNotifications() {
+        return cluster.getProcessedNotifications();
+    }
+
+    /**
+     * @return the number of notification emails that have not been sent yet.
+     */
+    public int getEmailOutboxSize() {
+        return emailOutbox.size();
+    }
+
+    /**
+     * @return the number of notification emails that were dropped because they can never be sent.
+     */
+    public long getEmailOutboxRejectedCount() {
+        return emailOutbox.getRejectedCount();
+    }
+
+    /**
+     * Starts a new bulk import, unless another import is running.
+     *
+     * @return the new import, or null if another import is running.
+     */
+    public synchronized RegistrationImport startImport() {
+        if (currentImport != null && currentImport.getState() == RegistrationImport.State.RUNNING) {
+            return null;
+        }
+        currentImport = new RegistrationImport(this, settings.getImportChunkSize());
+        return currentImport;
+    }
+
+    /**
+     * @return the running or most recent bulk import, or null if no import was started.
+     */
+    public RegistrationImport getImport() {
+        return currentImport;
+    }
+
+    /**
+     * Starts applying the registration policies to existing users, unless a backfill is running.
+     *
+     * @param applyGroup true to add users to the default group.
+     * @param applyPrivacyList true to give users without a default privacy list the default privacy list(s).
+     * @param applyLockout true to schedule the automatic lockout of users that are not locked out.
+     * @param lockoutExisting true to lock out the accounts that are older than the lockout period now, instead of
+     *        after a full lockout period from now.
+     * @return the new backfill, or null if a backfill is running.
+     */
+    public synchronized RegistrationBackfill startBackfill(boolean applyGroup, boolean applyPrivacyList, boolean applyLockout,
+            boolean lockoutExisting) {
+        if (backfill != null && backfill.getState() == RegistrationBackfill.State.RUNNING) {
+            return null;
+        }
+        final RegistrationSettings settings = this.settings;
+        backfill = new RegistrationBackfill(this, applyGroup, applyPrivacyList, applyLockout, lockoutExisting, null, 0,
+                settings.getBackfillPageSize(), settings.getBackfillRate());
+        backfill.start();
+        return backfill;
+    }
+
+    /**
+     * Resumes an unfinished backfill from its checkpoint, unless a backfill is running.
+     *
+     * @return the resumed backfill, or null if a backfill is running or there is no checkpoint.
+     */
+    public synchronized RegistrationBackfill resumeBackfill() {
+        if (backfill != null && backfill.getState() == RegistrationBackfill.State.RUNNING) {
+            return null;
+        }
+        final RegistrationSettings settings = this.settings;
+        final RegistrationBackfill resumed = RegistrationBackfill.fromCheckpoint(this, settings.getBackfillPageSize(),
+                settings.getBackfillRate());
+        if (resumed != null) {
+            backfill = resumed;
+            backfill.start();
+        }
+        return resumed;
+    }
+
+    /**
+     * Resumes an unfinished backfill if this node is the senior cluster member, so that one node works from the
+     * checkpoint, which is shared by the cluster. Called when the plugin is initialized, and when this node joins
+     * a cluster or becomes its senior member.
+     */
+    void resumeBackfillIfSenior() {
+        if (ClusterManager.isClusteringEnabled()
+                && !(ClusterManager.isClusteringStarted() && ClusterManager.isSeniorClusterMember())) {
+            return;
+        }
+        if (hasBackfillCheckpoint()) {
+            resumeBackfill();
+        }
+    }
+
+    public synchronized void pauseBackfill() {
+        if (backfill != null) {
+            backfill.pause();
+        }
+    }
+
+    public synchronized void cancelBackfill() {
+        if (backfill != null) {
+            backfill.cancel();
+        }
+        JiveGlobals.deleteProperty(BACKFILL_POLICIES);
+        JiveGlobals.deleteProperty(BACKFILL_POSITION);
+        JiveGlobals.deleteProperty(BACKFILL_USER);
+    }
+
+    /**
+     * @return the running or most recent backfill, or null if no backfill was started.
+     */
+    public RegistrationBackfill getBackfill() {
+        return backfill;
+    }
+
+    /**
+     * @return true if an unfinished backfill can be resumed.
+     */
+    public boolean hasBackfillCheckpoint() {
+        return getProperty(BACKFILL_POLICIES) != null;
+    }
+
+    /**
+     * Looks up a property through the same function as the settings snapshot. Used for the backfill checkpoint,
+     * which changes after every page and is therefore not part of the snapshot.
+     */
+    String getProperty(String name) {
+        return properties.apply(name);
+    }
+
+    RegistrationSettings getSettings() {
+        return settings;
+    }
+
+    RegistrationServices getServices() {
+        return services;
+    }
+
+    String getServerName() {
+        return serverName;
+    }
+
+    PrivacyListTemplate getPrivacyListTemplate() {
+        return privacyListTemplate;
+    }
+
+    void suppressRegistrationActions(String username) {
+        suppressedUsernames.add(username);
+    }
+
+    void releaseRegistrationActions(String username) {
+        suppressedUsernames.remove(username);
+    }
+
+    void applyRegistrationActions(User user, boolean notify) {
+        listener.processRegistration(user, settings, true, notify, null);
+    }
+
+    /**
+     * Executes the registration actions of a user that was created on another cluster node.
+     *
+     * @param username the new user.
+     * @param actions true to execute the actions for the new user.
+     * @param notify true to notify the contacts.
+     * @param address the address of the client that signed up, or null.
+     * @return false if the pipeline dropped the registration, in which case the sending node executes it.
+     */
+    boolean processClusterRegistration(String username, boolean actions, boolean notify, String address) {
+        cluster.received();
+        final RegistrationSettings settings = this.settings;
+        return pipeline.submit(() -> {
+            try {
+                listener.processRegistration(UserManager.getInstance().getUser(username), settings, actions, notify,
+                        address);
+            }
+            catch (UserNotFoundException e) {
+                Log.warn("Registration plugin : user '{}' created on another cluster node does not exist.", username);
+            }
+        });
+    }
+
+    /**
+     * Adds a user that was created on another cluster node to the username filter.
+     */
+    void usernameCreated(String username) {
+        usernameFilter.userCreated(username);
+    }
+
+    void sendAdminNotification(String subject, String text) {
+        listener.notifyContacts(subject, subject, text);
     }
     
     private class RegistrationUserEventListener implements UserEventListener {
         public void userCreated(User user, Map<String, Object> params) {
+            usernameFilter.userCreated(user.getUsername());
+            cluster.publishUsername(user.getUsername());
+            if (suppressedUsernames.contains(user.getUsername())) {
+                // Created by a bulk import, which applies the registration actions itself.
+                return;
+            }
+            final RegistrationSettings settings = RegistrationPlugin.this.settings;
+            final String address = signUpAddress.get();
+            pipeline.submit(() -> dispatchRegistration(user, settings, address));
+        }
+
+        /**
+         * Hands the registration of a user over to the cluster nodes that are assigned to it, and processes
+         * whatever they did not accept locally. Runs on the pipeline, as the hand-off waits for the other nodes.
+         */
+        private void dispatchRegistration(User user, RegistrationSettings settings, String address) {
+            final byte[] notificationNode = cluster.getNotificationNode(settings.getClusterDistribution());
+            final byte[] actionNode = cluster.getActionNode(user.getUsername(), settings.getClusterDistribution());
+            boolean notifyLocally = notificationNode == null;
+            boolean actLocally = actionNode == null;
+            if (!notifyLocally && !actLocally && Arrays.equals(notificationNode, actionNode)) {
+                notifyLocally = actLocally = !cluster.send(actionNode, user.getUsername(), true, true, address);
+            }
+            else {
+                if (!notifyLocally) {
+                    notifyLocally = !cluster.send(notificationNode, user.getUsername(), false, true, null);
+                }
+                if (!actLocally) {
+                    actLocally = !cluster.send(actionNode, user.getUsername(), true, false, address);
+                }
+            }
+            if (notifyLocally || actLocally) {
+                processRegistration(user, settings, actLocally, notifyLocally, address);
+            }
+        }
+
+        /**
+         * @param address the address of the client that signed up, or null if the user was not created by a
+         *        sign-up.
+         */
+        private void processRegistration(User user, RegistrationSettings settings, boolean actions, boolean notify,
+                String address) {
             
             if (Log.isDebugEnabled()) {
                 Log.debug("Registration plugin : registering new user");
             }
+            cluster.processed(actions, notify);
                 
-            if (imNotificationEnabled()) {
-                sendIMNotificatonMessage(user);
+            if (notify && (settings.isImNotificationEnabled() || settings.isEmailNotificationEnabled())) {
+                if (settings.isNotificationDigestEnabled()) {
+                    digest.add(user.getUsername(), settings.getNotificationDigestWindow() * 1000,
+                            settings.getNotificationDigestMaxUsers(), settings.getNotificationDigestImmediateThreshold());
+                }
+                else {
+                    notifyContacts(Collections.singletonList(user.getUsername()));
+                }
             }
             
-            if (emailNotificationEnabled()) {
-                sendAlertEmail(user);
+            if (!actions) {
+                processedRegistrations.increment();
+                return;
             }
-            
-            if (welcomeEnabled()) {
-                try {
-                    sendWelcomeMessage(user);
-                } catch (DocumentException e) {
-                    Log.error("Unable to convert welcome text into Message");
-                    e.printStackTrace();
-                }
+
+            // Independent actions run concurrently; this thread waits for all of them.
+            final List<RegistrationActionExecutor.Task> tasks = new ArrayList<>();
+            if (settings.isWelcomeEnabled()) {
+                tasks.add(stageTask(RegistrationAction.WELCOME, () -> sendWelcomeMessage(user, settings)));
             }
-            
-            if (groupEnabled()) {
-                addUserToGroup(user);
+            if (settings.isGroupEnabled()) {
+                tasks.add(stageTask(RegistrationAction.GROUP, () -> addUserToGroup(user, settings)));
             }
-            
-            if (privacyListEnabled()) {
-                addDefaultPrivacyList(user);
+            if (settings.isPrivacyListEnabled()) {
+                tasks.add(stageTask(RegistrationAction.PRIVACY_LIST, () -> addDefaultPrivacyList(user, settings)));
             }
+            if (settings.getAutomaticAccountLockoutAfter() > 0) {
+                tasks.add(stageTask(RegistrationAction.LOCKOUT, () -> addAutomaticAccountLockout(user, settings)));
+            }
+            for (RegistrationAction action : registrationActions) {
+                tasks.add(new RegistrationActionExecutor.Task(action.getName(), action.getDependencies(),
+                        action.getTimeoutMillis(), action.isInterruptible(), null, () -> {
+                            action.execute(user);
+                            return null;
+                        }));
+            }
+            final Map<String, RegistrationActionExecutor.Outcome> outcomes =
+                    actionExecutor.execute(tasks, settings.getActionsTimeout());
 
-            if (isAutomaticAccountLockoutEnabled())
-            {
-                addAutomaticAccountLockout(user);
+            if (settings.isJournalEnabled()) {
+                // The actions of the plugin that succeeded, and the ones that failed, one bit per stage.
+                int succeeded = 0;
+                int failed = 0;
+                for (Map.Entry<String, RegistrationActionExecutor.Outcome> outcome : outcomes.entrySet()) {
+                    final RegistrationMetrics.Stage stage = ACTION_STAGES.get(outcome.getKey());
+                    if (stage == null || outcome.getValue() == RegistrationActionExecutor.Outcome.SKIPPED) {
+                        continue;
+                    }
+                    if (outcome.getValue() == RegistrationActionExecutor.Outcome.SUCCEEDED) {
+                        succeeded |= 1 << stage.ordinal();
+                    }
+                    else {
+                        failed |= 1 << stage.ordinal();
+                    }
+                }
+                journal.append(user.getUsername(), System.currentTimeMillis(), address, succeeded, failed);
+            }
+            processedRegistrations.increment();
+        }
+
+        private RegistrationActionExecutor.Task stageTask(String name, Runnable action) {
+            return new RegistrationActionExecutor.Task(name, Collections.emptySet(), 0, false, ACTION_STAGES.get(name),
+                    Executors.callable(action));
+        }
+
+        /**
+         * Executes one stage of the registration, and records its latency and whether it failed. A failing
+         * stage does not prevent the other stages from being executed.
+         */
+        private void runStage(RegistrationMetrics.Stage stage, Runnable action) {
+            final long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                action.run();
+                failed = false;
+            }
+            catch (RuntimeException e) {
+                Log.error("Registration plugin : the {} action failed.", stage.name().toLowerCase(), e);
+            }
+            finally {
+                metrics.record(stage, start, failed);
             }
         }
 
         public void userDeleting(User user, Map<String, Object> params) {
+            usernameFilter.userDeleted(user.getUsername());
+            welcomeDeferral.remove(user.getUsername());
         }
 
         public void userModified(User user, Map<String, Object> params) {
         }
         
-        private void sendIMNotificatonMessage(User user) {
-            String msg = " A new user with the username '" + user.getUsername() + "' just registered.";
-            
-            for (String contact : getIMContacts()) {
-                router.route(createServerMessage(contact + "@" + serverName,
-                            "Registration Notification", msg));
+        private void notifyContacts(List<String> usernames) {
+            notifyContacts("Registration Notification", "User Registration", notificationText(usernames));
+        }
+
+        private void notifyContacts(String imSubject, String emailSubject, String text) {
+            final RegistrationSettings settings = RegistrationPlugin.this.settings;
+            if (settings.isImNotificationEnabled()) {
+                runStage(RegistrationMetrics.Stage.IM_NOTIFICATION, () -> sendIMNotificatonMessage(imSubject, text));
+            }
+
+            if (settings.isEmailNotificationEnabled()) {
+                // One email to all contacts, which the outbox sends in the background.
+                emailOutbox.add(contacts.getEmailContacts(), "Openfire", "no_reply@" + serverName, emailSubject, text);
             }
         }
-        
-        private void sendAlertEmail(User user) {
-            String subject = "User Registration";
-            String body = " A new user with the username '" + user.getUsername() + "' just registered.";
-            
-            EmailService emailService = EmailService.getInstance();
-            for (String toAddress : emailContacts) {
-               try {
-                   emailService.sendMessage(null, toAddress, "Openfire", "no_reply@" + serverName,
-                           subject, body, null);
-               }
-               catch (Exception e) {
-                   Log.error(e.getMessage(), e);
-               }
-           }
-        }
-
-        private void sendWelcomeMessage(User user) throws DocumentException {
-            String rawWelcomeMessage = getWelcomeRawMessage();
-            List<Message> welcomeMessages = new ArrayList();
-            String to = user.getUsername() + "@" + serverName;
-            if (rawWelcomeMessage != null && !rawWelcomeMessage.isEmpty()) {
-                welcomeMessages = createServerMessage(to, rawWelcomeMessage);
-            } else {
-                welcomeMessages.add(createServerMessage(to, "Welcome", getWelcomeMessage()));
-            }
-            welcomeMessages.forEach(router::route);
+
+        private void sendIMNotificatonMessage(String subject, String msg) {
+            multicast.send(contacts.getIMAddresses(), subject, msg);
         }
         
-        private Message createServerMessage(String to, String subject, String body) {
-            Message message = new Message();
-            message.setTo(to);
-            message.setFrom(serverAddress);
-            if (subject != null) {
-                message.setSubject(subject);
-            }
-            message.setBody(body);
-            return message;
-        }
-
-        private List<Message> createServerMessage(String to, String rawMessage) throws DocumentException {
-            Document document = DocumentHelper.parseText(rawMessage);
-            // It could be a single message or an array of messages
-            // An array of messages has "messages" as a root element
-            List<Message> messages = new ArrayList();
-            JID from = getWelcomeMessageFrom() != null ? new JID(getWelcomeMessageFrom()) : serverAddress;
-            if (document.getRootElement().getName().equals("messages")) {
-                for (Iterator i = document.getRootElement().elementIterator(); i.hasNext();) {
-                    Element element = (Element) i.next();
-                    messages.add(messageFromElement(element, to, from));
-                }
-            } else {
-                messages.add(messageFromElement(document.getRootElement(), to, from));
+        private String notificationText(List<String> usernames) {
+            if (usernames.size() == 1) {
+                return " A new user with the username '" + usernames.get(0) + "' just registered.";
             }
-            return messages;
+
+            final int listed = Math.min(usernames.size(), 100);
+            StringBuilder buf = new StringBuilder();
+            buf.append(' ').append(usernames.size()).append(" new users just registered: ");
+            buf.append(String.join(", ", usernames.subList(0, listed)));
+            if (listed < usernames.size()) {
+                buf.append(" and ").append(usernames.size() - listed).append(" more");
+            }
+            buf.append('.');
+            return buf.toString();
         }
 
-        private Message messageFromElement(Element element, String to, JID from) {
-            Message message = new Message(element);
-            message.setTo(to);
-            message.setFrom(from);
-            return message;
+        private void sendWelcomeMessage(User user, RegistrationSettings settings) {
+            if (settings.isWelcomeDeferred() && welcomeDeferral.add(user)) {
+                return;
+            }
+            JID to = new JID(user.getUsername(), serverName, null);
+            welcomeTemplate.createMessages(to, user.getName()).forEach(services::route);
+        }
+
+        /**
+         * Sends the welcome message that was held back to the first available session of a new user.
+         */
+        private void sendDeferredWelcome(JID session, String name) {
+            runStage(RegistrationMetrics.Stage.WELCOME,
+                    () -> welcomeTemplate.createMessages(session, name).forEach(services::route));
         }
         
-        private void addUserToGroup(User user) {
-            try {
-                GroupManager groupManager =  GroupManager.getInstance();
-                Group group = groupManager.getGroup(getGroup());
-                group.getMembers().add(XMPPServer.getInstance().createJID(user.getUsername(), null));
-            }
-            catch (GroupNotFoundException e) {
-                Log.error(e.getMessage(), e);
-            }
+        private void addUserToGroup(User user, RegistrationSettings settings) {
+            services.addGroupMember(settings.getGroup(), new JID(user.getUsername(), serverName, null));
         }
         
-        private void addDefaultPrivacyList(User user) {
+        private void addDefaultPrivacyList(User user, RegistrationSettings settings) {
             
+            final PrivacyListTemplate template = privacyListTemplate;
+            if (template == null) {
+                return;
+            }
+
             if (Log.isDebugEnabled()) {
-                Log.debug("Registration plugin : adding default privacy list.");
-                Log.debug("\tName = "+getPrivacyListName());
-                Log.debug("\tContent = "+getPrivacyList());
+                Log.debug("Registration plugin : adding {} default privacy list(s).", template.getLists().size());
             }
-            
-            if(!privacyListCacheIsSet) {
-                privacyListCacheIsSet = true;
-                try {
-                    Document document = DocumentHelper.parseText(getPrivacyList());
-                    privacyListCache = document.getRootElement();
-                }
-                catch (DocumentException e) {
-                    Log.error(e.getMessage(), e);
-                }
-                if(privacyListCache == null) { 
-                    Log.error("registration.privacylist can not be parsed into a valid privacy list");
+
+            final List<PrivacyListTemplate.ListTemplate> lists = new ArrayList<>(template.getLists().size());
+            for (PrivacyListTemplate.ListTemplate list : template.getLists()) {
+                if (list.getGroup() == null || isMember(user, list.getGroup(), settings)) {
+                    lists.add(list);
                 }
             }
-            if(privacyListCache != null) {
-                PrivacyListManager privacyListManager = PrivacyListManager.getInstance();
-                PrivacyList newPrivacyList = privacyListManager.createPrivacyList(user.getUsername(), getPrivacyListName(), privacyListCache);
-                privacyListManager.changeDefaultList(user.getUsername(), newPrivacyList, null);
+            services.addPrivacyLists(user.getUsername(), lists);
+        }
+
+        private boolean isMember(User user, String groupName, RegistrationSettings settings) {
+            // The user is added to the registration group by an action that runs concurrently with this one, so
+            // the group might not list the user yet.
+            if (settings.isGroupEnabled() && groupName.equals(settings.getGroup())) {
+                return true;
             }
+            return services.isGroupMember(groupName, user.getUsername());
         }
 
-        private void addAutomaticAccountLockout(User user)
+        private void addAutomaticAccountLockout(User user, RegistrationSettings settings)
         {
-            final long start = System.currentTimeMillis() + ( getAutomaticAccountLockoutAfter() * 1000 );
-            LockOutManager.getInstance().disableAccount( user.getUsername(), new Date( start ), null );
+            final long start = System.currentTimeMillis() + ( settings.getAutomaticAccountLockoutAfter() * 1000 );
+            services.disableAccount( user.getUsername(), new Date( start ) );
         }
     }
     
-    private String propPrep(Collection<String> props) {
+    /**
+     * Replaces the settings snapshot, and discards the rendered sign-up page, whenever one of the
+     * <tt>registration.*</tt> properties changes.
+     */
+    private class RegistrationPropertyListener implements PropertyEventListener {
+
+        public void propertySet(String property, Map<String, Object> params) {
+            propertyChanged(property);
+        }
+
+        public void propertyDeleted(String property, Map<String, Object> params) {
+            propertyChanged(property);
+        }
+
+        public void xmlPropertySet(String property, Map<String, Object> params) {
+        }
+
+        public void xmlPropertyDeleted(String property, Map<String, Object> params) {
+        }
+
+        private void propertyChanged(String property) {
+            if (property == null || !property.startsWith("registration.") || property.startsWith(BACKFILL_CHECKPOINT)) {
+                return;
+            }
+            synchronized (settingsLock) {
+                update(property);
+            }
+            signUpPage.invalidate();
+        }
+
+        /**
+         * Rebuilds the snapshot and the objects derived from the changed property. Called with #settingsLock held.
+         */
+        private void update(String property) {
+            if (property.equals(IM_CONTACTS) || property.equals(EMAIL_CONTACTS)) {
+                contacts.load(properties.apply(IM_CONTACTS), properties.apply(EMAIL_CONTACTS));
+            }
+            final RegistrationSettings newSettings = new RegistrationSettings(properties);
+            if (property.startsWith(WELCOME_MSG)) {
+                welcomeTemplate = compileWelcomeTemplate(newSettings);
+            }
+            if (property.startsWith(REGISTRAION_PRIVACYLIST)) {
+                compilePrivacyListTemplate(newSettings);
+            }
+            if (property.equals(MULTICAST_SERVICE)) {
+                multicast.setService(newSettings.getMulticastService());
+            }
+            if (property.equals(WELCOME_DEFERRED_TTL)) {
+                welcomeDeferral.setTtl(newSettings.getWelcomeDeferredTtl());
+            }
+            if (property.startsWith("registration.recaptcha.")) {
+                captchaService = createCaptchaService(newSettings);
+            }
+            settings = newSettings;
+        }
+    }
+    
+    static String propPrep(Collection<String> props) {
         StringBuilder buf = new StringBuilder();
         Iterator<String> iter = props.iterator();
         while (iter.hasNext()) {
@@ -597,11 +1894,49 @@ public class RegistrationPlugin implements Plugin {
     }
     
     public boolean isValidAddress(String address) {
+        return isWellFormedAddress(address);
+    }
+
+    static boolean isWellFormedAddress(String address) {
         if (address == null) {
             return false;
         }
 
-        // Must at least match x@x.xx. 
-        return address.matches(".{1,}[@].{1,}[.].{2,}");
+        // Must at least match x@x.xx, which is what the pattern ".{1,}[@].{1,}[.].{2,}" checked: an '@' after the
+        // first character, and a '.' at least two characters after it with at least two characters following.
+        final int at = address.indexOf('@', 1);
+        if (at < 0 || address.lastIndexOf('.', address.length() - 3) < at + 2) {
+            return false;
+        }
+        for (int i = 0; i < address.length(); i++) {
+            final char c = address.charAt(i);
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param username a username that has been prepared with {@link #prepareUsername(String)}.
+     * @return true if the username is reserved by the blocklist.
+     */
+    public boolean isReservedUsername(String username) {
+        return blocklist.isReservedUsername(username);
+    }
+
+    /**
+     * @param email an email address.
+     * @return true if the domain of the address is blocked by the blocklist.
+     */
+    public boolean isBlockedEmail(String email) {
+        return blocklist.isBlockedEmail(email);
+    }
+
+    /**
+     * @return the number of blocked email domains and reserved usernames.
+     */
+    public int getBlocklistSize() {
+        return blocklist.size();
     }
 }
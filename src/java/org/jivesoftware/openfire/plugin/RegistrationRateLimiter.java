@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the rate of web sign-ups with token buckets: one per remote address, one per subnet (/24 for IPv4,
+ * /64 for IPv6) and one for the whole server.
+ *
+ * The per-address and per-subnet buckets are kept in a fixed number of stripes, each of which is a bounded map
+ * that is guarded by its own lock. Buckets that have been idle long enough to be full again carry no state, and
+ * are evicted, as are the least recently used buckets of a stripe that is full.
+ *
+ * A sign-up takes a token from each bucket in turn. If one of them refuses it, the tokens already taken are
+ * given back, so a sign-up that is refused by the subnet or the server does not use up the allowance of its
+ * address (or subnet).
+ */
+class RegistrationRateLimiter {
+
+    private static final int STRIPES = 16;
+    private static final int MAX_BUCKETS_PER_STRIPE = 4096;
+    private static final long HOUR = TimeUnit.HOURS.toNanos(1);
+    private static final long MINUTE = TimeUnit.MINUTES.toNanos(1);
+
+    /**
+     * A token bucket. The number of tokens is tracked as a fraction, so slow refill rates do not round to zero.
+     */
+    private static final class Bucket {
+
+        private double tokens;
+        private long updated;
+
+        Bucket(double capacity, long now) {
+            tokens = capacity;
+            updated = now;
+        }
+
+        boolean tryAcquire(double capacity, long period, long now) {
+            tokens = Math.min(capacity, tokens + (now - updated) * capacity / period);
+            updated = now;
+            if (tokens >= 1) {
+                tokens--;
+                return true;
+            }
+            return false;
+        }
+
+        void release(double capacity) {
+            tokens = Math.min(capacity, tokens + 1);
+        }
+
+        boolean isIdle(long period, long now) {
+            return now - updated >= period;
+        }
+    }
+
+    private static final class Stripe extends LinkedHashMap<String, Bucket> {
+
+        Stripe() {
+            super(64, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Bucket> eldest) {
+            return size() > MAX_BUCKETS_PER_STRIPE || eldest.getValue().isIdle(HOUR, System.nanoTime());
+        }
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final Bucket global = new Bucket(Double.MAX_VALUE, System.nanoTime());
+    private final LongAdder rejected = new LongAdder();
+
+    RegistrationRateLimiter() {
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Takes a token for a sign-up from the buckets of the remote address, its subnet and the server. Either a
+     * token is taken from all of them, or from none.
+     *
+     * @param remoteAddress the address of the client.
+     * @param perAddressPerHour the number of sign-ups per hour allowed from one address, or 0 for no limit.
+     * @param perSubnetPerHour the number of sign-ups per hour allowed from one subnet, or 0 for no limit.
+     * @param globalPerMinute the number of sign-ups per minute allowed in total, or 0 for no limit.
+     * @return true if the sign-up is allowed.
+     */
+    boolean tryAcquire(String remoteAddress, int perAddressPerHour, int perSubnetPerHour, int globalPerMinute) {
+        final long now = System.nanoTime();
+        final String addressKey = "a:" + remoteAddress;
+        final String subnetKey = "s:" + subnet(remoteAddress);
+        if (perAddressPerHour > 0 && !tryAcquire(addressKey, perAddressPerHour, now)) {
+            rejected.increment();
+            return false;
+        }
+        if (perSubnetPerHour > 0 && !tryAcquire(subnetKey, perSubnetPerHour, now)) {
+            release(addressKey, perAddressPerHour);
+            rejected.increment();
+            return false;
+        }
+        if (globalPerMinute > 0 && !tryAcquireGlobal(globalPerMinute, now)) {
+            release(addressKey, perAddressPerHour);
+            release(subnetKey, perSubnetPerHour);
+            rejected.increment();
+            return false;
+        }
+        return true;
+    }
+
+    private boolean tryAcquire(String key, int perHour, long now) {
+        final Stripe stripe = stripes[(key.hashCode() & 0x7fffffff) % stripes.length];
+        synchronized (stripe) {
+            Bucket bucket = stripe.get(key);
+            if (bucket == null) {
+                bucket = new Bucket(perHour, now);
+                stripe.put(key, bucket);
+            }
+            return bucket.tryAcquire(perHour, HOUR, now);
+        }
+    }
+
+    /**
+     * Gives back a token that was taken from a bucket. A bucket that was evicted in the meantime is full again.
+     */
+    private void release(String key, int perHour) {
+        if (perHour <= 0) {
+            return;
+        }
+        final Stripe stripe = stripes[(key.hashCode() & 0x7fffffff) % stripes.length];
+        synchronized (stripe) {
+            final Bucket bucket = stripe.get(key);
+            if (bucket != null) {
+                bucket.release(perHour);
+            }
+        }
+    }
+
+    private boolean tryAcquireGlobal(int perMinute, long now) {
+        synchronized (global) {
+            return global.tryAcquire(perMinute, MINUTE, now);
+        }
+    }
+
+    /**
+     * @return the number of sign-ups that were refused.
+     */
+    long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return the number of per-address and per-subnet buckets in memory.
+     */
+    int getBucketCount() {
+        int count = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                count += stripe.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the subnet of an address, without resolving it: the first three octets of an IPv4 address, or the
+     * first four groups of an IPv6 address. Other values are returned unchanged.
+     */
+    static String subnet(String address) {
+        if (address == null) {
+            return "";
+        }
+        if (address.indexOf(':') >= 0) {
+            int end = -1;
+            for (int i = 0; i < 4; i++) {
+                end = address.indexOf(':', end + 1);
+                if (end < 0) {
+                    return address;
+                }
+            }
+            return address.substring(0, end) + "::/64";
+        }
+        final int end = address.lastIndexOf('.');
+        return end > 0 ? address.substring(0, end) + ".0/24" : address;
+    }
+}
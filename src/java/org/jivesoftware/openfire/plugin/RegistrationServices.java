@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.util.Date;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+
+/**
+ * The server services that the registration actions use.
+ *
+ * The plugin uses {@link OpenfireRegistrationServices}, which delegates to the Openfire managers. Other
+ * implementations make it possible to execute the registration actions without a running server, for example
+ * in benchmarks.
+ */
+interface RegistrationServices {
+
+    /**
+     * Routes a message.
+     */
+    void route(Message message);
+
+    /**
+     * Asks an entity, through service discovery (XEP-0030), whether it supports a feature. The answer is
+     * delivered asynchronously.
+     *
+     * @param from the address of the query.
+     * @param entity the entity to ask.
+     * @param feature the namespace of the feature.
+     * @param callback receives true if the entity supports the feature, or false if it does not, answers with
+     *        an error or does not answer in time.
+     */
+    void discoverFeature(JID from, JID entity, String feature, Consumer<Boolean> callback);
+
+    /**
+     * Sends emails over one connection to the mail server, and reports every email that was handed over, or that
+     * can never be sent, such as one to a malformed address or one that the server refuses permanently.
+     *
+     * @param delivery receives the outcome of every email.
+     * @throws Exception if the remaining emails cannot be handed over now, for example because the mail server
+     *         cannot be reached. The emails that were not reported are sent again later.
+     */
+    void sendEmails(List<RegistrationEmailOutbox.Email> emails, RegistrationEmailOutbox.Delivery delivery)
+            throws Exception;
+
+    /**
+     * Adds a member to a group.
+     *
+     * @throws IllegalArgumentException if the group does not exist.
+     */
+    void addGroupMember(String groupName, JID member);
+
+    /**
+     * @return true if the user is a member of the group, false if not or if the group does not exist.
+     */
+    boolean isGroupMember(String groupName, String username);
+
+    /**
+     * Creates privacy lists for a user.
+     *
+     * @param username the user.
+     * @param lists the lists to create. The list that is marked as the default becomes the default list.
+     */
+    void addPrivacyLists(String username, List<PrivacyListTemplate.ListTemplate> lists);
+
+    /**
+     * Locks out a user.
+     *
+     * @param username the user.
+     * @param start the moment the lockout starts.
+     */
+    void disableAccount(String username, Date start);
+
+    /**
+     * @param username the user.
+     * @return true if the user is locked out, or has a lockout that starts later.
+     */
+    boolean hasLockout(String username);
+
+    /**
+     * Starts the services. Called when the plugin is initialized, see {@link RegistrationPlugin#initializePlugin}.
+     */
+    void start();
+
+    /**
+     * Stops the services. Called when the plugin is destroyed.
+     */
+    void stop();
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Function;
+
+import org.jivesoftware.util.JiveGlobals;
+
+/**
+ * An immutable snapshot of the <tt>registration.*</tt> settings of the plugin.
+ *
+ * A new snapshot is created whenever one of the settings changes, so that code handling a registration
+ * event can read all settings from one consistent snapshot, without looking up properties.
+ */
+final class RegistrationSettings {
+
+    private final boolean imNotificationEnabled;
+    private final boolean emailNotificationEnabled;
+    private final String imContacts;
+    private final String emailContacts;
+    private final String multicastService;
+    private final boolean notificationDigestEnabled;
+    private final long notificationDigestWindow;
+    private final int notificationDigestMaxUsers;
+    private final int notificationDigestImmediateThreshold;
+    private final boolean welcomeEnabled;
+    private final String welcomeMessage;
+    private final String welcomeRawMessage;
+    private final String welcomeMessageFrom;
+    private final boolean welcomeDeferred;
+    private final long welcomeDeferredTtl;
+    private final boolean groupEnabled;
+    private final String group;
+    private final boolean privacyListEnabled;
+    private final String privacyList;
+    private final String privacyListName;
+    private final long automaticAccountLockoutAfter;
+    private final boolean webEnabled;
+    private final boolean reCaptchaEnabled;
+    private final boolean reCaptchaNoScript;
+    private final String reCaptchaPublicKey;
+    private final String reCaptchaPrivateKey;
+    private final String captchaVerifier;
+    private final int captchaTimeout;
+    private final long captchaCacheSeconds;
+    private final String captchaStubAnswer;
+    private final String header;
+    private final boolean rateLimitEnabled;
+    private final int rateLimitPerAddress;
+    private final int rateLimitPerSubnet;
+    private final int rateLimitGlobal;
+    private final int pipelineThreads;
+    private final int pipelineQueueCapacity;
+    private final String pipelineOverflowPolicy;
+    private final long pipelineDrainSeconds;
+    private final int emailOutboxBatchSize;
+    private final long emailOutboxMaxBackoff;
+    private final RegistrationCluster.Distribution clusterDistribution;
+    private final boolean journalEnabled;
+    private final int journalRetentionDays;
+    private final int actionsThreads;
+    private final long actionsTimeout;
+    private final int signUpThreads;
+    private final int signUpQueueCapacity;
+    private final String blocklistFile;
+    private final int importChunkSize;
+    private final int backfillPageSize;
+    private final int backfillRate;
+    private final Set<String> backfillLockoutExcluded;
+    private final long usernameFilterRebuildMinutes;
+
+    /**
+     * Creates a snapshot from the values returned by a property lookup function.
+     *
+     * @param properties returns the value of a property, or null if the property is not set.
+     */
+    RegistrationSettings(Function<String, String> properties) {
+        imNotificationEnabled = bool(properties, RegistrationPlugin.IM_NOTIFICATION_ENABLED, false);
+        emailNotificationEnabled = bool(properties, RegistrationPlugin.EMAIL_NOTIFICATION_ENABLED, false);
+        imContacts = properties.apply(RegistrationPlugin.IM_CONTACTS);
+        emailContacts = properties.apply(RegistrationPlugin.EMAIL_CONTACTS);
+        multicastService = properties.apply(RegistrationPlugin.MULTICAST_SERVICE);
+        notificationDigestEnabled = bool(properties, RegistrationPlugin.NOTIFICATION_DIGEST_ENABLED, false);
+        notificationDigestWindow = number(properties, RegistrationPlugin.NOTIFICATION_DIGEST_WINDOW, 60);
+        notificationDigestMaxUsers = (int) number(properties, RegistrationPlugin.NOTIFICATION_DIGEST_MAX_USERS, 100);
+        notificationDigestImmediateThreshold = (int) number(properties, RegistrationPlugin.NOTIFICATION_DIGEST_IMMEDIATE, 1);
+        welcomeEnabled = bool(properties, RegistrationPlugin.WELCOME_ENABLED, false);
+        welcomeMessage = string(properties, RegistrationPlugin.WELCOME_MSG, "Welcome to Openfire!");
+        welcomeRawMessage = properties.apply(RegistrationPlugin.WELCOME_RAW_MSG);
+        welcomeMessageFrom = properties.apply(RegistrationPlugin.WELCOME_MSG_FROM);
+        welcomeDeferred = bool(properties, RegistrationPlugin.WELCOME_DEFERRED, false);
+        welcomeDeferredTtl = number(properties, RegistrationPlugin.WELCOME_DEFERRED_TTL, 604800);
+        groupEnabled = bool(properties, RegistrationPlugin.GROUP_ENABLED, false);
+        group = properties.apply(RegistrationPlugin.REGISTRAION_GROUP);
+        privacyListEnabled = bool(properties, RegistrationPlugin.PRIVACYLIST_ENABLED, false);
+        privacyList = properties.apply(RegistrationPlugin.REGISTRAION_PRIVACYLIST);
+        privacyListName = properties.apply(RegistrationPlugin.REGISTRAION_PRIVACYLIST_NAME);
+        automaticAccountLockoutAfter = number(properties, RegistrationPlugin.REGISTRATION_AUTO_LOCKOUT, -1);
+        webEnabled = bool(properties, RegistrationPlugin.WEB_ENABLED, false);
+        reCaptchaEnabled = bool(properties, RegistrationPlugin.RECAPTCHA_ENABLED, false);
+        reCaptchaNoScript = bool(properties, RegistrationPlugin.RECAPTCHA_NOSCRIPT, true);
+        reCaptchaPublicKey = properties.apply(RegistrationPlugin.RECAPTCHA_PUBLIC_KEY);
+        reCaptchaPrivateKey = properties.apply(RegistrationPlugin.RECAPTCHA_PRIVATE_KEY);
+        captchaVerifier = string(properties, RegistrationPlugin.RECAPTCHA_VERIFIER, "recaptcha");
+        captchaTimeout = (int) number(properties, RegistrationPlugin.RECAPTCHA_TIMEOUT, 3000);
+        captchaCacheSeconds = number(properties, RegistrationPlugin.RECAPTCHA_CACHE, 120);
+        captchaStubAnswer = properties.apply(RegistrationPlugin.RECAPTCHA_STUB_ANSWER);
+        header = string(properties, RegistrationPlugin.HEADER, "Web Sign-In");
+        rateLimitEnabled = bool(properties, RegistrationPlugin.RATE_LIMIT_ENABLED, false);
+        rateLimitPerAddress = (int) number(properties, RegistrationPlugin.RATE_LIMIT_ADDRESS, 10);
+        rateLimitPerSubnet = (int) number(properties, RegistrationPlugin.RATE_LIMIT_SUBNET, 100);
+        rateLimitGlobal = (int) number(properties, RegistrationPlugin.RATE_LIMIT_GLOBAL, 60);
+        pipelineThreads = (int) number(properties, RegistrationPlugin.PIPELINE_THREADS, 2);
+        pipelineQueueCapacity = (int) number(properties, RegistrationPlugin.PIPELINE_QUEUE_CAPACITY, 1000);
+        pipelineOverflowPolicy = properties.apply(RegistrationPlugin.PIPELINE_OVERFLOW_POLICY);
+        pipelineDrainSeconds = number(properties, RegistrationPlugin.PIPELINE_DRAIN_SECONDS, 30);
+        emailOutboxBatchSize = (int) number(properties, RegistrationPlugin.EMAIL_OUTBOX_BATCH_SIZE, 20);
+        emailOutboxMaxBackoff = number(properties, RegistrationPlugin.EMAIL_OUTBOX_MAX_BACKOFF, 300);
+        clusterDistribution = RegistrationCluster.Distribution.parse(properties.apply(RegistrationPlugin.CLUSTER_DISTRIBUTION));
+        journalEnabled = bool(properties, RegistrationPlugin.JOURNAL_ENABLED, true);
+        journalRetentionDays = (int) number(properties, RegistrationPlugin.JOURNAL_RETENTION_DAYS, 366);
+        actionsThreads = (int) number(properties, RegistrationPlugin.ACTIONS_THREADS, 4);
+        actionsTimeout = number(properties, RegistrationPlugin.ACTIONS_TIMEOUT, 10000);
+        signUpThreads = (int) number(properties, RegistrationPlugin.SIGN_UP_THREADS, 8);
+        signUpQueueCapacity = (int) number(properties, RegistrationPlugin.SIGN_UP_QUEUE_CAPACITY, 200);
+        blocklistFile = properties.apply(RegistrationPlugin.BLOCKLIST_FILE);
+        importChunkSize = (int) number(properties, RegistrationPlugin.IMPORT_CHUNK_SIZE, 500);
+        backfillPageSize = (int) number(properties, RegistrationPlugin.BACKFILL_PAGE_SIZE, 100);
+        backfillRate = (int) number(properties, RegistrationPlugin.BACKFILL_RATE, 50);
+        final Set<String> excluded = new HashSet<>();
+        for (String username : string(properties, RegistrationPlugin.BACKFILL_LOCKOUT_EXCLUDED, "").split(",")) {
+            if (!username.trim().isEmpty()) {
+                excluded.add(username.trim().toLowerCase());
+            }
+        }
+        backfillLockoutExcluded = Collections.unmodifiableSet(excluded);
+        usernameFilterRebuildMinutes = number(properties, RegistrationPlugin.USERNAME_FILTER_REBUILD, 1440);
+    }
+
+    /**
+     * Creates a snapshot of the current values of the system properties.
+     *
+     * @return a new snapshot.
+     */
+    static RegistrationSettings load() {
+        return new RegistrationSettings(JiveGlobals::getProperty);
+    }
+
+    boolean isImNotificationEnabled() {
+        return imNotificationEnabled;
+    }
+
+    boolean isEmailNotificationEnabled() {
+        return emailNotificationEnabled;
+    }
+
+    String getImContacts() {
+        return imContacts;
+    }
+
+    String getEmailContacts() {
+        return emailContacts;
+    }
+
+    String getMulticastService() {
+        return multicastService;
+    }
+
+    boolean isNotificationDigestEnabled() {
+        return notificationDigestEnabled;
+    }
+
+    long getNotificationDigestWindow() {
+        return notificationDigestWindow;
+    }
+
+    int getNotificationDigestMaxUsers() {
+        return notificationDigestMaxUsers;
+    }
+
+    int getNotificationDigestImmediateThreshold() {
+        return notificationDigestImmediateThreshold;
+    }
+
+    boolean isWelcomeEnabled() {
+        return welcomeEnabled;
+    }
+
+    String getWelcomeMessage() {
+        return welcomeMessage;
+    }
+
+    String getWelcomeRawMessage() {
+        return welcomeRawMessage;
+    }
+
+    String getWelcomeMessageFrom() {
+        return welcomeMessageFrom;
+    }
+
+    boolean isWelcomeDeferred() {
+        return welcomeDeferred;
+    }
+
+    long getWelcomeDeferredTtl() {
+        return welcomeDeferredTtl;
+    }
+
+    boolean isGroupEnabled() {
+        return groupEnabled;
+    }
+
+    String getGroup() {
+        return group;
+    }
+
+    boolean isPrivacyListEnabled() {
+        return privacyListEnabled;
+    }
+
+    String getPrivacyList() {
+        return privacyList;
+    }
+
+    String getPrivacyListName() {
+        return privacyListName;
+    }
+
+    long getAutomaticAccountLockoutAfter() {
+        return automaticAccountLockoutAfter;
+    }
+
+    boolean isWebEnabled() {
+        return webEnabled;
+    }
+
+    boolean isReCaptchaEnabled() {
+        return reCaptchaEnabled;
+    }
+
+    boolean isReCaptchaNoScript() {
+        return reCaptchaNoScript;
+    }
+
+    String getReCaptchaPublicKey() {
+        return reCaptchaPublicKey;
+    }
+
+    String getReCaptchaPrivateKey() {
+        return reCaptchaPrivateKey;
+    }
+
+    String getCaptchaVerifier() {
+        return captchaVerifier;
+    }
+
+    int getCaptchaTimeout() {
+        return captchaTimeout;
+    }
+
+    long getCaptchaCacheSeconds() {
+        return captchaCacheSeconds;
+    }
+
+    String getCaptchaStubAnswer() {
+        return captchaStubAnswer;
+    }
+
+    String getHeader() {
+        return header;
+    }
+
+    boolean isRateLimitEnabled() {
+        return rateLimitEnabled;
+    }
+
+    int getRateLimitPerAddress() {
+        return rateLimitPerAddress;
+    }
+
+    int getRateLimitPerSubnet() {
+        return rateLimitPerSubnet;
+    }
+
+    int getRateLimitGlobal() {
+        return rateLimitGlobal;
+    }
+
+    int getPipelineThreads() {
+        return pipelineThreads;
+    }
+
+    int getPipelineQueueCapacity() {
+        return pipelineQueueCapacity;
+    }
+
+    String getPipelineOverflowPolicy() {
+        return pipelineOverflowPolicy;
+    }
+
+    long getPipelineDrainSeconds() {
+        return pipelineDrainSeconds;
+    }
+
+    int getEmailOutboxBatchSize() {
+        return emailOutboxBatchSize;
+    }
+
+    long getEmailOutboxMaxBackoff() {
+        return emailOutboxMaxBackoff;
+    }
+
+    RegistrationCluster.Distribution getClusterDistribution() {
+        return clusterDistribution;
+    }
+
+    boolean isJournalEnabled() {
+        return journalEnabled;
+    }
+
+    int getJournalRetentionDays() {
+        return journalRetentionDays;
+    }
+
+    int getActionsThreads() {
+        return actionsThreads;
+    }
+
+    long getActionsTimeout() {
+        return actionsTimeout;
+    }
+
+    int getSignUpThreads() {
+        return signUpThreads;
+    }
+
+    int getSignUpQueueCapacity() {
+        return signUpQueueCapacity;
+    }
+
+    String getBlocklistFile() {
+        return blocklistFile;
+    }
+
+    int getImportChunkSize() {
+        return importChunkSize;
+    }
+
+    int getBackfillPageSize() {
+        return backfillPageSize;
+    }
+
+    int getBackfillRate() {
+        return backfillRate;
+    }
+
+    Set<String> getBackfillLockoutExcluded() {
+        return backfillLockoutExcluded;
+    }
+
+    long getUsernameFilterRebuildMinutes() {
+        return usernameFilterRebuildMinutes;
+    }
+
+    private static boolean bool(Function<String, String> properties, String name, boolean defaultValue) {
+        final String value = properties.apply(name);
+        return value != null ? Boolean.parseBoolean(value.trim()) : defaultValue;
+    }
+
+    private static long number(Function<String, String> properties, String name, long defaultValue) {
+        final String value = properties.apply(name);
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            }
+            catch (NumberFormatException e) {
+                // Use the default value.
+            }
+        }
+        return defaultValue;
+    }
+
+    private static String string(Function<String, String> properties, String name, String defaultValue) {
+        final String value = properties.apply(name);
+        return value != null ? value : defaultValue;
+    }
+}
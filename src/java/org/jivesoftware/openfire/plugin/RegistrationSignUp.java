@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import org.jivesoftware.openfire.user.UserAlreadyExistsException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Validates web sign-ups and creates the users, for the sign-up page and the sign-up servlet.
+ *
+ * A sign-up is described by the fields of the sign-up form. The servlet processes sign-ups on a pool of sign-up
+ * threads that is fed through a bounded queue, so a burst of sign-ups does not occupy the threads of the admin
+ * console, and sign-ups that do not fit in the queue are refused instead of piling up.
+ */
+public class RegistrationSignUp {
+
+    private static final Logger Log = LoggerFactory.getLogger(RegistrationSignUp.class);
+
+    public static final String USERNAME = "username";
+    public static final String PASSWORD = "password";
+    public static final String PASSWORD_CONFIRM = "passwordConfirm";
+    public static final String NAME = "name";
+    public static final String EMAIL = "email";
+    public static final String CAPTCHA_CHALLENGE = "recaptcha_challenge_field";
+    public static final String CAPTCHA_RESPONSE = "recaptcha_response_field";
+
+    /**
+     * The reasons a sign-up can be refused.
+     */
+    public enum Error {
+        /** Web registration is disabled. */
+        DISABLED,
+        /** Too many sign-ups from the address of the client, its subnet or in total. */
+        RATE_LIMITED,
+        /** The server is processing too many sign-ups. */
+        BUSY,
+        /** The sign-up was still being processed when the client was answered, and may still create the user. */
+        PENDING,
+        INVALID_USERNAME,
+        USERNAME_EXISTS,
+        /** The username is reserved by the blocklist. */
+        RESERVED_USERNAME,
+        INVALID_EMAIL,
+        /** The domain of the email address is blocked by the blocklist. */
+        BLOCKED_EMAIL,
+        MISSING_PASSWORD,
+        MISSING_PASSWORD_CONFIRM,
+        PASSWORD_MISMATCH,
+        CAPTCHA_FAILED,
+        /** The user could not be created. */
+        INTERNAL_ERROR;
+
+        /**
+         * @return the code of the error in the responses of the sign-up servlet, for example
+         *         <tt>username-exists</tt>.
+         */
+        public String getCode() {
+            return name().toLowerCase().replace('_', '-');
+        }
+    }
+
+    /**
+     * The outcome of a sign-up.
+     */
+    public static final class Result {
+
+        private final String username;
+        private final Set<Error> errors;
+
+        Result(String username, Set<Error> errors) {
+            this.username = username;
+            this.errors = Collections.unmodifiableSet(errors);
+        }
+
+        public boolean isSuccess() {
+            return errors.isEmpty();
+        }
+
+        /**
+         * @return the prepared username, or null if the username is not valid.
+         */
+        public String getUsername() {
+            return username;
+        }
+
+        public Set<Error> getErrors() {
+            return errors;
+        }
+
+        public boolean hasError(Error error) {
+            return errors.contains(error);
+        }
+    }
+
+    private final RegistrationPlugin plugin;
+    private final ThreadPoolExecutor executor;
+
+    RegistrationSignUp(RegistrationPlugin plugin, int threads, int queueCapacity) {
+        this.plugin = plugin;
+        executor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)), new SignUpThreadFactory());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Processes a sign-up on a sign-up thread.
+     *
+     * @param remoteAddress the address of the client.
+     * @param fields the fields of the sign-up form, by name.
+     * @param start called on the sign-up thread before the sign-up is processed. If it returns false, for example
+     *        because the client was already answered, the sign-up is dropped without creating the user.
+     * @param callback receives the result, on the sign-up thread.
+     * @return false if the sign-up was not accepted because too many sign-ups are waiting.
+     */
+    boolean submit(String remoteAddress, Map<String, String> fields, BooleanSupplier start,
+            Consumer<Result> callback) {
+        try {
+            executor.execute(() -> {
+                if (!start.getAsBoolean()) {
+                    Log.debug("Registration plugin : dropping a sign-up from {} that was answered while waiting.",
+                            remoteAddress);
+                    return;
+                }
+                Result result;
+                try {
+                    result = signUp(remoteAddress, fields);
+                }
+                catch (RuntimeException e) {
+                    Log.error("Registration plugin : unexpected error while processing a sign-up.", e);
+                    result = new Result(null, EnumSet.of(Error.INTERNAL_ERROR));
+                }
+                callback.accept(result);
+            });
+            return true;
+        }
+        catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Processes a sign-up on the calling thread: checks the rate limits, validates the fields, verifies the
+     * captcha and creates the user.
+     *
+     * @param remoteAddress the address of the client.
+     * @param fields the fields of the sign-up form, by name. Empty values count as absent.
+     * @return the result.
+     */
+    public Result signUp(String remoteAddress, Map<String, String> fields) {
+        final Set<Error> errors = EnumSet.noneOf(Error.class);
+        if (!plugin.webEnabled()) {
+            errors.add(Error.DISABLED);
+            return new Result(null, errors);
+        }
+
+        // Refuse a flood of sign-ups before doing any work for them.
+        if (!plugin.tryAcquireSignUp(remoteAddress)) {
+            errors.add(Error.RATE_LIMITED);
+            plugin.recordSignUp(RegistrationMetrics.SignUpOutcome.RATE_LIMITED);
+            return new Result(null, errors);
+        }
+
+        final String username = RegistrationPlugin.prepareUsername(field(fields, USERNAME));
+        final String password = field(fields, PASSWORD);
+        final String passwordConfirm = field(fields, PASSWORD_CONFIRM);
+        final String email = field(fields, EMAIL);
+        if (username == null) {
+            errors.add(Error.INVALID_USERNAME);
+        }
+        else if (plugin.isReservedUsername(username)) {
+            errors.add(Error.RESERVED_USERNAME);
+        }
+        else if (!plugin.isUsernameAvailable(username)) {
+            errors.add(Error.USERNAME_EXISTS);
+        }
+        if (email != null && !plugin.isValidAddress(email)) {
+            errors.add(Error.INVALID_EMAIL);
+        }
+        else if (email != null && plugin.isBlockedEmail(email)) {
+            errors.add(Error.BLOCKED_EMAIL);
+        }
+        if (password == null) {
+            errors.add(Error.MISSING_PASSWORD);
+        }
+        if (passwordConfirm == null) {
+            errors.add(Error.MISSING_PASSWORD_CONFIRM);
+        }
+        if (password != null && passwordConfirm != null && !password.equals(passwordConfirm)) {
+            errors.add(Error.PASSWORD_MISMATCH);
+        }
+
+        // Only verify the captcha of an otherwise valid submission.
+        if (errors.isEmpty() && plugin.reCaptchaEnabled()
+                && !plugin.verifyCaptcha(remoteAddress, field(fields, CAPTCHA_CHALLENGE), field(fields, CAPTCHA_RESPONSE))) {
+            errors.add(Error.CAPTCHA_FAILED);
+        }
+
+        if (errors.isEmpty()) {
+            try {
+                plugin.createSignUpUser(remoteAddress, username, password, field(fields, NAME), email);
+            }
+            catch (UserAlreadyExistsException e) {
+                errors.add(Error.USERNAME_EXISTS);
+            }
+            catch (RuntimeException e) {
+                Log.error("Registration plugin : unable to create user '{}' for a web sign-up.", username, e);
+                errors.add(Error.INTERNAL_ERROR);
+            }
+        }
+
+        if (errors.isEmpty()) {
+            plugin.recordSignUp(RegistrationMetrics.SignUpOutcome.SUCCESS);
+        }
+        else if (errors.contains(Error.INTERNAL_ERROR)) {
+            plugin.recordSignUp(RegistrationMetrics.SignUpOutcome.ERROR);
+        }
+        else if (errors.contains(Error.USERNAME_EXISTS)) {
+            plugin.recordSignUp(RegistrationMetrics.SignUpOutcome.EXISTS);
+        }
+        else if (errors.contains(Error.CAPTCHA_FAILED)) {
+            plugin.recordSignUp(RegistrationMetrics.SignUpOutcome.CAPTCHA_FAIL);
+        }
+        else {
+            plugin.recordSignUp(RegistrationMetrics.SignUpOutcome.VALIDATION_FAIL);
+        }
+        return new Result(username, errors);
+    }
+
+    /**
+     * Stops the sign-up threads. Sign-ups that are waiting are discarded.
+     */
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the number of sign-ups waiting for a sign-up thread.
+     */
+    int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    private static String field(Map<String, String> fields, String name) {
+        final String value = fields.get(name);
+        return value == null || value.isEmpty() ? null : value;
+    }
+
+    private static class SignUpThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "registration-sign-up-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.MissingResourceException;
+import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import org.jivesoftware.util.StringUtils;
+
+/**
+ * Renders the sign-up page, and keeps the rendered page in memory.
+ *
+ * The markup of the page is in <tt>web/WEB-INF/templates</tt> of the plugin: <tt>sign-up.html</tt>, and
+ * <tt>sign-up-unavailable.html</tt> for when web registration is disabled. This class only fills in the messages and
+ * settings, and keeps the result.
+ *
+ * The page is rendered once per resource bundle (<tt>registration_i18n*.properties</tt>) and per version of the
+ * configuration, and is kept as UTF-8 and as precompressed gzip bytes, with an ETag and the time at which the
+ * configuration last changed. The version is increased whenever a <tt>registration.*</tt> property changes. The
+ * page contains everything but the outcome of a sign-up: the form is submitted to the sign-up servlet by a script,
+ * which shows the error or success message, so every view of the page can be served from memory. Browsers without
+ * scripts submit the form to the sign-up servlet too, which answers with the same page rendered with the outcome,
+ * see {@link #render(Locale, RegistrationSignUp.Result, Map)}. Both use the language of the request. The script and
+ * the form use relative addresses, so the page works both where the plugin advertises it, on the HTTP binding
+ * server, and on the admin console.
+ */
+class RegistrationSignUpPage {
+
+    private static final String BUNDLE = "registration_i18n";
+
+    private static final String PAGE_TEMPLATE = "sign-up.html";
+    private static final String UNAVAILABLE_TEMPLATE = "sign-up-unavailable.html";
+
+    private static final ResourceBundle.Control CONTROL =
+            ResourceBundle.Control.getNoFallbackControl(ResourceBundle.Control.FORMAT_PROPERTIES);
+
+    /**
+     * The error codes of the sign-up servlet and the keys of their messages. If a sign-up fails with several
+     * errors, the message of the first one in this list is shown.
+     */
+    private static final String[][] ERRORS = {
+        { RegistrationSignUp.Error.DISABLED.getCode(), "registration.sign.up.unavailable" },
+        { RegistrationSignUp.Error.RATE_LIMITED.getCode(), "registration.sign.up.rate_limited" },
+        { RegistrationSignUp.Error.BUSY.getCode(), "registration.sign.up.busy" },
+        { RegistrationSignUp.Error.PENDING.getCode(), "registration.sign.up.pending" },
+        { RegistrationSignUp.Error.INTERNAL_ERROR.getCode(), "registration.sign.up.error_creating_account" },
+        { RegistrationSignUp.Error.INVALID_USERNAME.getCode(), "registration.sign.up.invalid_username" },
+        { RegistrationSignUp.Error.RESERVED_USERNAME.getCode(), "registration.sign.up.reserved_username" },
+        { RegistrationSignUp.Error.USERNAME_EXISTS.getCode(), "registration.sign.up.create.user_exist" },
+        { RegistrationSignUp.Error.INVALID_EMAIL.getCode(), "registration.sign.up.invalid_email" },
+        { RegistrationSignUp.Error.BLOCKED_EMAIL.getCode(), "registration.sign.up.blocked_email" },
+        { RegistrationSignUp.Error.MISSING_PASSWORD.getCode(), "registration.sign.up.invalid_password" },
+        { RegistrationSignUp.Error.PASSWORD_MISMATCH.getCode(), "registration.sign.up.invalid_match_password" },
+        { RegistrationSignUp.Error.MISSING_PASSWORD_CONFIRM.getCode(), "registration.sign.up.invalid_password_confirm" },
+        { RegistrationSignUp.Error.CAPTCHA_FAILED.getCode(), "registration.sign.up.recaptcha_fail" },
+        { "invalid-request", "registration.sign.up.error_creating_account" }
+    };
+
+    /**
+     * A rendered page.
+     */
+    static final class Page {
+
+        private final int version;
+        private final byte[] body;
+        private final byte[] gzipBody;
+        private final String etag;
+        private final long lastModified;
+
+        Page(int version, byte[] body, byte[] gzipBody, String etag, long lastModified) {
+            this.version = version;
+            this.body = body;
+            this.gzipBody = gzipBody;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * @return the UTF-8 bytes of the page, or the gzip compressed bytes.
+         */
+        byte[] getBody(boolean gzip) {
+            return gzip ? gzipBody : body;
+        }
+
+        /**
+         * @return the ETag of the plain or of the gzip compressed page. Both are derived from the content, so they
+         *         are the same on every cluster node and after a restart.
+         */
+        String getETag(boolean gzip) {
+            return gzip ? "\"" + etag + "-gz\"" : "\"" + etag + "\"";
+        }
+
+        /**
+         * @return the time at which the configuration last changed, in whole seconds.
+         */
+        long getLastModified() {
+            return lastModified;
+        }
+    }
+
+    /**
+     * The markup of a page, parsed once into text and placeholders. A placeholder such as <tt>${header}</tt> is
+     * replaced with a value that is already escaped for HTML, and any other placeholder, such as
+     * <tt>${registration.sign.up.title}</tt>, with the message of the resource bundle by that key, escaped for HTML.
+     */
+    private static final class Template {
+
+        private static final String PLACEHOLDER_START = "${";
+
+        /**
+         * The text, at even indexes, and the names of the placeholders in between, at odd indexes.
+         */
+        private final String[] parts;
+        private final int length;
+
+        private Template(String[] parts, int length) {
+            this.parts = parts;
+            this.length = length;
+        }
+
+        static Template parse(String markup) {
+            final List<String> parts = new ArrayList<>();
+            int start = 0;
+            int placeholder;
+            while ((placeholder = markup.indexOf(PLACEHOLDER_START, start)) >= 0) {
+                final int end = markup.indexOf('}', placeholder);
+                if (end < 0) {
+                    break;
+                }
+                parts.add(markup.substring(start, placeholder));
+                parts.add(markup.substring(placeholder + PLACEHOLDER_START.length(), end));
+                start = end + 1;
+            }
+            parts.add(markup.substring(start));
+            return new Template(parts.toArray(new String[0]), markup.length());
+        }
+
+        String render(ResourceBundle bundle, Map<String, String> values) {
+            final StringBuilder html = new StringBuilder(length + length / 2);
+            for (int i = 0; i < parts.length; i++) {
+                if (i % 2 == 0) {
+                    html.append(parts[i]);
+                }
+                else {
+                    final String value = values.get(parts[i]);
+                    html.append(value != null ? value : message(bundle, parts[i]));
+                }
+            }
+            return html.toString();
+        }
+    }
+
+    private final RegistrationPlugin plugin;
+    private final File templateDirectory;
+    private final ConcurrentMap<String, Template> templates = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Locale, Page> pages = new ConcurrentHashMap<>();
+    private final AtomicInteger version = new AtomicInteger();
+    private volatile long lastModified = now();
+
+    /**
+     * @param templateDirectory the directory with the templates of the page.
+     */
+    RegistrationSignUpPage(RegistrationPlugin plugin, File templateDirectory) {
+        this.plugin = plugin;
+        this.templateDirectory = templateDirectory;
+    }
+
+    /**
+     * Returns the page for the locale of a request, rendering it if the configuration changed since it was
+     * last rendered.
+     *
+     * @throws MissingResourceException if the plugin has no resource bundle at all.
+     */
+    Page get(Locale locale) {
+        final ResourceBundle bundle = bundle(locale);
+        final Locale key = bundle.getLocale();
+        // The version is read before the settings, so a page that is rendered while the settings change is
+        // rendered again by the next request.
+        final int current = version.get();
+        final Page page = pages.get(key);
+        if (page != null && page.version == current) {
+            return page;
+        }
+        final Page rendered = render(bundle, current, lastModified);
+        return pages.merge(key, rendered, (existing, added) -> existing.version >= added.version ? existing : added);
+    }
+
+    /**
+     * Renders the page with the outcome of a sign-up that was submitted without scripts. The page is not kept.
+     *
+     * @param locale the locale of the request, or null for the default locale.
+     * @param result the outcome of the sign-up.
+     * @param fields the submitted fields, of which the username, name and email are filled in again.
+     * @return the page.
+     */
+    String render(Locale locale, RegistrationSignUp.Result result, Map<String, String> fields) {
+        return renderHtml(bundle(locale), result, fields);
+    }
+
+    /**
+     * Discards the rendered pages. Called whenever a <tt>registration.*</tt> property changes.
+     */
+    void invalidate() {
+        lastModified = now();
+        version.incrementAndGet();
+        pages.clear();
+    }
+
+    private Page render(ResourceBundle bundle, int version, long lastModified) {
+        final String html = renderHtml(bundle, null, null);
+        final byte[] body = html.getBytes(StandardCharsets.UTF_8);
+        final ByteArrayOutputStream gzip = new ByteArrayOutputStream(body.length / 3);
+        try (GZIPOutputStream out = new GZIPOutputStream(gzip)) {
+            out.write(body);
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return new Page(version, body, gzip.toByteArray(), digest(body), lastModified);
+    }
+
+    /**
+     * @param result the outcome of a sign-up to show, or null.
+     * @param fields the values to fill in, or null.
+     */
+    private String renderHtml(ResourceBundle bundle, RegistrationSignUp.Result result, Map<String, String> fields) {
+        final Map<String, String> values = new HashMap<>();
+        values.put("header", plugin.getHeader());
+        if (!plugin.webEnabled()) {
+            return template(UNAVAILABLE_TEMPLATE).render(bundle, values);
+        }
+
+        final boolean failed = result != null && !result.isSuccess();
+        values.put("errorStyle", failed ? "" : " style=\"display: none\"");
+        values.put("errorText", failed ? message(bundle, errorKey(result)) : "");
+        // The prepared username is filled in rather than the one that was entered.
+        values.put("username", StringUtils.escapeForXML(result != null && result.getUsername() != null
+                ? result.getUsername() : value(fields, RegistrationSignUp.USERNAME)));
+        values.put("name", StringUtils.escapeForXML(value(fields, RegistrationSignUp.NAME)));
+        values.put("email", StringUtils.escapeForXML(value(fields, RegistrationSignUp.EMAIL)));
+        values.put("captcha", plugin.reCaptchaEnabled() ? plugin.createCaptchaHtml() : "");
+
+        final RegistrationJsonWriter messages = new RegistrationJsonWriter();
+        for (String[] error : ERRORS) {
+            messages.put(error[0], text(bundle, error[1]));
+        }
+        values.put("errorMessages", messages.toString());
+        values.put("usernameMessages", new RegistrationJsonWriter()
+                .put("invalid", text(bundle, "registration.sign.up.invalid_username"))
+                .put("reserved", text(bundle, "registration.sign.up.reserved_username"))
+                .put("exists", text(bundle, "registration.sign.up.create.user_exist"))
+                .put("available", text(bundle, "registration.sign.up.username_available")).toString());
+        return template(PAGE_TEMPLATE).render(bundle, values);
+    }
+
+    /**
+     * @throws IllegalStateException if the template cannot be read.
+     */
+    private Template template(String name) {
+        return templates.computeIfAbsent(name, key -> {
+            final File file = new File(templateDirectory, key);
+            try {
+                return Template.parse(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+            }
+            catch (IOException e) {
+                throw new IllegalStateException("Unable to read the sign-up page template " + file, e);
+            }
+        });
+    }
+
+    /**
+     * @return the key of the message of the first error of a sign-up, in the order of {@link #ERRORS}.
+     */
+    private static String errorKey(RegistrationSignUp.Result result) {
+        for (String[] error : ERRORS) {
+            for (RegistrationSignUp.Error actual : result.getErrors()) {
+                if (actual.getCode().equals(error[0])) {
+                    return error[1];
+                }
+            }
+        }
+        return "registration.sign.up.error_creating_account";
+    }
+
+    /**
+     * @return the value of a field, or an empty string.
+     */
+    private static String value(Map<String, String> fields, String name) {
+        final String value = fields != null ? fields.get(name) : null;
+        return value != null ? value : "";
+    }
+
+    private static ResourceBundle bundle(Locale locale) {
+        return ResourceBundle.getBundle(BUNDLE, locale != null ? locale : Locale.getDefault(),
+                RegistrationSignUpPage.class.getClassLoader(), CONTROL);
+    }
+
+    /**
+     * @return a message of the bundle, escaped for HTML.
+     */
+    private static String message(ResourceBundle bundle, String key) {
+        return StringUtils.escapeForXML(text(bundle, key));
+    }
+
+    private static String text(ResourceBundle bundle, String key) {
+        try {
+            return bundle.getString(key);
+        }
+        catch (MissingResourceException e) {
+            return "???" + key + "???";
+        }
+    }
+
+    /**
+     * @return the first 16 hex digits of the SHA-256 digest of a page.
+     */
+    private static String digest(byte[] body) {
+        try {
+            final byte[] hash = MessageDigest.getInstance("SHA-256").digest(body);
+            final StringBuilder hex = new StringBuilder(16);
+            for (int i = 0; i < 8; i++) {
+                hex.append(Character.forDigit((hash[i] >> 4) & 0xf, 16)).append(Character.forDigit(hash[i] & 0xf, 16));
+            }
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the current time, truncated to whole seconds as in the Last-Modified header.
+     */
+    private static long now() {
+        return System.currentTimeMillis() / 1000 * 1000;
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves the sign-up page, and creates users for web sign-ups.
+ *
+ * A GET request is answered with the page that is rendered by {@link RegistrationSignUpPage}, gzip compressed if
+ * the client accepts it, or with <tt>304 Not Modified</tt> if the client has the current page.
+ *
+ * A POST request carries the fields of the sign-up form (see {@link RegistrationSignUp}), as a JSON object or as
+ * form data. The response is a JSON object with <tt>success</tt> and, for a successful sign-up, the prepared
+ * <tt>username</tt>, or otherwise the <tt>errors</tt>, as codes such as <tt>username-exists</tt>. The form of the
+ * page, posted by a browser without scripts, is answered with the page instead, showing the outcome. When the
+ * container supports it, the request is processed asynchronously on the sign-up threads of the plugin, so it does
+ * not hold a container thread while the captcha is verified and the user is created. The admin console dispatches
+ * plugin servlets through a servlet and filters that are not asynchronous, so there the request is processed on the
+ * container thread; the plugin also serves this servlet, and advertises the page, from the HTTP binding server,
+ * which is asynchronous, see {@link RegistrationPlugin#SIGN_UP_CONTEXT_PATH}. This servlet is available without
+ * authentication, but only while web registration is enabled.
+ */
+public class RegistrationSignUpServlet extends HttpServlet {
+
+    private static final Logger Log = LoggerFactory.getLogger(RegistrationSignUpServlet.class);
+
+    private static final int MAX_BODY_LENGTH = 16 * 1024;
+    private static final long TIMEOUT_MILLIS = 30000;
+
+    /**
+     * The submit button of the form of the page, which is only sent by a browser that posts the form itself.
+     */
+    private static final String CREATE = "create";
+
+    private static final String[] FIELDS = { RegistrationSignUp.USERNAME, RegistrationSignUp.PASSWORD,
+            RegistrationSignUp.PASSWORD_CONFIRM, RegistrationSignUp.NAME, RegistrationSignUp.EMAIL,
+            RegistrationSignUp.CAPTCHA_CHALLENGE, RegistrationSignUp.CAPTCHA_RESPONSE };
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        final RegistrationPlugin plugin = RegistrationImportServlet.getPlugin();
+        if (plugin == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        final RegistrationSignUpPage.Page page = plugin.getSignUpPage().get(request.getLocale());
+        final boolean gzip = acceptsGzip(request);
+        final String etag = page.getETag(gzip);
+        response.setHeader("Vary", "Accept-Encoding, Accept-Language");
+        response.setHeader("Cache-Control", "no-cache");
+        response.setHeader("ETag", etag);
+        response.setDateHeader("Last-Modified", page.getLastModified());
+        if (isNotModified(request, etag, page.getLastModified())) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        final byte[] body = page.getBody(gzip);
+        if (gzip) {
+            response.setHeader("Content-Encoding", "gzip");
+        }
+        response.setContentType("text/html");
+        response.setCharacterEncoding("UTF-8");
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        final RegistrationPlugin plugin = RegistrationImportServlet.getPlugin();
+        if (plugin == null || !plugin.webEnabled()) {
+            writeError(response, HttpServletResponse.SC_NOT_FOUND, RegistrationSignUp.Error.DISABLED.getCode());
+            return;
+        }
+
+        final Map<String, String> fields;
+        try {
+            fields = readFields(request);
+        }
+        catch (IOException e) {
+            writeError(response, HttpServletResponse.SC_BAD_REQUEST, "invalid-request");
+            return;
+        }
+        if (fields == null) {
+            writeError(response, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "invalid-request");
+            return;
+        }
+
+        final String remoteAddress = request.getRemoteAddr();
+        final Locale locale = !isJson(request) && request.getParameter(CREATE) != null ? request.getLocale() : null;
+        if (!request.isAsyncSupported()) {
+            // Not every servlet in front of this one supports asynchronous processing.
+            writeResult(response, plugin, locale, fields, plugin.getSignUp().signUp(remoteAddress, fields));
+            return;
+        }
+
+        final AsyncContext async = request.startAsync();
+        async.setTimeout(TIMEOUT_MILLIS);
+        // The request is claimed either by the sign-up, when it starts, or by the timeout, whichever comes first. A
+        // sign-up that is claimed by the timeout is answered with busy, and never creates the user. A sign-up that
+        // is still running at the timeout is answered with pending, and its result is only logged.
+        final AtomicBoolean claimed = new AtomicBoolean();
+        final AtomicBoolean answered = new AtomicBoolean();
+        async.addListener(new AsyncListener() {
+            public void onTimeout(AsyncEvent event) throws IOException {
+                if (!answered.compareAndSet(false, true)) {
+                    return;
+                }
+                final RegistrationSignUp.Error error = claimed.compareAndSet(false, true)
+                        ? RegistrationSignUp.Error.BUSY : RegistrationSignUp.Error.PENDING;
+                try {
+                    writeResult((HttpServletResponse) event.getAsyncContext().getResponse(), plugin, locale, fields,
+                            new RegistrationSignUp.Result(null, EnumSet.of(error)));
+                }
+                finally {
+                    event.getAsyncContext().complete();
+                }
+            }
+
+            public void onComplete(AsyncEvent event) {
+            }
+
+            public void onError(AsyncEvent event) {
+            }
+
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+
+        final boolean accepted = plugin.getSignUp().submit(remoteAddress, fields,
+                () -> claimed.compareAndSet(false, true), result -> {
+                    if (!answered.compareAndSet(false, true)) {
+                        Log.info("Registration plugin : a sign-up from {} that was answered as pending completed: {}",
+                                remoteAddress, result.isSuccess() ? "created " + result.getUsername()
+                                        : result.getErrors());
+                        return;
+                    }
+                    try {
+                        writeResult((HttpServletResponse) async.getResponse(), plugin, locale, fields, result);
+                    }
+                    catch (IOException e) {
+                        Log.debug("Registration plugin : unable to write the sign-up response.", e);
+                    }
+                    finally {
+                        async.complete();
+                    }
+                });
+        if (!accepted && claimed.compareAndSet(false, true) && answered.compareAndSet(false, true)) {
+            try {
+                writeResult(response, plugin, locale, fields,
+                        new RegistrationSignUp.Result(null, EnumSet.of(RegistrationSignUp.Error.BUSY)));
+            }
+            finally {
+                async.complete();
+            }
+        }
+    }
+
+    private static boolean acceptsGzip(HttpServletRequest request) {
+        final String accept = request.getHeader("Accept-Encoding");
+        if (accept == null) {
+            return false;
+        }
+        for (String coding : accept.split(",")) {
+            final String[] parts = coding.trim().split(";");
+            if (parts[0].trim().equalsIgnoreCase("gzip")) {
+                return parts.length == 1 || !parts[1].trim().replace(" ", "").matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Evaluates the conditional headers of a request. If-None-Match takes precedence over If-Modified-Since.
+     */
+    private static boolean isNotModified(HttpServletRequest request, String etag, long lastModified) {
+        final String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                final String candidate = tag.trim();
+                if (candidate.equals("*") || candidate.equals(etag) || candidate.equals("W/" + etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        try {
+            final long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+            return ifModifiedSince >= 0 && lastModified <= ifModifiedSince;
+        }
+        catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the fields of the request, or null if the body is too large.
+     * @throws IOException if the body cannot be read, or is not a JSON object.
+     */
+    private static Map<String, String> readFields(HttpServletRequest request) throws IOException {
+        if (request.getContentLength() > MAX_BODY_LENGTH) {
+            return null;
+        }
+        if (request.getCharacterEncoding() == null) {
+            request.setCharacterEncoding("UTF-8");
+        }
+        if (!isJson(request)) {
+            final Map<String, String> fields = new HashMap<>();
+            for (String field : FIELDS) {
+                fields.put(field, request.getParameter(field));
+            }
+            return fields;
+        }
+
+        final Reader reader = request.getReader();
+        final StringBuilder body = new StringBuilder();
+        final char[] buffer = new char[4096];
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+            body.append(buffer, 0, read);
+            if (body.length() > MAX_BODY_LENGTH) {
+                return null;
+            }
+        }
+        final Map<String, String> fields = new RegistrationJsonReader(new StringReader(body.toString())).next();
+        if (fields == null) {
+            throw new IOException("The request does not contain a JSON object.");
+        }
+        return fields;
+    }
+
+    /**
+     * @param locale the locale of the page to answer with, or null to answer with JSON.
+     */
+    private static boolean isJson(HttpServletRequest request) {
+        final String contentType = request.getContentType();
+        return contentType != null && contentType.toLowerCase().contains("json");
+    }
+
+    private static void writeResult(HttpServletResponse response, RegistrationPlugin plugin, Locale locale,
+            Map<String, String> fields, RegistrationSignUp.Result result) throws IOException {
+        if (locale != null) {
+            writePage(response, plugin, locale, fields, result);
+            return;
+        }
+        if (result.isSuccess()) {
+            RegistrationImportServlet.writeJson(response, HttpServletResponse.SC_OK, new RegistrationJsonWriter()
+                    .put("success", true).put("username", result.getUsername()).toString());
+            return;
+        }
+        final List<String> codes = new ArrayList<>();
+        for (RegistrationSignUp.Error error : result.getErrors()) {
+            codes.add(error.getCode());
+        }
+        RegistrationImportServlet.writeJson(response, status(result), new RegistrationJsonWriter()
+                .put("success", false).put("errors", codes).toString());
+    }
+
+    private static void writePage(HttpServletResponse response, RegistrationPlugin plugin, Locale locale,
+            Map<String, String> fields, RegistrationSignUp.Result result) throws IOException {
+        if (result.isSuccess()) {
+            response.sendRedirect("sign-up?success=true");
+            return;
+        }
+        if (result.hasError(RegistrationSignUp.Error.RATE_LIMITED)) {
+            response.setStatus(429);
+        }
+        else if (result.hasError(RegistrationSignUp.Error.PENDING)) {
+            response.setStatus(HttpServletResponse.SC_ACCEPTED);
+        }
+        final byte[] body = plugin.getSignUpPage().render(locale, result, fields).getBytes(StandardCharsets.UTF_8);
+        response.setHeader("Cache-Control", "no-store");
+        response.setContentType("text/html");
+        response.setCharacterEncoding("UTF-8");
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+
+    private static int status(RegistrationSignUp.Result result) {
+        if (result.hasError(RegistrationSignUp.Error.DISABLED)) {
+            return HttpServletResponse.SC_NOT_FOUND;
+        }
+        if (result.hasError(RegistrationSignUp.Error.RATE_LIMITED)) {
+            return 429;
+        }
+        if (result.hasError(RegistrationSignUp.Error.BUSY)) {
+            return HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+        }
+        if (result.hasError(RegistrationSignUp.Error.PENDING)) {
+            return HttpServletResponse.SC_ACCEPTED;
+        }
+        if (result.hasError(RegistrationSignUp.Error.INTERNAL_ERROR)) {
+            return HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+        }
+        if (result.hasError(RegistrationSignUp.Error.USERNAME_EXISTS)) {
+            return HttpServletResponse.SC_CONFLICT;
+        }
+        return HttpServletResponse.SC_BAD_REQUEST;
+    }
+
+    private static void writeError(HttpServletResponse response, int status, String code) throws IOException {
+        RegistrationImportServlet.writeJson(response, status, new RegistrationJsonWriter()
+                .put("success", false).put("errors", Collections.singletonList(code)).toString());
+    }
+}
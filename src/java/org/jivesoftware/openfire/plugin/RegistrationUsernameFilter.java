@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.util.Collection;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.jivesoftware.openfire.user.User;
+import org.jivesoftware.openfire.user.UserManager;
+import org.jivesoftware.util.TaskEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A Bloom filter of the usernames that exist, used to answer "is this username available?" without a database
+ * lookup for most usernames.
+ *
+ * If the filter contains a username, the username is probably taken, and the caller has to look it up. If it does
+ * not, the username was not taken when the filter last heard about it. The filter is built in the background by
+ * reading the user store page by page, and is updated when users are created on this node or, through the cluster,
+ * on another node. Users that are created outside Openfire (for example in an external user provider) are only
+ * added when the filter is rebuilt, which happens periodically. An answer of "not taken" is therefore advisory: it
+ * is good enough for a form that checks a username as it is typed, and creating the user still fails if the
+ * username is taken after all.
+ *
+ * Usernames cannot be removed from a Bloom filter, so deleted users only count towards a rebuild, which also
+ * happens when the filter has collected too many of them or has grown beyond the capacity it was sized for.
+ */
+class RegistrationUsernameFilter {
+
+    private static final Logger Log = LoggerFactory.getLogger(RegistrationUsernameFilter.class);
+
+    private static final int PAGE_SIZE = 1000;
+    private static final int MIN_CAPACITY = 10000;
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+
+    /**
+     * The bits of one generation of the filter.
+     */
+    private static final class Bits {
+
+        private final AtomicLongArray words;
+        private final long size;
+        private final int hashes;
+        private final int capacity;
+        private final AtomicInteger count = new AtomicInteger();
+
+        Bits(int capacity) {
+            this.capacity = capacity;
+            final long bits = (long) Math.ceil(-capacity * Math.log(FALSE_POSITIVE_RATE) / (Math.log(2) * Math.log(2)));
+            words = new AtomicLongArray((int) ((bits + 63) / 64));
+            size = words.length() * 64L;
+            hashes = Math.max(1, (int) Math.round((double) size / capacity * Math.log(2)));
+        }
+
+        void add(String username) {
+            final long hash = hash(username);
+            for (int i = 1; i <= hashes; i++) {
+                final long bit = bit(hash, i);
+                final int word = (int) (bit >>> 6);
+                final long mask = 1L << bit;
+                long value;
+                do {
+                    value = words.get(word);
+                } while ((value & mask) == 0 && !words.compareAndSet(word, value, value | mask));
+            }
+            count.incrementAndGet();
+        }
+
+        boolean mightContain(String username) {
+            final long hash = hash(username);
+            for (int i = 1; i <= hashes; i++) {
+                final long bit = bit(hash, i);
+                if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns the i-th bit of a username, by double hashing with the two halves of its hash.
+         */
+        private long bit(long hash, int i) {
+            return ((hash & 0xffffffffL) + i * ((hash >>> 32) | 1)) % size;
+        }
+
+        /**
+         * A 64 bit FNV-1a hash.
+         */
+        private static long hash(String value) {
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < value.length(); i++) {
+                hash ^= value.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+            return hash;
+        }
+    }
+
+    private volatile Bits bits;
+    private volatile Bits building;
+    private final AtomicInteger removed = new AtomicInteger();
+    private final AtomicBoolean rebuilding = new AtomicBoolean();
+    private TimerTask rebuildTask;
+
+    /**
+     * Builds the filter, and rebuilds it periodically.
+     *
+     * @param rebuildMinutes the number of minutes between rebuilds, or 0 to only rebuild when needed.
+     */
+    synchronized void start(long rebuildMinutes) {
+        rebuild();
+        if (rebuildMinutes > 0) {
+            final long period = TimeUnit.MINUTES.toMillis(rebuildMinutes);
+            rebuildTask = new TimerTask() {
+                @Override
+                public void run() {
+                    rebuild();
+                }
+            };
+            TaskEngine.getInstance().scheduleAtFixedRate(rebuildTask, period, period);
+        }
+    }
+
+    synchronized void stop() {
+        if (rebuildTask != null) {
+            TaskEngine.getInstance().cancelScheduledTask(rebuildTask);
+            rebuildTask = null;
+        }
+        bits = null;
+    }
+
+    /**
+     * Builds the filter in the background. Until the filter is built, every username has to be looked up.
+     */
+    void rebuild() {
+        if (!rebuilding.compareAndSet(false, true)) {
+            return;
+        }
+        TaskEngine.getInstance().submit(() -> {
+            try {
+                final UserManager userManager = UserManager.getInstance();
+                final Bits newBits = new Bits(Math.max(MIN_CAPACITY, userManager.getUserCount() * 2));
+                // Users that are created while the filter is built are added to it by userCreated().
+                building = newBits;
+                removed.set(0);
+                int start = 0;
+                Collection<User> page;
+                while (!(page = userManager.getUsers(start, PAGE_SIZE)).isEmpty()) {
+                    for (User user : page) {
+                        newBits.add(user.getUsername());
+                    }
+                    start += page.size();
+                }
+                bits = newBits;
+                Log.info("Registration plugin : username filter built for {} users.", start);
+            }
+            catch (RuntimeException e) {
+                Log.error("Registration plugin : unable to build the username filter.", e);
+            }
+            finally {
+                building = null;
+                rebuilding.set(false);
+            }
+        });
+    }
+
+    /**
+     * @return false if the username was not taken when the filter last heard about it, true if it might be taken
+     *         or if the filter is not built yet.
+     */
+    boolean mightContain(String username) {
+        final Bits current = bits;
+        return current == null || current.mightContain(username);
+    }
+
+    boolean isReady() {
+        return bits != null;
+    }
+
+    void userCreated(String username) {
+        final Bits current = bits;
+        final Bits next = building;
+        if (current != null) {
+            current.add(username);
+        }
+        if (next != null) {
+            next.add(username);
+        }
+        if (current != null && current.count.get() > current.capacity) {
+            rebuild();
+        }
+    }
+
+    void userDeleted(String username) {
+        final Bits current = bits;
+        if (current != null && removed.incrementAndGet() > current.capacity / 10) {
+            rebuild();
+        }
+    }
+}
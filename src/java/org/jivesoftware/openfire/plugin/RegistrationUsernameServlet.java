@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Tells the sign-up page whether a username is available.
+ *
+ * A GET request with a <tt>username</tt> parameter is answered with a JSON object with the prepared username,
+ * whether it is <tt>valid</tt>, whether it is <tt>reserved</tt> and whether it is <tt>available</tt>. This servlet
+ * is available without authentication, but only while web registration is enabled.
+ */
+public class RegistrationUsernameServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        final RegistrationPlugin plugin = RegistrationImportServlet.getPlugin();
+        if (plugin == null || !plugin.webEnabled()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        final String username = RegistrationPlugin.prepareUsername(request.getParameter("username"));
+        final RegistrationJsonWriter json = new RegistrationJsonWriter();
+        if (username == null) {
+            json.put("valid", false).put("available", false);
+        }
+        else {
+            final boolean reserved = plugin.isReservedUsername(username);
+            json.put("username", username).put("valid", true).put("reserved", reserved)
+                    .put("available", !reserved && plugin.isUsernameAvailable(username));
+        }
+        RegistrationImportServlet.writeJson(response, HttpServletResponse.SC_OK, json.toString());
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.util.cache.ClusterTask;
+import org.jivesoftware.util.cache.ExternalizableUtil;
+
+/**
+ * Adds a user that was created on another cluster node to the username filter of this node, as user events are
+ * only dispatched on the node that created the user.
+ */
+public class RegistrationUsernameTask implements ClusterTask<Void> {
+
+    private String username;
+
+    public RegistrationUsernameTask() {
+    }
+
+    RegistrationUsernameTask(String username) {
+        this.username = username;
+    }
+
+    public Void getResult() {
+        return null;
+    }
+
+    public void run() {
+        final RegistrationPlugin plugin = (RegistrationPlugin) XMPPServer.getInstance().getPluginManager()
+                .getPlugin("registration");
+        if (plugin != null) {
+            plugin.usernameCreated(username);
+        }
+    }
+
+    public void writeExternal(ObjectOutput out) throws IOException {
+        ExternalizableUtil.getInstance().writeSafeUTF(out, username);
+    }
+
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        username = ExternalizableUtil.getInstance().readSafeUTF(in);
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import org.jivesoftware.database.DbConnectionManager;
+import org.jivesoftware.openfire.session.ClientSession;
+import org.jivesoftware.openfire.user.PresenceEventDispatcher;
+import org.jivesoftware.openfire.user.PresenceEventListener;
+import org.jivesoftware.openfire.user.User;
+import org.jivesoftware.openfire.user.UserManager;
+import org.jivesoftware.openfire.user.UserNotFoundException;
+import org.jivesoftware.util.cache.Cache;
+import org.jivesoftware.util.cache.CacheFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Presence;
+
+/**
+ * Holds back the welcome messages of new users until they log in for the first time.
+ *
+ * Sending a welcome message to a user who is not online stores it in the offline message store, where it stays
+ * until the user logs in, or forever if the user never does. Instead, a marker (the full name of the user) is kept
+ * in a cluster-wide cache, and the welcome messages are sent to the session of the user when it becomes available.
+ * Markers expire after a configurable time, so users who never log in do not leave anything behind.
+ *
+ * The cache does not survive a restart of the server, so every marker is also saved as a user property with the
+ * moment it expires. When the plugin starts, the markers that have not expired are put back in the cache (with a
+ * full lifetime), and the expired ones are removed. A welcome message that cannot be held back this way is sent
+ * immediately.
+ */
+class RegistrationWelcomeDeferral implements PresenceEventListener {
+
+    private static final Logger Log = LoggerFactory.getLogger(RegistrationWelcomeDeferral.class);
+
+    private static final String CACHE_NAME = "Registration Pending Welcome";
+
+    /**
+     * The user property that holds the moment, in milliseconds since the epoch, a marker expires.
+     */
+    static final String PROPERTY = "registration.welcome.pending";
+
+    private static final String LOAD_MARKERS = "SELECT username, propValue FROM ofUserProp WHERE name=?";
+
+    private final BiConsumer<JID, String> sender;
+    private volatile Cache<String, String> pending;
+    private volatile long ttlMillis;
+
+    /**
+     * @param sender sends the welcome messages to the address of a session, given the full name of the user.
+     */
+    RegistrationWelcomeDeferral(BiConsumer<JID, String> sender) {
+        this.sender = sender;
+    }
+
+    void start(long ttlSeconds) {
+        final Cache<String, String> cache = CacheFactory.createCache(CACHE_NAME);
+        // The number of markers is bounded by their lifetime.
+        cache.setMaxCacheSize(-1);
+        cache.setMaxLifetime(TimeUnit.SECONDS.toMillis(ttlSeconds));
+        ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+        restore(cache);
+        pending = cache;
+        PresenceEventDispatcher.addListener(this);
+    }
+
+    void stop() {
+        PresenceEventDispatcher.removeListener(this);
+        pending = null;
+    }
+
+    void setTtl(long ttlSeconds) {
+        ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+        final Cache<String, String> cache = pending;
+        if (cache != null) {
+            cache.setMaxLifetime(TimeUnit.SECONDS.toMillis(ttlSeconds));
+        }
+    }
+
+    /**
+     * Holds back the welcome messages of a user.
+     *
+     * @return false if the welcome messages cannot be held back, and have to be sent immediately.
+     */
+    boolean add(User user) {
+        final Cache<String, String> cache = pending;
+        if (cache == null) {
+            return false;
+        }
+        try {
+            user.getProperties().put(PROPERTY, Long.toString(System.currentTimeMillis() + ttlMillis));
+        }
+        catch (RuntimeException e) {
+            Log.warn("Registration plugin : unable to save the pending welcome of '{}', sending it now.",
+                    user.getUsername(), e);
+            return false;
+        }
+        cache.put(user.getUsername(), user.getName() != null ? user.getName() : "");
+        return true;
+    }
+
+    void remove(String username) {
+        final Cache<String, String> cache = pending;
+        if (cache != null) {
+            cache.remove(username);
+        }
+    }
+
+    int size() {
+        final Cache<String, String> cache = pending;
+        return cache != null ? cache.size() : 0;
+    }
+
+    public void availableSession(ClientSession session, Presence presence) {
+        final Cache<String, String> cache = pending;
+        final JID address = session.getAddress();
+        if (cache == null || address.getNode() == null) {
+            return;
+        }
+        // Removing the marker makes sure that only the first session receives the messages.
+        final String name = cache.remove(address.getNode());
+        if (name != null) {
+            sender.accept(address, name.isEmpty() ? null : name);
+            forget(address.getNode());
+        }
+    }
+
+    /**
+     * Puts the saved markers that have not expired in the cache, and removes the expired ones.
+     */
+    private static void restore(Cache<String, String> cache) {
+        final Map<String, String> markers = new HashMap<>();
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            con = DbConnectionManager.getConnection();
+            pstmt = con.prepareStatement(LOAD_MARKERS);
+            pstmt.setString(1, PROPERTY);
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                markers.put(rs.getString(1), rs.getString(2));
+            }
+        }
+        catch (SQLException e) {
+            Log.error("Registration plugin : unable to load the pending welcome messages.", e);
+            return;
+        }
+        finally {
+            DbConnectionManager.closeConnection(rs, pstmt, con);
+        }
+
+        final long now = System.currentTimeMillis();
+        for (Map.Entry<String, String> marker : markers.entrySet()) {
+            long expires = 0;
+            if (marker.getValue() != null) {
+                try {
+                    expires = Long.parseLong(marker.getValue().trim());
+                }
+                catch (NumberFormatException e) {
+                    // Removed as expired.
+                }
+            }
+            try {
+                final User user = UserManager.getInstance().getUser(marker.getKey());
+                if (expires <= now) {
+                    user.getProperties().remove(PROPERTY);
+                }
+                else if (!cache.containsKey(user.getUsername())) {
+                    // Another node may already have restored the marker, or sent the welcome messages.
+                    cache.put(user.getUsername(), user.getName() != null ? user.getName() : "");
+                }
+            }
+            catch (UserNotFoundException e) {
+                // The property is removed with the user.
+            }
+        }
+    }
+
+    private static void forget(String username) {
+        try {
+            UserManager.getInstance().getUser(username).getProperties().remove(PROPERTY);
+        }
+        catch (UserNotFoundException | RuntimeException e) {
+            Log.warn("Registration plugin : unable to remove the pending welcome of '{}'.", username, e);
+        }
+    }
+
+    public void unavailableSession(ClientSession session, Presence presence) {
+    }
+
+    public void presenceChanged(ClientSession session, Presence presence) {
+    }
+
+    public void subscribedToPresence(JID subscriberJID, JID authorizerJID) {
+    }
+
+    public void unsubscribedToPresence(JID unsubscriberJID, JID recipientJID) {
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+/**
+ * A captcha verifier that does not contact any service, for test environments and for servers that cannot
+ * reach the reCAPTCHA service.
+ *
+ * The sign-up form asks for a response, which is valid if it equals the configured answer, or if it is not
+ * empty when no answer is configured.
+ */
+class StubCaptchaVerifier implements CaptchaVerifier {
+
+    private final String answer;
+
+    StubCaptchaVerifier(String answer) {
+        this.answer = answer != null && !answer.trim().isEmpty() ? answer.trim() : null;
+    }
+
+    @Override
+    public Result verify(String remoteAddress, String challenge, String response) {
+        if (response == null || response.trim().isEmpty()) {
+            return Result.INVALID;
+        }
+        return answer == null || answer.equals(response.trim()) ? Result.VALID : Result.INVALID;
+    }
+
+    @Override
+    public String createHtml() {
+        return "<div class=\"jive-contentBox\"><label for=\"recaptcha_response_field\">Verification code:</label> "
+                + "<input type=\"hidden\" name=\"recaptcha_challenge_field\" value=\"stub\"/>"
+                + "<input type=\"text\" name=\"recaptcha_response_field\" id=\"recaptcha_response_field\" "
+                + "size=\"20\" maxlength=\"100\" autocomplete=\"off\"/></div>";
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.dom4j.Attribute;
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.Node;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+
+/**
+ * A precompiled welcome message, or array of welcome messages, that is sent to newly registered users.
+ *
+ * Instances are immutable: the XML is parsed once, and every call to {@link #createMessages} works on a copy
+ * of the parsed elements. Text and attribute values can contain the placeholders <tt>${username}</tt>,
+ * <tt>${domain}</tt> and <tt>${name}</tt>, which are replaced with the details of the new user.
+ */
+final class WelcomeMessageTemplate {
+
+    private static final String PLACEHOLDER_START = "${";
+
+    private final List<Element> elements;
+    private final JID from;
+    private final boolean hasPlaceholders;
+
+    private WelcomeMessageTemplate(List<Element> elements, JID from) {
+        this.elements = Collections.unmodifiableList(elements);
+        this.from = from;
+        boolean placeholders = false;
+        for (Element element : elements) {
+            placeholders |= containsPlaceholder(element);
+        }
+        this.hasPlaceholders = placeholders;
+    }
+
+    /**
+     * Parses raw XMPP message XML. The root element is either a single <tt>message</tt> element, or a
+     * <tt>messages</tt> element that contains one or more <tt>message</tt> elements.
+     *
+     * @param rawMessage the XML to parse.
+     * @param from the address the messages are sent from.
+     * @return the compiled template.
+     * @throws DocumentException if the XML is malformed or does not contain a message.
+     */
+    static WelcomeMessageTemplate compile(String rawMessage, JID from) throws DocumentException {
+        final Document document = DocumentHelper.parseText(rawMessage);
+        final Element root = document.getRootElement();
+        final List<Element> elements = new ArrayList<>();
+        // It could be a single message or an array of messages
+        // An array of messages has "messages" as a root element
+        if (root.getName().equals("messages")) {
+            for (Iterator i = root.elementIterator(); i.hasNext();) {
+                elements.add(checkMessage((Element) i.next()).createCopy());
+            }
+            if (elements.isEmpty()) {
+                throw new DocumentException("The 'messages' element does not contain any message.");
+            }
+        }
+        else {
+            elements.add(checkMessage(root).createCopy());
+        }
+        return new WelcomeMessageTemplate(elements, from);
+    }
+
+    /**
+     * Creates a template for a plain text message.
+     *
+     * @param subject the subject of the message, or null.
+     * @param body the body of the message.
+     * @param from the address the message is sent from.
+     * @return the compiled template.
+     */
+    static WelcomeMessageTemplate forText(String subject, String body, JID from) {
+        final Message message = new Message();
+        if (subject != null) {
+            message.setSubject(subject);
+        }
+        message.setBody(body);
+        return new WelcomeMessageTemplate(Collections.singletonList(message.getElement().createCopy()), from);
+    }
+
+    /**
+     * Creates the messages for one user.
+     *
+     * @param to the address of the new user.
+     * @param name the full name of the new user, or null.
+     * @return the messages to route, one for every message in the template.
+     */
+    List<Message> createMessages(JID to, String name) {
+        final List<Message> messages = new ArrayList<>(elements.size());
+        for (Element element : elements) {
+            final Element copy = element.createCopy();
+            if (hasPlaceholders) {
+                substitute(copy, to.getNode(), to.getDomain(), name != null ? name : "");
+            }
+            final Message message = new Message(copy);
+            message.setTo(to);
+            message.setFrom(from);
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    int size() {
+        return elements.size();
+    }
+
+    private static Element checkMessage(Element element) throws DocumentException {
+        if (!element.getName().equals("message")) {
+            throw new DocumentException("Unexpected element '" + element.getName() + "', expected 'message'.");
+        }
+        return element;
+    }
+
+    private static boolean containsPlaceholder(Element element) {
+        for (Iterator i = element.attributeIterator(); i.hasNext();) {
+            if (((Attribute) i.next()).getValue().contains(PLACEHOLDER_START)) {
+                return true;
+            }
+        }
+        for (Iterator i = element.nodeIterator(); i.hasNext();) {
+            final Node node = (Node) i.next();
+            if (node instanceof Element) {
+                if (containsPlaceholder((Element) node)) {
+                    return true;
+                }
+            }
+            else if (node.getNodeType() == Node.TEXT_NODE || node.getNodeType() == Node.CDATA_SECTION_NODE) {
+                if (node.getText().contains(PLACEHOLDER_START)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void substitute(Element element, String username, String domain, String name) {
+        for (Iterator i = element.attributeIterator(); i.hasNext();) {
+            final Attribute attribute = (Attribute) i.next();
+            if (attribute.getValue().contains(PLACEHOLDER_START)) {
+                attribute.setValue(replace(attribute.getValue(), username, domain, name));
+            }
+        }
+        for (Iterator i = element.nodeIterator(); i.hasNext();) {
+            final Node node = (Node) i.next();
+            if (node instanceof Element) {
+                substitute((Element) node, username, domain, name);
+            }
+            else if (node.getNodeType() == Node.TEXT_NODE || node.getNodeType() == Node.CDATA_SECTION_NODE) {
+                if (node.getText().contains(PLACEHOLDER_START)) {
+                    node.setText(replace(node.getText(), username, domain, name));
+                }
+            }
+        }
+    }
+
+    private static String replace(String text, String username, String domain, String name) {
+        return text.replace("${username}", username)
+                .replace("${domain}", domain)
+                .replace("${name}", name);
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests the blocklist: the domain, username, prefix and substring lookups, and compiling a new index file when
+ * the text file changes.
+ */
+public class RegistrationBlocklistTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File source;
+
+    @Before
+    public void setUp() {
+        source = new File(folder.getRoot(), "blocklist.txt");
+    }
+
+    @Test
+    public void testDomains() throws Exception {
+        final RegistrationBlocklist blocklist = load("# Blocked domains", "", "@example.com", "@Blocked.ORG");
+        assertEquals(2, blocklist.size());
+        assertTrue(blocklist.isBlockedEmail("jane@example.com"));
+        assertTrue(blocklist.isBlockedEmail("jane@mail.example.com"));
+        assertTrue(blocklist.isBlockedEmail("jane@EXAMPLE.com"));
+        assertTrue(blocklist.isBlockedEmail("jane@blocked.org"));
+        assertFalse(blocklist.isBlockedEmail("jane@ample.com"));
+        assertFalse(blocklist.isBlockedEmail("jane@notexample.com"));
+        assertFalse(blocklist.isBlockedEmail("jane@example.com.au"));
+        assertFalse(blocklist.isBlockedEmail("example.com"));
+        assertFalse(blocklist.isBlockedEmail(null));
+    }
+
+    @Test
+    public void testUsernames() throws Exception {
+        final RegistrationBlocklist blocklist = load("admin", "root*", "*abuse*");
+        assertTrue(blocklist.isReservedUsername("admin"));
+        assertTrue(blocklist.isReservedUsername("Admin"));
+        assertFalse(blocklist.isReservedUsername("admins"));
+        assertFalse(blocklist.isReservedUsername("adm"));
+        assertTrue(blocklist.isReservedUsername("root"));
+        assertTrue(blocklist.isReservedUsername("rootkit"));
+        assertFalse(blocklist.isReservedUsername("roo"));
+        assertFalse(blocklist.isReservedUsername("theroot"));
+        assertTrue(blocklist.isReservedUsername("abuse"));
+        assertTrue(blocklist.isReservedUsername("no-abuse-here"));
+        assertFalse(blocklist.isReservedUsername("abus"));
+        assertFalse(blocklist.isReservedUsername(null));
+    }
+
+    @Test
+    public void testLookupsMatchSets() throws Exception {
+        final Random random = new Random(42);
+        final Set<String> names = new HashSet<>();
+        final Set<String> prefixes = new HashSet<>();
+        final Set<String> domains = new HashSet<>();
+        final List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            final String name = randomText(random, 1, 6);
+            names.add(name);
+            lines.add(name);
+            final String prefix = randomText(random, 3, 5);
+            prefixes.add(prefix);
+            lines.add(prefix + "*");
+            final String domain = randomText(random, 1, 4) + "." + randomText(random, 2, 3);
+            domains.add(domain);
+            lines.add("@" + domain);
+        }
+        final RegistrationBlocklist blocklist = load(lines.toArray(new String[0]));
+        assertEquals(names.size() + prefixes.size() + domains.size(), blocklist.size());
+
+        for (int i = 0; i < 20000; i++) {
+            final String username = randomText(random, 1, 8);
+            boolean reserved = names.contains(username);
+            for (int length = 1; length <= username.length(); length++) {
+                reserved |= prefixes.contains(username.substring(0, length));
+            }
+            assertEquals(username, reserved, blocklist.isReservedUsername(username));
+
+            final String domain = randomText(random, 1, 4) + "." + randomText(random, 2, 3);
+            final String host = random.nextBoolean() ? domain : randomText(random, 1, 3) + "." + domain;
+            final boolean blocked = domains.contains(host) || domains.contains(host.substring(host.indexOf('.') + 1));
+            assertEquals(host, blocked, blocklist.isBlockedEmail("user@" + host));
+        }
+    }
+
+    @Test
+    public void testChangeCompilesNewIndexFile() throws Exception {
+        // The index file of earlier versions is replaced by a versioned one.
+        Files.write(new File(folder.getRoot(), "blocklist.txt.idx").toPath(), new byte[] { 1, 2, 3 });
+        final RegistrationBlocklist blocklist = load("admin");
+        final File first = blocklist.getIndexFile();
+        assertTrue(first.isFile());
+        assertFalse(new File(folder.getRoot(), "blocklist.txt.idx").exists());
+
+        write("admin", "operator");
+        assertTrue(source.setLastModified(source.lastModified() + 2000));
+        blocklist.reload();
+        final File second = blocklist.getIndexFile();
+        assertNotEquals(first, second);
+        assertTrue(second.isFile());
+        assertFalse(first.exists());
+        assertTrue(blocklist.isReservedUsername("operator"));
+
+        // A new instance reuses the index file that is up to date.
+        final RegistrationBlocklist restarted = new RegistrationBlocklist(source);
+        restarted.reload();
+        assertEquals(second, restarted.getIndexFile());
+        assertEquals(2, restarted.size());
+    }
+
+    @Test
+    public void testRemovedSource() throws Exception {
+        final RegistrationBlocklist blocklist = load("admin");
+        assertTrue(source.delete());
+        blocklist.reload();
+        assertEquals(0, blocklist.size());
+        assertFalse(blocklist.isReservedUsername("admin"));
+    }
+
+    private RegistrationBlocklist load(String... lines) throws IOException {
+        write(lines);
+        final RegistrationBlocklist blocklist = new RegistrationBlocklist(source);
+        blocklist.reload();
+        return blocklist;
+    }
+
+    private void write(String... lines) throws IOException {
+        Files.write(source.toPath(), Arrays.asList(lines), StandardCharsets.UTF_8);
+    }
+
+    private static String randomText(Random random, int minLength, int maxLength) {
+        final int length = minLength + random.nextInt(maxLength - minLength + 1);
+        final StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            // A small alphabet, so that many lookups hit an entry.
+            text.append((char) ('a' + random.nextInt(4)));
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests the journal: reading back what was appended, starting a new segment every day, ignoring a record that
+ * was cut off, and the window of the aggregated buckets.
+ */
+public class RegistrationJournalTest {
+
+    private static final int WELCOME = 1 << RegistrationMetrics.Stage.WELCOME.ordinal();
+    private static final int LOCKOUT = 1 << RegistrationMetrics.Stage.LOCKOUT.ordinal();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TimeZone timeZone;
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        // Buckets start at local midnight, so a fixed time zone keeps days exactly 24 hours long.
+        timeZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+        directory = new File(folder.getRoot(), "journal");
+    }
+
+    @After
+    public void tearDown() {
+        TimeZone.setDefault(timeZone);
+    }
+
+    @Test
+    public void testAppendAndLoad() throws Exception {
+        final long now = System.currentTimeMillis();
+        final RegistrationJournal journal = open();
+        journal.append("alice", now, "192.0.2.1", WELCOME | LOCKOUT, 0);
+        journal.append("bob", now, null, WELCOME, LOCKOUT);
+        journal.append("carol", now, "2001:db8::1", 0, WELCOME | LOCKOUT);
+        journal.stop();
+
+        final RegistrationJournal reopened = open();
+        assertEquals(3, reopened.getEntryCount());
+        final RegistrationJournal.Bucket today = last(reopened.getBuckets(RegistrationJournal.Resolution.DAY, 1));
+        assertEquals(3, today.getRegistrations());
+        assertEquals(1, today.getFailures(RegistrationMetrics.Stage.WELCOME));
+        assertEquals(2, today.getFailures(RegistrationMetrics.Stage.LOCKOUT));
+        assertEquals(0, today.getFailures(RegistrationMetrics.Stage.GROUP));
+        assertEquals(2, today.getFailedRegistrations());
+        reopened.stop();
+    }
+
+    @Test
+    public void testDayRollover() throws Exception {
+        final long now = System.currentTimeMillis();
+        final RegistrationJournal journal = open();
+        journal.append("alice", now - TimeUnit.DAYS.toMillis(1), null, WELCOME, 0);
+        journal.append("bob", now, null, WELCOME, 0);
+        journal.append("carol", now, null, WELCOME, 0);
+        journal.stop();
+
+        assertEquals(2, segments().length);
+        final RegistrationJournal reopened = open();
+        assertEquals(3, reopened.getEntryCount());
+        final List<RegistrationJournal.Bucket> days = reopened.getBuckets(RegistrationJournal.Resolution.DAY, 2);
+        assertEquals(1, days.get(0).getRegistrations());
+        assertEquals(2, days.get(1).getRegistrations());
+        reopened.stop();
+    }
+
+    @Test
+    public void testTornFinalRecord() throws Exception {
+        final long now = System.currentTimeMillis();
+        final RegistrationJournal journal = open();
+        journal.append("alice", now, null, WELCOME, 0);
+        journal.append("bob", now, null, WELCOME, 0);
+        journal.stop();
+
+        // A crash while "carol" was appended leaves her record without its length, which is written last.
+        final File[] segments = segments();
+        assertEquals(1, segments.length);
+        try (RandomAccessFile file = new RandomAccessFile(segments[0], "rw")) {
+            final long end = endOf(file);
+            file.seek(end + 2);
+            file.writeLong(now);
+            file.writeShort(WELCOME);
+            file.writeShort(5);
+            file.write("carol".getBytes("UTF-8"));
+            file.write(13);
+            file.write("198.51.100.23".getBytes("UTF-8"));
+        }
+
+        final RegistrationJournal reopened = open();
+        assertEquals(2, reopened.getEntryCount());
+        // The record of "dave" is shorter than the one that was cut off, whose remains must not be read as a record.
+        reopened.append("dave", now, null, WELCOME, 0);
+        reopened.stop();
+
+        final RegistrationJournal recovered = open();
+        assertEquals(3, recovered.getEntryCount());
+        assertEquals(3, last(recovered.getBuckets(RegistrationJournal.Resolution.DAY, 1)).getRegistrations());
+        recovered.stop();
+    }
+
+    @Test
+    public void testSeriesWindowEviction() throws Exception {
+        final long now = System.currentTimeMillis();
+        final long dayAgo = now - TimeUnit.DAYS.toMillis(1);
+        final RegistrationJournal journal = open();
+
+        // The minute a day ago maps to the same slot as this minute, and is overwritten by it.
+        journal.append("alice", dayAgo, null, WELCOME, 0);
+        journal.append("bob", now, null, WELCOME, LOCKOUT);
+        assertEquals(1, sum(journal.getBuckets(RegistrationJournal.Resolution.MINUTE, 2)));
+
+        // Once overwritten, the older minute is outside the window and is not counted again.
+        journal.append("carol", dayAgo, null, WELCOME, 0);
+        assertEquals(1, sum(journal.getBuckets(RegistrationJournal.Resolution.MINUTE, 2)));
+        assertEquals(1L, (long) journal.getFailures(RegistrationJournal.Resolution.MINUTE, 2)
+                .get(RegistrationMetrics.Stage.LOCKOUT));
+
+        // The day resolution still covers both days.
+        final List<RegistrationJournal.Bucket> days = journal.getBuckets(RegistrationJournal.Resolution.DAY, 2);
+        assertEquals(2, days.get(0).getRegistrations());
+        assertEquals(1, days.get(1).getRegistrations());
+        assertEquals(3, journal.getEntryCount());
+        journal.stop();
+    }
+
+    private RegistrationJournal open() throws InterruptedException {
+        final RegistrationJournal journal = new RegistrationJournal(directory, 366);
+        journal.start();
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (!journal.isLoaded() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue("The journal was not loaded in time.", journal.isLoaded());
+        return journal;
+    }
+
+    private File[] segments() {
+        final File[] segments = directory.listFiles((dir, name) -> name.endsWith(".seg"));
+        return segments != null ? segments : new File[0];
+    }
+
+    /**
+     * @return the position after the last record, found by following the record lengths.
+     */
+    private static long endOf(RandomAccessFile file) throws IOException {
+        long position = 4;
+        while (true) {
+            file.seek(position);
+            final int length = file.readShort();
+            if (length <= 0) {
+                return position;
+            }
+            position += length;
+        }
+    }
+
+    private static RegistrationJournal.Bucket last(List<RegistrationJournal.Bucket> buckets) {
+        return buckets.get(buckets.size() - 1);
+    }
+
+    private static long sum(List<RegistrationJournal.Bucket> buckets) {
+        long sum = 0;
+        for (RegistrationJournal.Bucket bucket : buckets) {
+            sum += bucket.getRegistrations();
+        }
+        return sum;
+    }
+}
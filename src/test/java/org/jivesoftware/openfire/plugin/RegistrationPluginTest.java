@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * Tests the address check of the plugin against the regular expression it replaced.
+ */
+public class RegistrationPluginTest {
+
+    private static final Pattern ADDRESS = Pattern.compile(".{1,}[@].{1,}[.].{2,}");
+
+    /**
+     * Characters that matter to the pattern, line terminators that '.' does not match, and a few others.
+     */
+    private static final char[] ALPHABET = { 'a', 'b', '@', '.', '-', ' ', '\n', '\r', '\u0085', '\u2028', '\u2029',
+            '\u00e9' };
+
+    @Test
+    public void testWellFormedAddress() {
+        assertTrue(RegistrationPlugin.isWellFormedAddress("jane@example.com"));
+        assertTrue(RegistrationPlugin.isWellFormedAddress("x@x.xx"));
+        assertFalse(RegistrationPlugin.isWellFormedAddress("x@x.x"));
+        assertFalse(RegistrationPlugin.isWellFormedAddress("@x.xx"));
+        assertFalse(RegistrationPlugin.isWellFormedAddress("x@.xx"));
+        assertFalse(RegistrationPlugin.isWellFormedAddress("jane@example.com\n"));
+        assertFalse(RegistrationPlugin.isWellFormedAddress(null));
+    }
+
+    @Test
+    public void testWellFormedAddressMatchesPattern() {
+        final Random random = new Random(7);
+        for (int i = 0; i < 200000; i++) {
+            final int length = random.nextInt(12);
+            final StringBuilder address = new StringBuilder(length);
+            for (int j = 0; j < length; j++) {
+                address.append(ALPHABET[random.nextInt(ALPHABET.length)]);
+            }
+            final String text = address.toString();
+            assertEquals(escape(text), ADDRESS.matcher(text).matches(), RegistrationPlugin.isWellFormedAddress(text));
+        }
+    }
+
+    private static String escape(String text) {
+        final StringBuilder escaped = new StringBuilder();
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            escaped.append(c >= ' ' && c < 0x7f ? String.valueOf(c) : String.format("\\u%04x", (int) c));
+        }
+        return escaped.toString();
+    }
+}
@@ -0,0 +1,150 @@
+<%--
+  - Copyright (C) 2005-2008 Jive Software. All rights reserved.
+  -
+  - Licensed under the Apache License, Version 2.0 (the "License");
+  - you may not use this file except in compliance with the License.
+  - You may obtain a copy of the License at
+  -
+  -     http://www.apache.org/licenses/LICENSE-2.0
+  -
+  - Unless required by applicable law or agreed to in writing, software
+  - distributed under the License is distributed on an "AS IS" BASIS,
+  - WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  - See the License for the specific language governing permissions and
+  - limitations under the License.
+--%>
+<%@ page contentType="text/html; charset=UTF-8" %>
+<%@ page
+   import="org.jivesoftware.openfire.XMPPServer,
+           org.jivesoftware.openfire.plugin.RegistrationBackfill,
+           org.jivesoftware.openfire.plugin.RegistrationPlugin,
+           org.jivesoftware.util.ParamUtils"
+   errorPage="error.jsp"%>
+
+<%@ taglib uri="http://java.sun.com/jsp/jstl/core" prefix="c"%>
+<%@ taglib uri="http://java.sun.com/jsp/jstl/fmt" prefix="fmt"%>
+
+<%
+    RegistrationPlugin plugin = (RegistrationPlugin) XMPPServer.getInstance().getPluginManager().getPlugin("registration");
+
+    boolean start = request.getParameter("start") != null;
+    boolean pause = request.getParameter("pause") != null;
+    boolean resume = request.getParameter("resume") != null;
+    boolean cancel = request.getParameter("cancel") != null;
+
+    boolean applyGroup = ParamUtils.getBooleanParameter(request, "applygroup", false);
+    boolean applyPrivacyList = ParamUtils.getBooleanParameter(request, "applyprivacylist", false);
+    boolean applyLockout = ParamUtils.getBooleanParameter(request, "applylockout", false);
+    boolean lockoutExisting = applyLockout && ParamUtils.getBooleanParameter(request, "lockoutexisting", false);
+
+    if ("POST".equals(request.getMethod())) {
+        if (start && (applyGroup || applyPrivacyList || applyLockout)) {
+            plugin.startBackfill(applyGroup, applyPrivacyList, applyLockout, lockoutExisting);
+        }
+        else if (pause) {
+            plugin.pauseBackfill();
+        }
+        else if (resume) {
+            plugin.resumeBackfill();
+        }
+        else if (cancel) {
+            plugin.cancelBackfill();
+        }
+        response.sendRedirect("registration-backfill.jsp");
+        return;
+    }
+
+    RegistrationBackfill backfill = plugin.getBackfill();
+    boolean running = backfill != null && backfill.getState() == RegistrationBackfill.State.RUNNING;
+    boolean resumable = !running && plugin.hasBackfillCheckpoint();
+%>
+
+<html>
+    <head>
+        <title><fmt:message key="registration.backfill.title" /></title>
+        <meta name="pageID" content="registration-backfill"/>
+        <% if (running) { %>
+        <meta http-equiv="refresh" content="5">
+        <% } %>
+    </head>
+    <body>
+
+<p><fmt:message key="registration.backfill.details" /></p>
+
+<form action="registration-backfill.jsp" method="post">
+<div class="jive-contentBoxHeader"><fmt:message key="registration.backfill.policies" /></div>
+<div class="jive-contentBox">
+    <table cellpadding="3" cellspacing="0" border="0" width="100%">
+    <tbody>
+        <tr>
+            <td width="1%" align="center" nowrap><input type="checkbox" name="applygroup" <%= plugin.groupEnabled() ? "" : "disabled" %>></td>
+            <td width="99%" align="left"><fmt:message key="registration.backfill.apply_group" /> (<%= plugin.getGroup() != null ? org.jivesoftware.util.StringUtils.escapeHTMLTags(plugin.getGroup()) : "-" %>)</td>
+        </tr>
+        <tr>
+            <td width="1%" align="center" nowrap><input type="checkbox" name="applyprivacylist" <%= plugin.privacyListEnabled() ? "" : "disabled" %>></td>
+            <td width="99%" align="left"><fmt:message key="registration.backfill.apply_privacylist" /></td>
+        </tr>
+        <tr>
+            <td width="1%" align="center" nowrap><input type="checkbox" name="applylockout" <%= plugin.isAutomaticAccountLockoutEnabled() ? "" : "disabled" %>></td>
+            <td width="99%" align="left"><fmt:message key="registration.backfill.apply_lockout" /></td>
+        </tr>
+        <tr>
+            <td width="1%" align="center" nowrap><input type="checkbox" name="lockoutexisting" <%= plugin.isAutomaticAccountLockoutEnabled() ? "" : "disabled" %>></td>
+            <td width="99%" align="left"><fmt:message key="registration.backfill.lockout_existing" /></td>
+        </tr>
+    </tbody>
+    </table>
+    <br>
+    <input type="submit" name="start" value="<fmt:message key="registration.backfill.start" />" <%= running ? "disabled" : "" %>/>
+    <input type="submit" name="pause" value="<fmt:message key="registration.backfill.pause" />" <%= running ? "" : "disabled" %>/>
+    <input type="submit" name="resume" value="<fmt:message key="registration.backfill.resume" />" <%= resumable ? "" : "disabled" %>/>
+    <input type="submit" name="cancel" value="<fmt:message key="registration.backfill.cancel" />" <%= running || resumable ? "" : "disabled" %>/>
+</div>
+</form>
+
+<br>
+
+<% if (backfill != null) { %>
+<div class="jive-contentBoxHeader"><fmt:message key="registration.backfill.progress" /></div>
+<div class="jive-contentBox">
+    <table cellpadding="3" cellspacing="0" border="0">
+    <tbody>
+        <tr>
+            <td nowrap><fmt:message key="registration.backfill.state" />:</td>
+            <td><%= backfill.getState().name().toLowerCase() %></td>
+        </tr>
+        <tr>
+            <td nowrap><fmt:message key="registration.backfill.position" />:</td>
+            <td><%= backfill.getPosition() %> / <%= backfill.getTotal() %></td>
+        </tr>
+        <tr>
+            <td nowrap><fmt:message key="registration.backfill.processed" />:</td>
+            <td><%= backfill.getProcessed() %></td>
+        </tr>
+        <tr>
+            <td nowrap><fmt:message key="registration.backfill.groups_added" />:</td>
+            <td><%= backfill.getGroupsAdded() %></td>
+        </tr>
+        <tr>
+            <td nowrap><fmt:message key="registration.backfill.privacylists_added" />:</td>
+            <td><%= backfill.getPrivacyListsAdded() %></td>
+        </tr>
+        <tr>
+            <td nowrap><fmt:message key="registration.backfill.lockouts_added" />:</td>
+            <td><%= backfill.getLockoutsAdded() %></td>
+        </tr>
+        <tr>
+            <td nowrap><fmt:message key="registration.backfill.failed" />:</td>
+            <td><%= backfill.getFailed() %></td>
+        </tr>
+        <tr>
+            <td nowrap><fmt:message key="registration.backfill.elapsed" />:</td>
+            <td><%= backfill.getElapsedMillis() / 1000 %></td>
+        </tr>
+    </tbody>
+    </table>
+</div>
+<% } %>
+
+</body>
+</html>
@@ -0,0 +1,150 @@
+<%--
+  - Copyright (C) 2005-2008 Jive Software. All rights reserved.
+  -
+  - Licensed under the Apache License, Version 2.0 (the "License");
+  - you may not use this file except in compliance with the License.
+  - You may obtain a copy of the License at
+  -
+  -     http://www.apache.org/licenses/LICENSE-2.0
+  -
+  - Unless required by applicable law or agreed to in writing, software
+  - distributed under the License is distributed on an "AS IS" BASIS,
+  - WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  - See the License for the specific language governing permissions and
+  - limitations under the License.
+--%>
+<%@ page contentType="text/html; charset=UTF-8" %>
+<%@ page
+   import="java.text.SimpleDateFormat,
+           java.util.Date,
+           java.util.List,
+           java.util.Map,
+           org.jivesoftware.openfire.XMPPServer,
+           org.jivesoftware.openfire.plugin.RegistrationJournal,
+           org.jivesoftware.openfire.plugin.RegistrationMetrics,
+           org.jivesoftware.openfire.plugin.RegistrationPlugin,
+           org.jivesoftware.util.ParamUtils"
+   errorPage="error.jsp"%>
+
+<%@ taglib uri="http://java.sun.com/jsp/jstl/core" prefix="c"%>
+<%@ taglib uri="http://java.sun.com/jsp/jstl/fmt" prefix="fmt"%>
+
+<%
+    RegistrationPlugin plugin = (RegistrationPlugin) XMPPServer.getInstance().getPluginManager().getPlugin("registration");
+
+    if ("POST".equals(request.getMethod())) {
+        plugin.setJournalEnabled(ParamUtils.getBooleanParameter(request, "journalenabled", false));
+        response.sendRedirect("registration-history.jsp");
+        return;
+    }
+
+    RegistrationJournal.Resolution resolution = RegistrationJournal.Resolution.HOUR;
+    try {
+        resolution = RegistrationJournal.Resolution.valueOf(ParamUtils.getParameter(request, "resolution", true).toUpperCase());
+    }
+    catch (RuntimeException e) {
+        // Keep the default.
+    }
+    int defaultCount = resolution == RegistrationJournal.Resolution.MINUTE ? 60 : resolution == RegistrationJournal.Resolution.HOUR ? 24 : 30;
+    int count = Math.max(1, Math.min(resolution.getBuckets(), ParamUtils.getIntParameter(request, "count", defaultCount)));
+
+    RegistrationJournal journal = plugin.getJournal();
+    List<RegistrationJournal.Bucket> buckets = journal.getBuckets(resolution, count);
+    Map<RegistrationMetrics.Stage, Long> failures = journal.getFailures(resolution, count);
+    RegistrationMetrics.Stage[] actions = { RegistrationMetrics.Stage.WELCOME, RegistrationMetrics.Stage.GROUP,
+            RegistrationMetrics.Stage.PRIVACY_LIST, RegistrationMetrics.Stage.LOCKOUT };
+    SimpleDateFormat format = new SimpleDateFormat(resolution == RegistrationJournal.Resolution.DAY ? "yyyy-MM-dd" : "yyyy-MM-dd HH:mm");
+%>
+
+<html>
+    <head>
+        <title><fmt:message key="registration.history.title" /></title>
+        <meta name="pageID" content="registration-history"/>
+    </head>
+    <body>
+
+<p><fmt:message key="registration.history.details" /></p>
+
+<form action="registration-history.jsp" method="post">
+<div class="jive-contentBoxHeader"><fmt:message key="registration.history.journal" /></div>
+<div class="jive-contentBox">
+    <table cellpadding="3" cellspacing="0" border="0" width="100%">
+    <tbody>
+        <tr>
+            <td width="1%" align="center" nowrap><input type="checkbox" name="journalenabled" <%= plugin.isJournalEnabled() ? "checked" : "" %>></td>
+            <td width="99%" align="left"><fmt:message key="registration.history.enable" /></td>
+        </tr>
+        <tr>
+            <td colspan="2"><fmt:message key="registration.history.entries" />: <%= journal.getEntryCount() %>
+                <% if (!journal.isLoaded()) { %>(<fmt:message key="registration.history.loading" />)<% } %></td>
+        </tr>
+    </tbody>
+    </table>
+    <br>
+    <input type="submit" value="<fmt:message key="registration.props.form.save_settings" />"/>
+</div>
+</form>
+
+<br>
+
+<form action="registration-history.jsp" method="get">
+    <fmt:message key="registration.history.resolution" />:
+    <select name="resolution">
+        <% for (RegistrationJournal.Resolution r : RegistrationJournal.Resolution.values()) {
+               String key = "registration.history." + r.name().toLowerCase(); %>
+        <option value="<%= r.name().toLowerCase() %>" <%= r == resolution ? "selected" : "" %>><fmt:message key="<%= key %>" /></option>
+        <% } %>
+    </select>
+    <fmt:message key="registration.history.count" />:
+    <input type="text" name="count" size="5" maxlength="5" value="<%= count %>">
+    <input type="submit" value="<fmt:message key="registration.history.show" />"/>
+</form>
+
+<br>
+
+<div class="jive-contentBoxHeader"><fmt:message key="registration.history.failures" /></div>
+<div class="jive-contentBox">
+    <table cellpadding="3" cellspacing="0" border="0">
+    <tbody>
+        <% for (RegistrationMetrics.Stage stage : actions) { %>
+        <tr>
+            <td nowrap><%= stage.name().toLowerCase().replace('_', ' ') %>:</td>
+            <td><%= failures.get(stage) %></td>
+        </tr>
+        <% } %>
+    </tbody>
+    </table>
+</div>
+
+<br>
+
+<div class="jive-table">
+<table cellpadding="0" cellspacing="0" border="0" width="100%">
+<thead>
+    <tr>
+        <th nowrap><fmt:message key="registration.history.period" /></th>
+        <th nowrap><fmt:message key="registration.history.registrations" /></th>
+        <th nowrap><fmt:message key="registration.history.failed" /></th>
+        <% for (RegistrationMetrics.Stage stage : actions) { %>
+        <th nowrap><%= stage.name().toLowerCase().replace('_', ' ') %></th>
+        <% } %>
+    </tr>
+</thead>
+<tbody>
+    <% for (int i = buckets.size() - 1; i >= 0; i--) {
+           RegistrationJournal.Bucket bucket = buckets.get(i); %>
+    <tr class="<%= i % 2 == 0 ? "jive-even" : "jive-odd" %>">
+        <td nowrap><%= format.format(new Date(bucket.getStart())) %></td>
+        <td><%= bucket.getRegistrations() %></td>
+        <td><%= bucket.getFailedRegistrations() %></td>
+        <% for (RegistrationMetrics.Stage stage : actions) { %>
+        <td><%= bucket.getFailures(stage) %></td>
+        <% } %>
+    </tr>
+    <% } %>
+</tbody>
+</table>
+</div>
+
+</body>
+</html>
@@ -0,0 +1,191 @@
+<%--
+  - Copyright (C) 2005-2008 Jive Software. All rights reserved.
+  -
+  - Licensed under the Apache License, Version 2.0 (the "License");
+  - you may not use this file except in compliance with the License.
+  - You may obtain a copy of the License at
+  -
+  -     http://www.apache.org/licenses/LICENSE-2.0
+  -
+  - Unless required by applicable law or agreed to in writing, software
+  - distributed under the License is distributed on an "AS IS" BASIS,
+  - WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  - See the License for the specific language governing permissions and
+  - limitations under the License.
+--%>
+<%@ page contentType="text/html; charset=UTF-8" %>
+<%@ page
+   import="org.jivesoftware.openfire.XMPPServer,
+           org.jivesoftware.openfire.plugin.RegistrationImport,
+           org.jivesoftware.openfire.plugin.RegistrationPlugin,
+           org.jivesoftware.util.CookieUtils,
+           org.jivesoftware.util.StringUtils"
+   errorPage="error.jsp"%>
+
+<%@ taglib uri="http://java.sun.com/jsp/jstl/core" prefix="c"%>
+<%@ taglib uri="http://java.sun.com/jsp/jstl/fmt" prefix="fmt"%>
+
+<%
+    RegistrationPlugin plugin = (RegistrationPlugin) XMPPServer.getInstance().getPluginManager().getPlugin("registration");
+    RegistrationImport registrationImport = plugin.getImport();
+    boolean running = registrationImport != null && registrationImport.getState() == RegistrationImport.State.RUNNING;
+
+    String csrfParam = StringUtils.randomString(15);
+    CookieUtils.setCookie(request, response, "csrf", csrfParam, -1);
+%>
+
+<html>
+    <head>
+        <title><fmt:message key="registration.import.title" /></title>
+        <meta name="pageID" content="registration-import"/>
+    </head>
+    <body>
+
+<script language="JavaScript" type="text/javascript">
+var polling = null;
+
+function startImport() {
+    var file = document.importform.importfile.files[0];
+    if (!file) {
+        alert('<fmt:message key="registration.import.no_file" />');
+        return false;
+    }
+    var format = document.importform.format.value;
+    var request = new XMLHttpRequest();
+    request.open('POST', 'import?format=' + format + '&csrf=<%= csrfParam %>', true);
+    request.setRequestHeader('Content-Type', format == 'json' ? 'application/json; charset=UTF-8' : 'text/csv; charset=UTF-8');
+    request.onreadystatechange = function() {
+        if (request.readyState == 4) {
+            showStatus(request.responseText);
+            if (polling != null) {
+                clearInterval(polling);
+                polling = null;
+            }
+        }
+    };
+    request.send(file);
+    document.importform.start.disabled = true;
+    polling = setInterval(pollStatus, 1000);
+    return false;
+}
+
+function pollStatus() {
+    var request = new XMLHttpRequest();
+    request.open('GET', 'import', true);
+    request.onreadystatechange = function() {
+        if (request.readyState == 4 && request.status == 200) {
+            showStatus(request.responseText);
+        }
+    };
+    request.send();
+}
+
+function showStatus(text) {
+    var status = JSON.parse(text);
+    if (status.error == 'csrf') {
+        document.getElementById('import-state').textContent = '<fmt:message key="registration.import.expired" />';
+        return;
+    }
+    if (status.error) {
+        document.getElementById('import-state').textContent = '<fmt:message key="registration.import.already_running" />';
+        return;
+    }
+    document.getElementById('import-state').textContent = status.state;
+    document.getElementById('import-processed').textContent = status.processed;
+    document.getElementById('import-created').textContent = status.created;
+    document.getElementById('import-existing').textContent = status.existing;
+    document.getElementById('import-failed').textContent = status.failed;
+    document.getElementById('import-elapsed').textContent = Math.round(status.elapsedMillis / 1000);
+    document.getElementById('import-throughput').textContent = status.throughput;
+    var errors = document.getElementById('import-errors');
+    errors.textContent = '';
+    for (var i = 0; i < status.errors.length; i++) {
+        var line = document.createElement('div');
+        line.textContent = status.errors[i];
+        errors.appendChild(line);
+    }
+    document.importform.start.disabled = status.state == 'running';
+}
+
+<% if (running) { %>
+window.onload = function() {
+    pollStatus();
+    polling = setInterval(pollStatus, 1000);
+};
+<% } %>
+</script>
+
+<p><fmt:message key="registration.import.details" /></p>
+
+<form name="importform" action="registration-import.jsp" method="post" onsubmit="return startImport();">
+<div class="jive-contentBoxHeader"><fmt:message key="registration.import.file" /></div>
+<div class="jive-contentBox">
+    <table cellpadding="3" cellspacing="0" border="0" width="100%">
+    <tbody>
+        <tr>
+            <td width="15%" nowrap><fmt:message key="registration.import.file" />:</td>
+            <td width="85%"><input type="file" name="importfile"/></td>
+        </tr>
+        <tr>
+            <td width="15%" nowrap><fmt:message key="registration.import.format" />:</td>
+            <td width="85%">
+                <select name="format">
+                    <option value="csv">CSV (username,password,name,email)</option>
+                    <option value="json">JSON</option>
+                </select>
+            </td>
+        </tr>
+    </tbody>
+    </table>
+    <br>
+    <input type="submit" name="start" value="<fmt:message key="registration.import.start" />" <%= running ? "disabled" : "" %>/>
+</div>
+</form>
+
+<br>
+
+<div class="jive-contentBoxHeader"><fmt:message key="registration.import.progress" /></div>
+<div class="jive-contentBox">
+    <table cellpadding="3" cellspacing="0" border="0">
+    <tbody>
+        <tr>
+            <td nowrap><fmt:message key="registration.import.state" />:</td>
+            <td id="import-state"><%= registrationImport != null ? registrationImport.getState().name().toLowerCase() : "-" %></td>
+        </tr>
+        <tr>
+            <td nowrap><fmt:message key="registration.import.processed" />:</td>
+            <td id="import-processed"><%= registrationImport != null ? registrationImport.getProcessed() : 0 %></td>
+        </tr>
+        <tr>
+            <td nowrap><fmt:message key="registration.import.created" />:</td>
+            <td id="import-created"><%= registrationImport != null ? registrationImport.getCreated() : 0 %></td>
+        </tr>
+        <tr>
+            <td nowrap><fmt:message key="registration.import.existing" />:</td>
+            <td id="import-existing"><%= registrationImport != null ? registrationImport.getExisting() : 0 %></td>
+        </tr>
+        <tr>
+            <td nowrap><fmt:message key="registration.import.failed" />:</td>
+            <td id="import-failed"><%= registrationImport != null ? registrationImport.getFailed() : 0 %></td>
+        </tr>
+        <tr>
+            <td nowrap><fmt:message key="registration.import.elapsed" />:</td>
+            <td id="import-elapsed"><%= registrationImport != null ? registrationImport.getElapsedMillis() / 1000 : 0 %></td>
+        </tr>
+        <tr>
+            <td nowrap><fmt:message key="registration.import.throughput" />:</td>
+            <td id="import-throughput"><%= registrationImport != null ? String.format("%.2f", registrationImport.getThroughput()) : "0" %></td>
+        </tr>
+    </tbody>
+    </table>
+    <div id="import-errors" class="jive-error-text">
+    <% if (registrationImport != null) {
+           for (String error : registrationImport.getErrors()) { %>
+        <div><%= org.jivesoftware.util.StringUtils.escapeHTMLTags(error) %></div>
+    <%     }
+       } %>
+    </div>
+</div>
+
+</body>
+</html>
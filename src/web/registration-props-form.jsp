@@ -18,6 +18,7 @@
    import="java.util.*,
            org.jivesoftware.openfire.XMPPServer,
            org.jivesoftware.openfire.user.*,
+           org.jivesoftware.openfire.plugin.RegistrationMetrics,
            org.jivesoftware.openfire.plugin.RegistrationPlugin,
            org.jivesoftware.openfire.group.*,
            org.jivesoftware.util.*"
@@ -34,6 +35,7 @@
     boolean saveGroup = request.getParameter("savegroup") != null;
     boolean saveHeader = request.getParameter("saveheader") != null;
     boolean savePrivacyList = request.getParameter("saveprivacylist") != null;
+    boolean saveRateLimit = request.getParameter("saveratelimit") != null;
 
     boolean imEnabled = ParamUtils.getBooleanParameter(request, "imenabled", false);
     boolean emailEnabled = ParamUtils.getBooleanParameter(request, "emailenabled", false);
@@ -60,9 +62,15 @@
     String welcomeMessage = ParamUtils.getParameter(request, "welcomemessage");
     String welcomeRawMessage = ParamUtils.getParameter(request, "welcomerawmessage");
     String welcomeMessageFrom = ParamUtils.getParameter(request, "welcomemessagefrom");
+    boolean welcomeDeferred = ParamUtils.getBooleanParameter(request, "welcomedeferred", false);
     String group = ParamUtils.getParameter(request, "groupname");
 
     String header = ParamUtils.getParameter(request, "header");
+
+    boolean rateLimitEnabled = ParamUtils.getBooleanParameter(request, "ratelimitenabled", false);
+    int rateLimitPerAddress = ParamUtils.getIntParameter(request, "ratelimitaddress", -1);
+    int rateLimitPerSubnet = ParamUtils.getIntParameter(request, "ratelimitsubnet", -1);
+    int rateLimitGlobal = ParamUtils.getIntParameter(request, "ratelimitglobal", -1);
     
     boolean privacyListEnabled = ParamUtils.getBooleanParameter(request, "privacylistenabled", false);
     String privacyList = ParamUtils.getParameter(request, "privacylist");
@@ -174,17 +182,28 @@
     if (saveWelcome) {
         boolean hasWelcomeMessage = welcomeMessage != null && welcomeMessage.trim().length() > 0;
         boolean hasWelcomeRawMessage = welcomeRawMessage != null && welcomeRawMessage.trim().length() > 0;
-        plugin.setWelcomeMessageFrom(welcomeMessageFrom);
+        plugin.setWelcomeDeferred(welcomeDeferred);
+        try {
+            plugin.setWelcomeMessageFrom(welcomeMessageFrom);
+        }
+        catch (IllegalArgumentException e) {
+            errors.put("invalidWelcomeMessageFrom", "invalidWelcomeMessageFrom");
+        }
         if (!hasWelcomeMessage && !hasWelcomeRawMessage) {
             errors.put("missingWelcomeMessage", "missingWelcomeMessage");
         }
-        else {
+        else if (errors.isEmpty()) {
             if (hasWelcomeMessage) {
                 plugin.setWelcomeMessage(welcomeMessage);
             }
-            plugin.setWelcomeRawMessage(welcomeRawMessage);
-            response.sendRedirect("registration-props-form.jsp?welcomeSaved=true");
-            return;
+            try {
+                plugin.setWelcomeRawMessage(welcomeRawMessage);
+                response.sendRedirect("registration-props-form.jsp?welcomeSaved=true");
+                return;
+            }
+            catch (IllegalArgumentException e) {
+                errors.put("invalidWelcomeRawMessage", "invalidWelcomeRawMessage");
+            }
         }
     }
     
@@ -228,9 +247,26 @@
         } else if (privacyListName == null || privacyListName.trim().length() < 1) {
             errors.put("invalidPrivacyListName", "invalidPrivacyListName");
         } else {
-            plugin.setPrivacyListName(privacyListName);
-            plugin.setPrivacyList(privacyList);
-            response.sendRedirect("registration-props-form.jsp?privacyListSaved=true");
+            try {
+                plugin.setPrivacyList(privacyListName, privacyList);
+                response.sendRedirect("registration-props-form.jsp?privacyListSaved=true");
+                return;
+            }
+            catch (IllegalArgumentException e) {
+                errors.put("invalidPrivacyList", e.getMessage());
+            }
+        }
+    }
+    
+    if (saveRateLimit) {
+        if (rateLimitPerAddress < 0 || rateLimitPerSubnet < 0 || rateLimitGlobal < 0) {
+            errors.put("invalidRateLimit", "invalidRateLimit");
+        } else {
+            plugin.setRateLimitPerAddress(rateLimitPerAddress);
+            plugin.setRateLimitPerSubnet(rateLimitPerSubnet);
+            plugin.setRateLimitGlobal(rateLimitGlobal);
+            plugin.setRateLimitEnabled(rateLimitEnabled);
+            response.sendRedirect("registration-props-form.jsp?rateLimitSaved=true");
             return;
         }
     }
@@ -243,17 +279,27 @@
     privacyListEnabled = plugin.privacyListEnabled();
     
     welcomeMessage = plugin.getWelcomeMessage();
-    welcomeRawMessage = plugin.getWelcomeRawMessage() != null ? plugin.getWelcomeRawMessage() : "";
-    welcomeMessageFrom = plugin.getWelcomeMessageFrom();
+    welcomeDeferred = plugin.isWelcomeDeferred();
+    if (!saveWelcome || errors.isEmpty()) {
+        welcomeRawMessage = plugin.getWelcomeRawMessage();
+        welcomeMessageFrom = plugin.getWelcomeMessageFrom();
+    }
+    welcomeRawMessage = welcomeRawMessage != null ? welcomeRawMessage : "";
     group = plugin.getGroup();
     header = plugin.getHeader();
-    privacyListName = plugin.getPrivacyListName();
-    privacyList = plugin.getPrivacyList();
+    if (!savePrivacyList || errors.isEmpty()) {
+        privacyListName = plugin.getPrivacyListName();
+        privacyList = plugin.getPrivacyList();
+    }
     reCaptchaEnabled = plugin.reCaptchaEnabled();
     reCaptchaNoScript = plugin.reCaptchaNoScript();
     reCaptchaPublicKey = plugin.getReCaptchaPublicKey();
     reCaptchaPrivateKey = plugin.getReCaptchaPrivateKey();
     autoExpiry = plugin.getAutomaticAccountLockoutAfter();
+    rateLimitEnabled = plugin.rateLimitEnabled();
+    rateLimitPerAddress = plugin.getRateLimitPerAddress();
+    rateLimitPerSubnet = plugin.getRateLimitPerSubnet();
+    rateLimitGlobal = plugin.getRateLimitGlobal();
 %>
 
 <html>
@@ -374,6 +420,16 @@ function addEmailContact() {
             <td width="24%" align="left"><fmt:message key="registration.props.form.recaptcha_private_key" /></td>
             <td width="75%" align="left"><input type="text" name="recaptchaprivatekey" size="40" maxlength="100" value="<%= (reCaptchaPrivateKey != null ? reCaptchaPrivateKey : "") %>"/></td>
         </tr>
+        <tr>
+            <td width="1%" align="center" nowrap>&nbsp;</td>
+            <td width="24%" align="left"><fmt:message key="registration.props.form.recaptcha_stats" /></td>
+            <td width="75%" align="left"><fmt:message key="registration.props.form.recaptcha_stats_values">
+                <fmt:param value="<%= plugin.getCaptchaCacheMisses() %>" />
+                <fmt:param value="<%= plugin.getCaptchaCacheHits() %>" />
+                <fmt:param value="<%= plugin.getCaptchaErrors() %>" />
+                <fmt:param value="<%= Math.round(plugin.getCaptchaAverageLatencyMillis()) %>" />
+            </fmt:message></td>
+        </tr>
 
         <% if ( LockOutManager.getLockOutProvider().isDelayedStartSupported()) { %>
         <tr>
@@ -618,11 +674,28 @@ function addEmailContact() {
         </tr>
         <tr>
             <td width="15%" valign="top">Message from:&nbsp;</td>
-            <td width="85%"><textarea cols="45" rows="1" wrap="virtual" name="welcomemessagefrom"><%= welcomeMessageFrom %></textarea></td>
+            <td width="85%"><textarea cols="45" rows="1" wrap="virtual" name="welcomemessagefrom"><%= welcomeMessageFrom %></textarea>
+            <% if (errors.containsKey("invalidWelcomeMessageFrom")) { %>
+            <span class="jive-error-text"><br><fmt:message key="registration.props.form.welcome_message_from_invalid" /></span>
+            <% } %>
+            </td>
         </tr>
         <tr>
             <td width="15%" valign="top">Raw XMPP message:&nbsp;</td>
-            <td width="85%"><textarea cols="45" rows="5" name="welcomerawmessage"><%= welcomeRawMessage %></textarea></td>
+            <td width="85%"><textarea cols="45" rows="5" name="welcomerawmessage"><%= welcomeRawMessage %></textarea>
+            <% if (errors.containsKey("invalidWelcomeRawMessage")) { %>
+            <span class="jive-error-text"><br><fmt:message key="registration.props.form.welcome_message_raw_invalid" /></span>
+            <% } %>
+            </td>
+        </tr>
+        <tr>
+            <td width="15%" valign="top">&nbsp;</td>
+            <td width="85%"><input type="checkbox" name="welcomedeferred" id="welcomedeferred" <%= welcomeDeferred ? "checked" : "" %>>
+            <label for="welcomedeferred"><fmt:message key="registration.props.form.welcome_message_deferred" /></label>
+            <br><fmt:message key="registration.props.form.welcome_message_deferred_pending">
+                <fmt:param value="<%= plugin.getPendingWelcomeCount() %>" />
+            </fmt:message>
+            </td>
         </tr>
     </tbody>
     </table>
@@ -706,7 +779,13 @@ function addEmailContact() {
             <td width="15%" valign="top">Default Privacy List:</td>
             <td width="85%"><textarea cols="45" rows="5" wrap="virtual" name="privacylist"><%= (privacyList != null ? privacyList : "") %></textarea>
             <% if (errors.containsKey("invalidPrivacyList")) { %> 
-            <span class="jive-error-text"><br><fmt:message key="registration.props.form.privacy_list_invalid" /></span>
+            <span class="jive-error-text"><br><fmt:message key="registration.props.form.privacy_list_invalid" />
+            <% if (!"invalidPrivacyList".equals(errors.get("invalidPrivacyList"))) { %>
+                <%= StringUtils.escapeHTMLTags(errors.get("invalidPrivacyList")) %>
+            <% } %>
+            </span>
+            <% } else if (plugin.getPrivacyListError() != null) { %>
+            <span class="jive-error-text"><br><fmt:message key="registration.props.form.privacy_list_unusable" /> <%= StringUtils.escapeHTMLTags(plugin.getPrivacyListError()) %></span>
             <% } %>
             </td>
         </tr>  
@@ -756,5 +835,175 @@ function addEmailContact() {
     </div>
 </form>
 
+<br>
+
+<form action="registration-props-form.jsp?saveratelimit=true" method="post">
+<div class="jive-contentBoxHeader"><fmt:message key="registration.props.form.rate_limit" /></div>
+<div class="jive-contentBox">
+    <p><fmt:message key="registration.props.form.rate_limit_details" /></p>
+   
+    <% if (ParamUtils.getBooleanParameter(request, "rateLimitSaved")) { %>
+
+    <div class="jive-success">
+    <table cellpadding="0" cellspacing="0" border="0">
+    <tbody>
+        <tr>
+            <td class="jive-icon"><img src="images/success-16x16.gif" width="16" height="16" border="0"></td>
+            <td class="jive-icon-label"><fmt:message key="registration.props.form.rate_limit_saved" /></td>
+        </tr>
+    </tbody>
+    </table>
+    </div>
+   
+    <% } else if (errors.containsKey("invalidRateLimit")) { %>
+
+    <div class="jive-error">
+    <table cellpadding="0" cellspacing="0" border="0">
+    <tbody>
+        <tr>
+            <td class="jive-icon"><img src="images/error-16x16.gif" width="16" height="16" border="0"></td>
+            <td class="jive-icon-label"><fmt:message key="registration.props.form.rate_limit_invalid" /></td>
+        </tr>
+    </tbody>
+    </table>
+    </div>
+   
+    <% } %>
+   
+    <table cellpadding="3" cellspacing="0" border="0" width="100%">
+    <tbody>
+        <tr>
+            <td width="1%" align="center" nowrap><input type="checkbox" name="ratelimitenabled" <%=(rateLimitEnabled) ? "checked" : "" %>></td>
+            <td width="99%" align="left" colspan="2"><fmt:message key="registration.props.form.rate_limit_enabled" /></td>
+        </tr>
+        <tr>
+            <td width="1%" align="center" nowrap>&nbsp;</td>
+            <td width="24%" align="left"><fmt:message key="registration.props.form.rate_limit_address" /></td>
+            <td width="75%" align="left"><input type="text" name="ratelimitaddress" size="5" maxlength="10" value="<%= rateLimitPerAddress %>"/></td>
+        </tr>
+        <tr>
+            <td width="1%" align="center" nowrap>&nbsp;</td>
+            <td width="24%" align="left"><fmt:message key="registration.props.form.rate_limit_subnet" /></td>
+            <td width="75%" align="left"><input type="text" name="ratelimitsubnet" size="5" maxlength="10" value="<%= rateLimitPerSubnet %>"/></td>
+        </tr>
+        <tr>
+            <td width="1%" align="center" nowrap>&nbsp;</td>
+            <td width="24%" align="left"><fmt:message key="registration.props.form.rate_limit_global" /></td>
+            <td width="75%" align="left"><input type="text" name="ratelimitglobal" size="5" maxlength="10" value="<%= rateLimitGlobal %>"/></td>
+        </tr>
+        <tr>
+            <td width="1%" align="center" nowrap>&nbsp;</td>
+            <td width="99%" align="left" colspan="2"><fmt:message key="registration.props.form.rate_limit_rejected" /> <%= plugin.getRateLimitRejectedCount() %></td>
+        </tr>
+    </tbody>
+    </table>
+    
+    <br>
+    <input type="submit" value="<fmt:message key="registration.props.form.rate_limit_save" />"/>
+    </div>
+</form>
+
+<br>
+
+<% RegistrationMetrics metrics = plugin.getMetrics(); %>
+<div class="jive-contentBoxHeader"><fmt:message key="registration.props.form.stats" /></div>
+<div class="jive-contentBox">
+    <p><fmt:message key="registration.props.form.stats_details" /></p>
+
+    <table class="jive-table" cellpadding="3" cellspacing="0" border="0" width="100%">
+    <thead>
+        <tr>
+            <th nowrap><fmt:message key="registration.props.form.stats_stage" /></th>
+            <th nowrap><fmt:message key="registration.props.form.stats_count" /></th>
+            <th nowrap><fmt:message key="registration.props.form.stats_failures" /></th>
+            <th nowrap><fmt:message key="registration.props.form.stats_mean" /></th>
+            <th nowrap><fmt:message key="registration.props.form.stats_median" /></th>
+            <th nowrap><fmt:message key="registration.props.form.stats_p99" /></th>
+            <th nowrap><fmt:message key="registration.props.form.stats_max" /></th>
+        </tr>
+    </thead>
+    <tbody>
+    <% for (RegistrationMetrics.Stage stage : RegistrationMetrics.Stage.values()) {
+           RegistrationMetrics.StageMetrics stageMetrics = metrics.getStage(stage); %>
+        <tr>
+            <td><%= stage.name().toLowerCase().replace('_', ' ') %></td>
+            <td><%= stageMetrics.getCount() %></td>
+            <td><%= stageMetrics.getFailures() %></td>
+            <td><%= String.format("%.2f", stageMetrics.getMeanMillis()) %></td>
+            <td><%= String.format("%.2f", stageMetrics.getMedianMillis()) %></td>
+            <td><%= String.format("%.2f", stageMetrics.get99thPercentileMillis()) %></td>
+            <td><%= String.format("%.2f", stageMetrics.getMaxMillis()) %></td>
+        </tr>
+    <% } %>
+    </tbody>
+    </table>
+
+    <br>
+
+    <table class="jive-table" cellpadding="3" cellspacing="0" border="0" width="100%">
+    <thead>
+        <tr>
+            <th nowrap><fmt:message key="registration.props.form.stats_sign_up" /></th>
+            <th nowrap><fmt:message key="registration.props.form.stats_count" /></th>
+        </tr>
+    </thead>
+    <tbody>
+    <% for (RegistrationMetrics.SignUpOutcome outcome : RegistrationMetrics.SignUpOutcome.values()) { %>
+        <tr>
+            <td><%= outcome.name().toLowerCase().replace('_', ' ') %></td>
+            <td><%= metrics.getSignUps(outcome) %></td>
+        </tr>
+    <% } %>
+    </tbody>
+    </table>
+
+    <p><fmt:message key="registration.props.form.stats_pipeline">
+        <fmt:param value="<%= plugin.getPipelineQueueSize() %>" />
+        <fmt:param value="<%= plugin.getPipelineDroppedCount() %>" />
+    </fmt:message></p>
+
+    <p><fmt:message key="registration.props.form.stats_actions">
+        <fmt:param value="<%= plugin.getActionTimeoutCount() %>" />
+        <fmt:param value="<%= plugin.getActionSkippedCount() %>" />
+    </fmt:message></p>
+
+    <p><fmt:message key="registration.props.form.stats_multicast">
+        <fmt:param value="<%= plugin.getMulticastNotificationCount() %>" />
+        <fmt:param value="<%= plugin.getDirectNotificationCount() %>" />
+    </fmt:message></p>
+
+    <p><fmt:message key="registration.props.form.stats_outbox">
+        <fmt:param value="<%= plugin.getEmailOutboxSize() %>" />
+        <fmt:param value="<%= plugin.getEmailOutboxRejectedCount() %>" />
+    </fmt:message></p>
+
+    <% if (plugin.isClustered()) { %>
+    <table class="jive-table" cellpadding="3" cellspacing="0" border="0" width="100%">
+    <thead>
+        <tr>
+            <th nowrap><fmt:message key="registration.props.form.stats_cluster_node" /></th>
+            <th nowrap><fmt:message key="registration.props.form.stats_cluster_actions" /></th>
+            <th nowrap><fmt:message key="registration.props.form.stats_cluster_notifications" /></th>
+        </tr>
+    </thead>
+    <tbody>
+    <% for (Map.Entry<String, long[]> node : plugin.getClusterStatistics().entrySet()) { %>
+        <tr>
+            <td><%= StringUtils.escapeHTMLTags(node.getKey()) %></td>
+            <td><%= node.getValue()[0] %></td>
+            <td><%= node.getValue()[1] %></td>
+        </tr>
+    <% } %>
+    </tbody>
+    </table>
+
+    <p><fmt:message key="registration.props.form.stats_cluster">
+        <fmt:param value="<%= plugin.getClusterSentCount() %>" />
+        <fmt:param value="<%= plugin.getClusterReceivedCount() %>" />
+        <fmt:param value="<%= plugin.getClusterFailedCount() %>" />
+    </fmt:message></p>
+    <% } %>
+</div>
+
 </body>
 </html>